@@ -0,0 +1,83 @@
+/*
+ * @(#)ConversionBenchmark.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+
+/**
+ * Benchmarks Batch_Converter.convert end to end over a generated folder of
+ * JEOL micrographs with sidecars, with the scale bar added to every image.
+ * One operation converts the whole folder.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ConversionBenchmark {
+
+    @Param({"16"})
+    public int files;
+
+    @Param({"1", "4"})
+    public int threads;
+
+    @Param({"TIFF", "PNG"})
+    public String format;
+
+    private File src, dst;
+
+    @Setup
+    public void setup() throws IOException {
+	src = SyntheticCorpus.createTempDir("jips-src");
+	dst = SyntheticCorpus.createTempDir("jips-dst");
+	for (int i=0; i<files; i++)
+	    SyntheticCorpus.writeJeolImage(src, "image"+i, 1280, 960, i);
+	Batch_Converter.parseOptions(new String[] {"-threads", ""+threads, "-scalebar", "-filter", "*.tif"});
+    }
+
+    @TearDown
+    public void tearDown() {
+	SyntheticCorpus.delete(src);
+	SyntheticCorpus.delete(dst);
+    }
+
+    @Benchmark
+    public void convert() {
+	new Batch_Converter().convert(src.getPath()+File.separator, dst.getPath()+File.separator, format);
+    }
+}
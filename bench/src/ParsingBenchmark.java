@@ -0,0 +1,85 @@
+/*
+ * @(#)ParsingBenchmark.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ij.measure.Calibration;
+
+/**
+ * Benchmarks reading the calibration of a single micrograph: the JEOL .txt
+ * sidecar used by JSM_ScaleBar and the header of a Megaview file used by
+ * Megaview_ScaleBar.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ParsingBenchmark {
+
+    /** Size of the pixel data after the Megaview header. */
+    @Param({"2097152"})
+    public int megaviewBytes;
+
+    private File dir;
+    private String sidecar;
+    private String megaview;
+
+    @Setup
+    public void setup() throws IOException {
+	dir = SyntheticCorpus.createTempDir("jips-parse");
+	SyntheticCorpus.writeJeolImage(dir, "jeol", 1280, 960, 1);
+	SyntheticCorpus.writeMegaviewImage(dir, "megaview.tif", megaviewBytes, 1);
+	sidecar = new File(dir, "jeol.txt").getPath();
+	megaview = new File(dir, "megaview.tif").getPath();
+    }
+
+    @TearDown
+    public void tearDown() {
+	SyntheticCorpus.delete(dir);
+    }
+
+    @Benchmark
+    public JeolSidecar jeolSidecar() throws IOException {
+	return JeolSidecar.read(sidecar);
+    }
+
+    @Benchmark
+    public Calibration megaviewCalibration() throws IOException {
+	return MegaviewHeader.readCalibration(megaview);
+    }
+}
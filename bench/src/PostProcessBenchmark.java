@@ -0,0 +1,94 @@
+/*
+ * @(#)PostProcessBenchmark.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ij.*;
+import ij.process.*;
+
+/**
+ * Benchmarks the JSM_ScaleBar post-processing of PostProcessPipeline on
+ * 8-bit and 16-bit micrographs: equalization with smoothing at full size,
+ * and the same with resizing to 800 pixels wide and RGB conversion.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PostProcessBenchmark {
+
+    /** Width of the image, the height is 3/4 of it. */
+    @Param({"1280", "4096"})
+    public int width;
+
+    @Param({"8", "16"})
+    public int bitDepth;
+
+    private ImagePlus img;
+    private PostProcessPipeline fullSize, small;
+
+    @Setup
+    public void setup() {
+	int height = width*3/4;
+	ImageProcessor ip = bitDepth==8 ? new ByteProcessor(width, height) : new ShortProcessor(width, height);
+	Random random = new Random(1);
+	int range = bitDepth==8 ? 64 : 4096;
+	for (int y=0; y<height; y++)
+	    for (int x=0; x<width; x++)
+		ip.set(x, y, ((x*7+y*3)&(range-1))*2+random.nextInt(range));
+	img = new ImagePlus("micrograph", ip);
+	fullSize = new PostProcessPipeline();
+	fullSize.setEqualize(true);
+	fullSize.setSmooth(true);
+	small = new PostProcessPipeline();
+	small.setEqualize(true);
+	small.setSmooth(true);
+	small.setResizeWidth(800);
+	small.setConvertToRGB(true);
+    }
+
+    @Benchmark
+    public ImagePlus equalizeAndSmooth() {
+	return fullSize.apply(img);
+    }
+
+    @Benchmark
+    public ImagePlus equalizeSmoothResizeRGB() {
+	return small.apply(img);
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * @(#)RenderingBenchmark.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.*;
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Benchmarks the per-image steps of Batch_Converter that touch every pixel:
+ * adding the scale bar and the 8-bit color conversion with ColorQuantizer.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+@State(Scope.Thread)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RenderingBenchmark {
+
+    /** Width of the image, the height is 3/4 of it. */
+    @Param({"1280", "4096"})
+    public int width;
+
+    private Batch_Converter converter;
+    private ImagePlus gray;
+    private ColorProcessor rgb;
+
+    @Setup
+    public void setup() {
+	int height = width*3/4;
+	ByteProcessor bp = new ByteProcessor(width, height);
+	for (int y=0; y<height; y++)
+	    for (int x=0; x<width; x++)
+		bp.set(x, y, (x*7+y*3)&255);
+	gray = new ImagePlus("gray", bp);
+	Calibration cal = new Calibration();
+	cal.setUnit("nm");
+	cal.pixelWidth = cal.pixelHeight = 2.5;
+	gray.setCalibration(cal);
+	rgb = (ColorProcessor)bp.convertToRGB();
+	converter = new Batch_Converter();
+    }
+
+    /** Draws into the same image every time, which does not change the cost. */
+    @Benchmark
+    public ImagePlus addScaleBar() {
+	return converter.addScaleBar(gray);
+    }
+
+    @Benchmark
+    public ImagePlus convertTo8Bits() {
+	return converter.convertTo8Bits(new ImagePlus("rgb", rgb));
+    }
+}
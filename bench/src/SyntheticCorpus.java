@@ -0,0 +1,145 @@
+/*
+ * @(#)SyntheticCorpus.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import ij.*;
+import ij.io.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Writes synthetic micrographs for the benchmarks: 8-bit TIFFs with a JEOL
+ * style information bar and a matching .txt sidecar, and Megaview style
+ * files with the camera settings as text in front of binary pixel data.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class SyntheticCorpus {
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private SyntheticCorpus() {
+    }
+
+    /** Creates an empty temporary folder. */
+    static File createTempDir(String prefix) throws IOException {
+	return Files.createTempDirectory(prefix).toFile();
+    }
+
+    /**
+     * Writes name.tif, a width x height image with a 64 pixel information
+     * bar below it, and name.txt, its JEOL sidecar.
+     */
+    static void writeJeolImage(File dir, String name, int width, int height, long seed) throws IOException {
+	Random rnd = new Random(seed);
+	ByteProcessor ip = new ByteProcessor(width, height+64);
+	byte[] pixels = (byte[])ip.getPixels();
+	for (int y=0; y<height; y++)
+	    for (int x=0; x<width; x++)
+		pixels[y*width+x] = (byte)(128 + 100*Math.sin(x/31.0+seed)*Math.cos(y/17.0) + rnd.nextInt(24));
+	ImagePlus imp = new ImagePlus(name, ip);
+	Calibration cal = new Calibration();
+	cal.setUnit("nm");
+	cal.pixelWidth = cal.pixelHeight = 2.5;
+	imp.setCalibration(cal);
+	new FileSaver(imp).saveAsTiff(new File(dir, name+".tif").getPath());
+
+	StringBuilder sb = new StringBuilder();
+	sb.append("$CM_FORMAT JEOL/SEM\r\n");
+	sb.append("$CM_VERSION 1.0\r\n");
+	sb.append("$CM_INSTRUMENT JSM-7500F\r\n");
+	sb.append("$CM_TITLE ").append(name).append("\r\n");
+	sb.append("$CM_DATE 2013/02/19\r\n");
+	sb.append("$CM_TIME 12:34:56\r\n");
+	sb.append("$CM_MAG 50000\r\n");
+	sb.append("$CM_ACCEL_VOLT 5.00\r\n");
+	sb.append("$CM_SIGNAL SEI\r\n");
+	sb.append("$CM_SIGNAL_NAME LEI\r\n");
+	sb.append("$CM_FULL_SIZE ").append(width).append(' ').append(height).append("\r\n");
+	sb.append("$CM_STAGE_POS 12.5 34.0 8.0 0 0 0\r\n");
+	sb.append("$SM_PENNING_VAC 9.6E-005\r\n");
+	sb.append("$SM_GB_BIAS_VOLT 0\r\n");
+	sb.append("$$SM_WD 8.0\r\n");
+	sb.append("$$SM_COLUMN_MODE SEM\r\n");
+	sb.append("$$SM_MICRON_BAR 120\r\n");
+	sb.append("$$SM_MICRON_MARKER 300nm\r\n");
+	// The rest of a real sidecar: keys that are not used
+	for (int i=0; i<40; i++)
+	    sb.append("$SM_UNUSED_KEY_").append(i).append(' ').append(rnd.nextInt(1000)).append("\r\n");
+	Files.write(new File(dir, name+".txt").toPath(), sb.toString().getBytes(LATIN1));
+    }
+
+    /**
+     * Writes a Megaview style file: a TIFF header and IFD, a few kilobytes
+     * of camera settings as text, including the "Mode" line, in the
+     * ImageDescription tag, followed by binary pixel data.
+     */
+    static void writeMegaviewImage(File dir, String name, int pixelBytes, long seed) throws IOException {
+	Random rnd = new Random(seed);
+	StringBuilder sb = new StringBuilder();
+	for (int i=0; i<60; i++)
+	    sb.append("Setting").append(i).append(" = ").append(rnd.nextInt(100000)).append("\r\n");
+	sb.append("Mode      TEM      68000x\r\n");
+	byte[] header = sb.toString().getBytes(LATIN1);
+	byte[] data = new byte[pixelBytes];
+	rnd.nextBytes(data);
+	OutputStream out = new BufferedOutputStream(new FileOutputStream(new File(dir, name)));
+	try {
+	    // One IFD with the settings as the ImageDescription, right after it
+	    ByteBuffer ifd = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+	    ifd.put(new byte[] {'I', 'I', 42, 0}).putInt(8);
+	    ifd.putShort((short)1).putShort((short)270).putShort((short)2).putInt(header.length).putInt(26);
+	    ifd.putInt(0);
+	    out.write(ifd.array());
+	    out.write(header);
+	    out.write(data);
+	}
+	finally {
+	    out.close();
+	}
+    }
+
+    /** Deletes a folder and everything in it. */
+    static void delete(File f) {
+	File[] list = f.listFiles();
+	if (list!=null)
+	    for (File c : list)
+		delete(c);
+	f.delete();
+    }
+}
@@ -0,0 +1,286 @@
+/*
+ * @(#)BatchMetrics.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.lang.management.*;
+import java.util.Locale;
+import java.util.concurrent.atomic.*;
+
+/**
+ * Collects timing and throughput figures of a Batch_Converter run. The
+ * throughput is in source images whose outputs have all been written, which
+ * Batch_Converter counts with countImage(); an image can have several
+ * outputs or pages. For every stage (decoding, processing, scale bar,
+ * quantization, encoding) it counts the steps and sums the wall clock time, the CPU time of the thread that
+ * did the work and the bytes read or written. The latencies are kept in a
+ * histogram with eight buckets per power of two, so percentiles are within
+ * about 6% of the exact value and the memory used does not grow with the
+ * number of images. The used heap is sampled at the end of every step.
+ *
+ * Recording a step costs two clock reads and a few atomic adds, which is
+ * nothing next to decoding an image, so the metrics are always collected.
+ * They can be shown as a one line summary while the run goes on and written
+ * as a CSV or JSON report at the end. The summary and the JSON report also
+ * have the hit rate of the PixelBufferPool of the run, if one is set.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class BatchMetrics {
+
+    static final int DECODE = 0, PROCESS = 1, SCALEBAR = 2, QUANTIZE = 3, ENCODE = 4;
+    private static final String[] NAMES = {"decode", "process", "scalebar", "quantize", "encode"};
+
+    /** Sub-buckets per power of two in the latency histograms. */
+    private static final int SUB_BITS = 3;
+    private static final int SUB = 1<<SUB_BITS;
+    /** Enough buckets for latencies of up to 2^40 us, about 12 days. */
+    private static final int BUCKETS = (41-SUB_BITS)*SUB+SUB;
+
+    private static final ThreadMXBean THREADS = ManagementFactory.getThreadMXBean();
+    private static final boolean CPU_TIME = THREADS.isCurrentThreadCpuTimeSupported();
+
+    private final Stage[] stages = new Stage[NAMES.length];
+    private final long started = System.nanoTime();
+    private volatile PixelBufferPool bufferPool;
+    private final AtomicLong peakHeap = new AtomicLong();
+    private final AtomicLong images = new AtomicLong();
+    private volatile long finished;
+
+    /** The figures of one stage. */
+    private static class Stage {
+	final AtomicLong count = new AtomicLong();
+	final AtomicLong wall = new AtomicLong();
+	final AtomicLong cpu = new AtomicLong();
+	final AtomicLong bytes = new AtomicLong();
+	final AtomicLong max = new AtomicLong();
+	final AtomicLongArray histogram = new AtomicLongArray(BUCKETS);
+    }
+
+    /** A step that has been started but not stopped yet. */
+    final class Timer {
+	private final int stage;
+	private final long wall, cpu;
+
+	private Timer(int stage) {
+	    this.stage = stage;
+	    this.wall = System.nanoTime();
+	    this.cpu = CPU_TIME ? THREADS.getCurrentThreadCpuTime() : 0;
+	}
+
+	/** Records the step. Has to be called by the thread that started it. */
+	void stop() {
+	    stop(0);
+	}
+
+	/** Records the step with the number of bytes it read or wrote. */
+	void stop(long bytes) {
+	    long w = System.nanoTime()-wall;
+	    long c = CPU_TIME ? THREADS.getCurrentThreadCpuTime()-cpu : 0;
+	    record(stage, w, c, bytes);
+	}
+    }
+
+    BatchMetrics() {
+	for (int i=0; i<stages.length; i++)
+	    stages[i] = new Stage();
+    }
+
+    /** Starts timing a step of the given stage on the current thread. */
+    Timer start(int stage) {
+	return new Timer(stage);
+    }
+
+    private void record(int stage, long wallNanos, long cpuNanos, long bytes) {
+	Stage s = stages[stage];
+	s.count.incrementAndGet();
+	s.wall.addAndGet(wallNanos);
+	s.cpu.addAndGet(cpuNanos);
+	if (bytes>0)
+	    s.bytes.addAndGet(bytes);
+	long max;
+	while (wallNanos>(max = s.max.get()) && !s.max.compareAndSet(max, wallNanos))
+	    ;
+	s.histogram.incrementAndGet(bucket(wallNanos/1000));
+	Runtime rt = Runtime.getRuntime();
+	long used = rt.totalMemory()-rt.freeMemory();
+	long peak;
+	while (used>(peak = peakHeap.get()) && !peakHeap.compareAndSet(peak, used))
+	    ;
+    }
+
+    /** Sets the buffer pool whose hit rate is reported. */
+    void setBufferPool(PixelBufferPool pool) {
+	this.bufferPool = pool;
+    }
+
+    /** Marks the end of the run. The elapsed time stops here. */
+    void finish() {
+	finished = System.nanoTime();
+    }
+
+    /** Counts a source image whose outputs have all been written. */
+    void countImage() {
+	images.incrementAndGet();
+    }
+
+    /** Number of source images converted so far. */
+    long getImages() {
+	return images.get();
+    }
+
+    /** Number of encoding steps so far, one per output file or page. */
+    long getEncodes() {
+	return stages[ENCODE].count.get();
+    }
+
+    /** Seconds from the start of the run to finish(), or to now. */
+    double getElapsedSeconds() {
+	long end = finished!=0 ? finished : System.nanoTime();
+	return (end-started)/1e9;
+    }
+
+    double getImagesPerSecond() {
+	double s = getElapsedSeconds();
+	return s>0 ? getImages()/s : 0;
+    }
+
+    /**
+     * Returns the latency below which the given fraction of the steps of a
+     * stage finished, in milliseconds, or 0 if there were none.
+     */
+    double getPercentile(int stage, double fraction) {
+	Stage s = stages[stage];
+	AtomicLongArray h = s.histogram;
+	long total = 0;
+	for (int i=0; i<BUCKETS; i++)
+	    total += h.get(i);
+	if (total==0)
+	    return 0;
+	long rank = Math.max(1, (long)Math.ceil(fraction*total));
+	long seen = 0;
+	for (int i=0; i<BUCKETS; i++) {
+	    seen += h.get(i);
+	    if (seen>=rank)
+		return Math.min(middle(i), s.max.get()/1000.0)/1000.0;
+	}
+	return s.max.get()/1e6;
+    }
+
+    /** The histogram bucket of a latency in microseconds. */
+    private static int bucket(long us) {
+	if (us<SUB)
+	    return (int)Math.max(0, us);
+	int exp = 63-Long.numberOfLeadingZeros(us);
+	int index = (exp-SUB_BITS+1)*SUB+(int)((us>>>(exp-SUB_BITS))&(SUB-1));
+	return Math.min(index, BUCKETS-1);
+    }
+
+    /** The middle of a histogram bucket in microseconds. */
+    private static double middle(int index) {
+	if (index<SUB)
+	    return index;
+	int exp = index/SUB+SUB_BITS-1;
+	long low = (long)(SUB+index%SUB)<<(exp-SUB_BITS);
+	return low+(1L<<(exp-SUB_BITS))/2.0;
+    }
+
+    /** A one line summary for the log or the status bar. */
+    String summary() {
+	String s = String.format(Locale.US, "%d images in %.1f s, %.2f images/s, %d encoded, %.1f MB read, %.1f MB written, peak heap %.0f MB",
+				 getImages(), getElapsedSeconds(), getImagesPerSecond(), getEncodes(),
+				 stages[DECODE].bytes.get()/1e6, stages[ENCODE].bytes.get()/1e6,
+				 peakHeap.get()/1e6);
+	PixelBufferPool pool = bufferPool;
+	return pool!=null ? s+", "+pool : s;
+    }
+
+    /** Writes the report as JSON if the path ends with .json, otherwise as CSV. */
+    void write(String path) throws IOException {
+	PrintWriter out = new PrintWriter(new BufferedWriter(new FileWriter(path)));
+	try {
+	    if (path.toLowerCase(Locale.US).endsWith(".json"))
+		writeJson(out);
+	    else
+		writeCsv(out);
+	}
+	finally {
+	    out.close();
+	}
+	if (out.checkError())
+	    throw new IOException("Could not write "+path);
+    }
+
+    /**
+     * One row per stage and a "total" row. Times are in milliseconds; the
+     * total row has the number of images, the elapsed wall time, the
+     * throughput and the peak heap.
+     */
+    void writeCsv(PrintWriter out) {
+	out.println("stage,count,wall_ms,cpu_ms,p50_ms,p90_ms,p99_ms,max_ms,bytes,images_per_s,peak_heap_bytes");
+	for (int i=0; i<NAMES.length; i++) {
+	    Stage s = stages[i];
+	    out.println(String.format(Locale.US, "%s,%d,%.3f,%.3f,%.3f,%.3f,%.3f,%.3f,%d,,",
+				      NAMES[i], s.count.get(), s.wall.get()/1e6, s.cpu.get()/1e6,
+				      getPercentile(i, 0.5), getPercentile(i, 0.9), getPercentile(i, 0.99),
+				      s.max.get()/1e6, s.bytes.get()));
+	}
+	out.println(String.format(Locale.US, "total,%d,%.3f,,,,,,,%.3f,%d",
+				  getImages(), getElapsedSeconds()*1000, getImagesPerSecond(), peakHeap.get()));
+    }
+
+    void writeJson(PrintWriter out) {
+	out.println("{");
+	out.println(String.format(Locale.US, "  \"elapsed_ms\": %.3f,", getElapsedSeconds()*1000));
+	out.println("  \"images\": "+getImages()+",");
+	out.println("  \"encodes\": "+getEncodes()+",");
+	out.println(String.format(Locale.US, "  \"images_per_s\": %.3f,", getImagesPerSecond()));
+	out.println("  \"bytes_read\": "+stages[DECODE].bytes.get()+",");
+	out.println("  \"bytes_written\": "+stages[ENCODE].bytes.get()+",");
+	out.println("  \"peak_heap_bytes\": "+peakHeap.get()+",");
+	PixelBufferPool pool = bufferPool;
+	if (pool!=null)
+	    out.println(String.format(Locale.US, "  \"buffer_pool\": {\"hits\": %d, \"misses\": %d, \"hit_rate\": %.4f, \"bytes_held\": %d},",
+				      pool.getHits(), pool.getMisses(), pool.getHitRate(), pool.getSize()));
+	out.println("  \"stages\": {");
+	for (int i=0; i<NAMES.length; i++) {
+	    Stage s = stages[i];
+	    out.println(String.format(Locale.US,
+				      "    \"%s\": {\"count\": %d, \"wall_ms\": %.3f, \"cpu_ms\": %.3f, \"p50_ms\": %.3f, \"p90_ms\": %.3f, \"p99_ms\": %.3f, \"max_ms\": %.3f, \"bytes\": %d}%s",
+				      NAMES[i], s.count.get(), s.wall.get()/1e6, s.cpu.get()/1e6,
+				      getPercentile(i, 0.5), getPercentile(i, 0.9), getPercentile(i, 0.99),
+				      s.max.get()/1e6, s.bytes.get(), i<NAMES.length-1 ? "," : ""));
+	}
+	out.println("  }");
+	out.println("}");
+    }
+}
@@ -57,6 +57,34 @@ public class Batch_Converter implements PlugIn {
     private static String format = "TIFF";
     private static boolean convertToGrayscale;
     private static boolean addScaleBar;
+    private static String size = "";
+    private static int threads = 1;
+    private static boolean recursive;
+    private static String filter = "*";
+    private static boolean incremental;
+    private static boolean watch;
+    private static int quietMillis = 2000;
+    private static String metricsPath = "";
+    private static int metricsInterval = 10;
+    private static boolean tiled;
+    private static String outputs = "";
+    private static String[] stackChoices = {"First Slice", "Multi-page TIFF", "File per Slice"};
+    private static final int FIRST_SLICE = 0, MULTI_PAGE = 1, PER_SLICE = 2;
+    private static int stackMode = FIRST_SLICE;
+    private static boolean sharedPalette;
+    private static boolean shard;
+    private static int shardTimeout = 600;
+    private static boolean dedup;
+    private static int memoryBudget;
+
+    private OutputSpec[] specs;
+    private ConversionManifest manifest;
+    private WorkClaims claims;
+    private ContentIndex index;
+    private MemoryBudget budget;
+    private ColorQuantizer quantizer = new ColorQuantizer(256, false);
+    private BatchMetrics metrics = new BatchMetrics();
+    private PixelBufferPool pool = new PixelBufferPool();
 	
 	public void run(String arg) {
 		String dir1 = IJ.getDirectory("Select source folder...");
@@ -72,51 +100,714 @@ public class Batch_Converter implements PlugIn {
 		gd.addChoice("Convert to: ", choices, format);
 		gd.addCheckbox("Make Grayscale", convertToGrayscale);
 		gd.addCheckbox("Add Scale Bar", addScaleBar);
+		gd.addStringField("Size (width or widthxheight, empty = full)", size, 10);
+		gd.addChoice("Stacks: ", stackChoices, stackChoices[stackMode]);
+		gd.addCheckbox("Shared Palette for 8-bit Color", sharedPalette);
+		gd.addCheckbox("Include Subfolders", recursive);
+		gd.addStringField("File Name Filter", filter);
+		gd.addCheckbox("Skip Up-to-date Files", incremental);
+		gd.addCheckbox("Link Outputs of Identical Files", dedup);
+		gd.addNumericField("Worker threads", threads, 0);
+		gd.addNumericField("Memory Budget (MB, 0 = 3/4 of heap)", memoryBudget, 0);
+		gd.addCheckbox("Watch Folder for New Images", watch);
+		gd.addStringField("Metrics Report (.csv/.json)", metricsPath, 20);
+		gd.addStringField("More Outputs (format,options;...)", outputs, 20);
 		gd.showDialog();
 		if (gd.wasCanceled())
 			return false;
 		format = gd.getNextChoice();
 		convertToGrayscale = gd.getNextBoolean();
 		addScaleBar = gd.getNextBoolean();
+		size = gd.getNextString().trim();
+		stackMode = gd.getNextChoiceIndex();
+		sharedPalette = gd.getNextBoolean();
+		recursive = gd.getNextBoolean();
+		filter = gd.getNextString();
+		incremental = gd.getNextBoolean();
+		dedup = gd.getNextBoolean();
+		threads = Math.max(1, (int)gd.getNextNumber());
+		memoryBudget = Math.max(0, (int)gd.getNextNumber());
+		watch = gd.getNextBoolean();
+		metricsPath = gd.getNextString().trim();
+		outputs = gd.getNextString().trim();
 		return true;
 	}
 
 	public void convert(String dir1, String dir2, String format) {
 		IJ.log("\\Clear");
-		IJ.log("Converting to "+format);
+		specs = getOutputSpecs(format);
+		if (specs==null) return;
+		for (int i=0; i<specs.length; i++)
+			IJ.log("Converting to "+specs[i]);
 		IJ.log("dir1: "+dir1);
 		IJ.log("dir2: "+dir2);
-		String[] list = new File(dir1).list();
-		if (list==null) return;
-		for (int i=0; i<list.length; i++) {
-			IJ.showProgress(i, list.length);
-			IJ.log((i+1)+": "+list[i]+"  "+WindowManager.getImageCount());
-			IJ.showStatus(i+"/"+list.length);
-			boolean isDir = (new File(dir1+list[i])).isDirectory();
-			if (!isDir && !list[i].startsWith(".")) {
-				ImagePlus img = IJ.openImage(dir1+list[i]);
-				if (img==null) continue;
-				img = process(img);
-				if (img==null) continue;
-				if (img.isComposite())
-					img = convertToRGB(img);
-				if (img.getStackSize()>1)
-					img = getFirstSlice(img);
-				if (convertToGrayscale)
-					img = convertToGrayscale(img);
-				if (addScaleBar)
-				    img = addScaleBar(img);
-				if (format.equals("8-bit Color TIFF")||format.equals("GIF"))
-					img = convertTo8Bits(img);
-				WindowManager.setTempCurrentImage(img);
-				IJ.saveAs(format, dir2+list[i]);
-				img.close();
+		if (!new File(dir1).isDirectory()) return;
+		java.util.Iterator<ConversionJob> jobs;
+		Closeable source;
+		if (watch) {
+			FolderWatcher watcher;
+			try {
+				watcher = new FolderWatcher(dir1, dir2, recursive, filter, quietMillis);
+			}
+			catch (IOException e) {
+				IJ.error("Batch Converter", "Could not watch "+dir1+": "+e);
+				return;
+			}
+			IJ.log("Watching for new images, press Esc to stop");
+			jobs = watcher;
+			source = watcher;
+		} else {
+			SourceWalker walker = new SourceWalker(dir1, dir2, recursive, filter);
+			jobs = walker;
+			source = walker;
+		}
+		manifest = incremental && !shard ? new ConversionManifest(dir2) : null;
+		if (manifest!=null && source instanceof FolderWatcher)
+			((FolderWatcher)source).setManifest(manifest, optionsKey());
+		if (shard) {
+			claims = new WorkClaims(dir2, optionsKey(), shardTimeout*1000L);
+			jobs = claims.claimAll(jobs);
+		}
+		if (dedup) {
+			index = new ContentIndex(dir2, shard ? ContentIndex.FILE_NAME+"-"+WorkClaims.processName() : ContentIndex.FILE_NAME);
+			jobs = index.hashAhead(jobs);
+		}
+		if (threads>1) {
+			long capacity = memoryBudget>0 ? memoryBudget*(1L<<20) : Runtime.getRuntime().maxMemory()/4*3;
+			budget = new MemoryBudget(capacity, 4*threads, new MemoryBudget.Estimator() {
+				public long estimate(ConversionJob job) {
+					return estimateMemory(job);
+				}
+			});
+			jobs = budget.admitAll(jobs);
+		}
+		quantizer = new ColorQuantizer(256, sharedPalette);
+		metrics = new BatchMetrics();
+		pool = new PixelBufferPool();
+		metrics.setBufferPool(pool);
+		Thread reporter = GraphicsEnvironment.isHeadless() ? startReporter(metrics) : null;
+		try {
+			if (threads>1) {
+				IJ.log("Using "+threads+" worker threads");
+				convertSerially(jobs, true);
+				new ParallelConverter(this, threads).convert(jobs);
+			} else
+				convertSerially(jobs, false);
+		}
+		finally {
+			try {
+				source.close();
+			}
+			catch (IOException e) {
+				IJ.log("Closing "+dir1+" failed: "+e);
+			}
+			if (manifest!=null)
+				manifest.close();
+			manifest = null;
+			if (index!=null)
+				index.close();
+			index = null;
+			if (claims!=null)
+				claims.close();
+			claims = null;
+			if (budget!=null)
+				IJ.log(budget.toString());
+			budget = null;
+			metrics.finish();
+			if (reporter!=null)
+				reporter.interrupt();
+		}
+		IJ.log(metrics.summary());
+		if (metricsPath.length()>0) {
+			try {
+				metrics.write(metricsPath);
+			}
+			catch (IOException e) {
+				IJ.log("Could not write metrics to "+metricsPath+": "+e);
 			}
 		}
 		IJ.showProgress(1.0);
 		IJ.showStatus("");
 	}
 
+	/** Converts jobs one at a time on the calling thread, all of them or,
+		with untilPalette, only until the shared palette has been made.
+		The palette is then made from the first color image in the order
+		of the jobs, however many worker threads convert the rest. */
+	private void convertSerially(java.util.Iterator<ConversionJob> jobs, boolean untilPalette) {
+		while ((!untilPalette || needsPalette()) && jobs.hasNext()) {
+			ConversionJob job = jobs.next();
+			try {
+				IJ.log(job.index+": "+job);
+				IJ.showStatus(job.index+": "+job);
+				if (isUpToDate(job)) continue;
+				if (linkDuplicate(job)) continue;
+				if (convertTiled(job)) continue;
+				ImagePlus img = open(job);
+				if (img==null) continue;
+				if (convertStack(job, img)) continue;
+				ImagePlus[] images = processImage(img);
+				if (images==null) continue;
+				save(images, job);
+			}
+			finally {
+				finish(job);
+			}
+		}
+	}
+
+	/** Returns true if an output is reduced to a shared palette that has
+		not been made yet. */
+	boolean needsPalette() {
+		if (!quantizer.needsPalette()) return false;
+		for (int i=0; i<specs.length; i++)
+			if (specs[i].isQuantized()) return true;
+		return false;
+	}
+
+	/** Returns the outputs to write: the format, options and size of the
+		dialog and then the specs of "More Outputs". Returns null and
+		shows an error if a spec is not valid or two outputs would be
+		written to the same file. */
+	OutputSpec[] getOutputSpecs(String format) {
+		return getOutputSpecs(format, size, outputs);
+	}
+
+	/** Returns the outputs for the format, size and "More Outputs" specs
+		given, like getOutputSpecs(String). */
+	static OutputSpec[] getOutputSpecs(String format, String size, String outputs) {
+		java.util.List<OutputSpec> list = new java.util.ArrayList<OutputSpec>();
+		int[] wh = size.length()>0 ? OutputSpec.parseSize(size) : new int[2];
+		if (wh==null) {
+			IJ.error("Batch Converter", "Unknown size \""+size+"\"");
+			return null;
+		}
+		OutputSpec primary = new OutputSpec(format, convertToGrayscale, addScaleBar, wh[0], wh[1], "");
+		list.add(primary);
+		// Every output is keyed by the name it gives to a file called "x"
+		java.util.Set<String> names = new java.util.HashSet<String>();
+		names.add(primary.getOutputPath("x")+extension(format));
+		String[] extra = outputs.split(";");
+		for (int i=0; i<extra.length; i++) {
+			if (extra[i].trim().length()==0) continue;
+			OutputSpec spec;
+			try {
+				spec = OutputSpec.parse(extra[i], choices);
+			}
+			catch (IllegalArgumentException e) {
+				IJ.error("Batch Converter", e.getMessage());
+				return null;
+			}
+			if (!names.add(spec.getOutputPath("x")+extension(spec.format))) {
+				IJ.error("Batch Converter", "\""+spec+"\" would overwrite another output, add suffix=name to it");
+				return null;
+			}
+			list.add(spec);
+		}
+		return list.toArray(new OutputSpec[list.size()]);
+	}
+
+	/** The extension ImageSaver gives to files of the format. */
+	private static String extension(String format) {
+		String f = format.toLowerCase();
+		if (f.indexOf("tif")!=-1) return ".tif";
+		if (f.indexOf("jp")!=-1) return ".jpg";
+		if (f.indexOf("text")!=-1) return ".txt";
+		if (f.indexOf("raw")!=-1) return "";
+		return "."+f;
+	}
+
+	/** Logs a summary of the run every metricsInterval seconds, so that
+		a long headless run can be followed without a status bar. */
+	private static Thread startReporter(final BatchMetrics metrics) {
+		if (metricsInterval<=0) return null;
+		Thread t = new Thread("Batch_Converter-metrics") {
+			public void run() {
+				try {
+					while (true) {
+						Thread.sleep(metricsInterval*1000L);
+						IJ.log(metrics.summary());
+					}
+				}
+				catch (InterruptedException e) {
+					// The run has finished
+				}
+			}
+		};
+		t.setDaemon(true);
+		t.start();
+		return t;
+	}
+
+	/** Returns true if the job was converted with the same options
+		in an earlier incremental run and can be skipped. */
+	boolean isUpToDate(ConversionJob job) {
+		if (manifest==null || !manifest.isUpToDate(job, optionsKey()))
+			return false;
+		IJ.log(job+": up to date");
+		return true;
+	}
+
+	/** Returns true if the source of the job is a copy of one converted
+		before with the same options, and its outputs have been linked
+		to the outputs of the job. */
+	boolean linkDuplicate(ConversionJob job) {
+		if (index==null) return false;
+		java.util.List<String> linked = index.linkDuplicate(job, optionsKey());
+		if (linked==null) return false;
+		job.written.addAll(linked);
+		IJ.log(job+": identical to a file converted before, outputs linked");
+		record(job, linked.get(0));
+		return true;
+	}
+
+	/** The options that affect the output, as stored in the manifest. */
+	String optionsKey() {
+		StringBuilder sb = new StringBuilder(specs[0].toString());
+		for (int i=1; i<specs.length; i++)
+			sb.append(';').append(specs[i]);
+		if (stackMode==MULTI_PAGE)
+			sb.append(";stack=pages");
+		else if (stackMode==PER_SLICE)
+			sb.append(";stack=files");
+		if (sharedPalette)
+			sb.append(";palette=shared");
+		return sb.toString();
+	}
+
+	/** Converts a TIFF that is too large to open as a whole (more than
+		1/8 of the heap, or any TIFF with -tiled) a band of rows at a time
+		with TiledTiffProcessor. Only done when a single full size TIFF is
+		written, and for a stack only when it is reduced to its first
+		slice. Returns false if the job has to be converted the normal
+		way. */
+	boolean convertTiled(ConversionJob job) {
+		if (!isTiledOutput(job))
+			return false;
+		ImageHeader header = ImageHeader.read(job.source);
+		if (!isTiledSource(header))
+			return false;
+		if (!tiled && (header==null || header.getPixelBytes()<Runtime.getRuntime().maxMemory()/8))
+			return false;
+		BatchMetrics.Timer timer = metrics.start(BatchMetrics.DECODE);
+		FileInfo fi;
+		try {
+			fi = TiledTiffProcessor.canProcess(job.source);
+		}
+		catch (IOException e) {
+			fi = null;
+		}
+		finally {
+			timer.stop(job.source.length());
+		}
+		if (fi==null) return false;
+		TiledTiffProcessor tp = new TiledTiffProcessor();
+		tp.setCalibration(getSidecarCalibration(job.source, fi.width));
+		tp.setConvertToByte(convertToGrayscale);
+		if (addScaleBar)
+			tp.setScaleBar(new ScaleBarRenderer(16, 48), 0);
+		String path = job.outputPath;
+		if (!path.endsWith(".tiff"))
+			path = ImageSaver.updateExtension(path, ".tif");
+		File parent = new File(path).getParentFile();
+		if (parent!=null && !parent.isDirectory())
+			parent.mkdirs();
+		timer = metrics.start(BatchMetrics.ENCODE);
+		String part = partPath(path);
+		try {
+			tp.process(job.source, part);
+			if (publish(part)!=null) {
+				IJ.log(job+": converted band by band");
+				job.written.add(path);
+				record(job, path);
+			}
+		}
+		catch (IOException e) {
+			IJ.log("Could not save "+path+": "+e.getMessage());
+			new File(part).delete();
+		}
+		finally {
+			timer.stop(new File(path).length());
+		}
+		return true;
+	}
+
+	/** Returns true if a single full size TIFF is written from a TIFF
+		source, which convertTiled() can do band by band. */
+	boolean isTiledOutput(ConversionJob job) {
+		String name = job.source.getName().toLowerCase();
+		return specs.length==1 && specs[0].format.equals("TIFF") && (name.endsWith(".tif")||name.endsWith(".tiff"));
+	}
+
+	/** Returns true if a source with this header, or null, can be converted
+		band by band. TiledTiffProcessor only reads the first image of a
+		file, so a stack has to be reduced to its first slice. */
+	boolean isTiledSource(ImageHeader header) {
+		return stackMode==FIRST_SLICE || (header!=null && header.nImages<2);
+	}
+
+	/** Estimates from the header of the source how much memory converting
+		a job takes at its peak, in bytes: the decoded image, the RGB
+		version of a composite, and the grayscale, scaled, scale bar and
+		8-bit color images of the outputs, or with -stack pages|files the
+		stack and the slices being converted. A file converted band by
+		band counts as a few bands, and one whose header can not be read
+		as four times its size. One decoded at a reduced size, see
+		reducedWidth(), counts at that size. */
+	long estimateMemory(ConversionJob job) {
+		ImageHeader h = ImageHeader.read(job.source);
+		if (h==null)
+			return 4*job.source.length();
+		if (isTiledOutput(job) && isTiledSource(h) && (tiled || h.getPixelBytes()>=Runtime.getRuntime().maxMemory()/8))
+			return 4L*TiledTiffProcessor.BAND_BYTES;
+		int bpp = h.bytesPerPixel==3 ? 4 : h.bytesPerPixel;
+		int width = reducedWidth(job, h);
+		if (width>0) {
+			width = ReducedDecoder.decodedWidth(job.source, h.width, width);
+			int height = (int)Math.max(1, Math.round(width*((double)h.height/h.width)));
+			return (long)width*height*bpp + estimateOutputs(width, height, bpp);
+		}
+		long frame = (long)h.width*h.height*bpp;
+		boolean firstPlane = stackMode==FIRST_SLICE && job.source.getName().toLowerCase().endsWith(".dm3");
+		long decoded = firstPlane ? frame : frame*h.nImages;
+		if (stackMode!=FIRST_SLICE && h.nImages>1) {
+			int window = Math.min(h.nImages, 2*Runtime.getRuntime().availableProcessors());
+			return decoded + window*estimateOutputs(h.width, h.height, bpp);
+		}
+		if (h.nImages>1 && !firstPlane) {
+			// A composite image is flattened through an AWT image
+			decoded += 8L*h.width*h.height;
+			bpp = 4;
+		}
+		return decoded + estimateOutputs(h.width, h.height, bpp);
+	}
+
+	/** Returns the width to decode the source of a job at when it is a
+		single image that every output scales down: the width of the
+		largest output. Returns 0 if it is decoded at full size. */
+	int reducedWidth(ConversionJob job, ImageHeader h) {
+		if (h==null || h.nImages!=1)
+			return 0;
+		String name = job.source.getName().toLowerCase();
+		if (!(name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(".bmp") || name.endsWith(".jpg") || name.endsWith(".jpeg")))
+			return 0;
+		int width = 0;
+		for (int i=0; i<specs.length; i++) {
+			int w = specs[i].getWidth(h.width, h.height);
+			if (w>=h.width)
+				return 0;
+			width = Math.max(width, w);
+		}
+		return width;
+	}
+
+	/** Estimates the memory of the images fanOut() makes from an image
+		of the given size, and of encoding the largest of them. */
+	private long estimateOutputs(int width, int height, int bpp) {
+		long total = 0, largest = 0;
+		boolean gray = false;
+		java.util.Set<String> sized = new java.util.HashSet<String>();
+		for (int i=0; i<specs.length; i++) {
+			int b = bpp;
+			if (specs[i].grayscale) {
+				if (!gray)
+					total += (long)width*height;
+				gray = true;
+				b = 1;
+			}
+			int w = specs[i].getWidth(width, height);
+			long h = w<width ? Math.max(1, Math.round(w*((double)height/width))) : height;
+			long size = w*h*b;
+			if (w<width && sized.add(specs[i].grayscale+","+w))
+				total += size;
+			if (specs[i].scaleBar)
+				total += size;
+			if (specs[i].isQuantized())
+				total += w*h;
+			largest = Math.max(largest, size);
+		}
+		return total+largest;
+	}
+
+	/** Opens the source image of a job. Returns null if it can not be read.
+		DM3 files are read with DM3Reader, only their first image plane
+		unless stacks are converted, images that every output scales
+		down with ReducedDecoder at the size of the largest output, and
+		others with IJ.openImage. If the image has a JEOL .txt sidecar
+		with a scale, the calibration is taken from it. */
+	ImagePlus open(ConversionJob job) {
+		BatchMetrics.Timer timer = metrics.start(BatchMetrics.DECODE);
+		ImagePlus img = null;
+		int width = reducedWidth(job, ImageHeader.read(job.source));
+		if (width>0) {
+			try {
+				img = ReducedDecoder.open(job.source, width, pool);
+			}
+			catch (IOException e) {
+				IJ.log(job+": "+e.getMessage());
+			}
+		} else if (job.source.getName().toLowerCase().endsWith(".dm3")) {
+			try {
+				img = DM3Reader.open(job.source, stackMode==FIRST_SLICE, pool);
+			}
+			catch (IOException e) {
+				IJ.log(job+": "+e.getMessage());
+			}
+		}
+		if (img==null)
+			img = IJ.openImage(job.source.getPath());
+		timer.stop(job.source.length());
+		if (img==null) return null;
+		Calibration cal = getSidecarCalibration(job.source, img.getWidth());
+		if (cal!=null)
+			img.setCalibration(cal);
+		return img;
+	}
+
+	/** Returns the calibration from the JEOL .txt sidecar of an image,
+		or from the header of a Zeiss TIFF without one, which is read
+		without decoding the image. Returns null if there is neither or
+		it has no scale. The width is that of the decoded image, which
+		may be smaller than the source. */
+	Calibration getSidecarCalibration(File source, int width) {
+		File txt = new File(source.getParentFile(), JeolSidecar.sidecarName(source.getName()));
+		if (!txt.isFile()) {
+			ZeissTiffHeader zeiss = ZeissTiffHeader.readCalibrated(source);
+			if (zeiss==null) return null;
+			Calibration cal = zeiss.getCalibration();
+			if (width!=zeiss.getWidth()) {
+				cal.pixelWidth *= (double)zeiss.getWidth()/width;
+				cal.pixelHeight *= (double)zeiss.getWidth()/width;
+			}
+			return cal;
+		}
+		try {
+			JeolSidecar sidecar = JeolSidecar.read(txt.getPath());
+			if (!sidecar.hasCalibration()) return null;
+			Calibration cal = new Calibration();
+			cal.pixelWidth = cal.pixelHeight = sidecar.getPixelSize(width);
+			cal.setUnit(sidecar.getMicronMarkerUnit());
+			return cal;
+		}
+		catch (IOException e) {
+			IJ.log(txt.getName()+": "+e);
+			return null;
+		}
+	}
+
+	/** Converts and writes every slice of a stack with StackConverter,
+		unless only the first slice is converted. Returns false if the
+		image is not a stack, or is a composite image, which is converted
+		to RGB as a whole. */
+	boolean convertStack(ConversionJob job, ImagePlus img) {
+		if (stackMode==FIRST_SLICE || img.getStackSize()<2 || img.isComposite())
+			return false;
+		img = process(img);
+		if (img==null) return true;
+		StackConverter sc = new StackConverter(this, specs, metrics, stackMode==MULTI_PAGE);
+		String path = sc.convert(img, job);
+		IJ.log(job+": "+img.getStackSize()+" slices");
+		img.close();
+		if (path!=null)
+			record(job, path);
+		return true;
+	}
+
+	/** Runs the conversion steps selected in the dialog on an image and
+		returns the images to write, one for each output spec, or null if
+		the image should not be written. Only uses the static options and
+		the specs, so it can be called from several threads. The pixels
+		of the source that no output uses go back to the buffer pool. */
+	ImagePlus[] processImage(ImagePlus img) {
+		BatchMetrics.Timer timer = metrics.start(BatchMetrics.PROCESS);
+		img = process(img);
+		if (img==null) return null;
+		ImagePlus source = img;
+		if (img.isComposite())
+			img = convertToRGB(img);
+		if (img.getStackSize()>1)
+			img = getFirstSlice(img);
+		if (img!=source)
+			pool.release(new ImagePlus[] {img}, source);
+		return fanOut(img, timer);
+	}
+
+	/** Makes the image of every output spec from a processed image. The
+		grayscale and scaled down versions are made once and shared by the
+		specs that need them, and only copied if a scale bar is drawn on
+		one that another spec still uses. The timer of the processing step
+		is stopped once the shared versions have been made. The pixels of
+		the image and of the shared versions that no output uses go back
+		to the buffer pool. */
+	ImagePlus[] fanOut(ImagePlus img, BatchMetrics.Timer timer) {
+		ImagePlus[] images = new ImagePlus[specs.length];
+		ImagePlus gray = null;
+		java.util.Map<String,ImagePlus> sized = new java.util.HashMap<String,ImagePlus>();
+		java.util.Map<ImageProcessor,Integer> uses = new java.util.IdentityHashMap<ImageProcessor,Integer>();
+		for (int i=0; i<specs.length; i++) {
+			ImagePlus base = img;
+			if (specs[i].grayscale) {
+				if (gray==null)
+					gray = convertToGrayscale(img);
+				base = gray;
+			}
+			int width = specs[i].getWidth(base.getWidth(), base.getHeight());
+			if (width<base.getWidth()) {
+				String key = specs[i].grayscale+","+width;
+				images[i] = sized.get(key);
+				if (images[i]==null) {
+					images[i] = resize(base, width);
+					sized.put(key, images[i]);
+				}
+			} else
+				images[i] = base;
+			Integer n = uses.get(images[i].getProcessor());
+			uses.put(images[i].getProcessor(), n==null ? 1 : n+1);
+		}
+		timer.stop();
+		for (int i=0; i<specs.length; i++) {
+			if (!specs[i].scaleBar && !specs[i].isQuantized())
+				continue;
+			// The scale bar is drawn into the pixels, which are copied
+			// unless no other spec uses them
+			ImageProcessor ip = images[i].getProcessor();
+			int n = uses.get(ip);
+			if (specs[i].scaleBar && n>1) {
+				uses.put(ip, n-1);
+				ip = pool.duplicate(ip);
+			}
+			ImagePlus own = images[i].createImagePlus();
+			own.setProcessor(images[i].getTitle(), ip);
+			images[i] = own;
+			if (specs[i].scaleBar) {
+				timer = metrics.start(BatchMetrics.SCALEBAR);
+				double f = (double)images[i].getWidth()/ReducedDecoder.sourceWidth(img);
+				images[i] = addScaleBar(images[i], Math.max(2, (int)Math.round(16*f)), Math.max(10, (int)Math.round(48*f)));
+				timer.stop();
+			}
+			if (specs[i].isQuantized()) {
+				timer = metrics.start(BatchMetrics.QUANTIZE);
+				images[i] = convertTo8Bits(images[i]);
+				timer.stop();
+			}
+		}
+		java.util.List<ImagePlus> unused = new java.util.ArrayList<ImagePlus>(sized.values());
+		unused.add(img);
+		unused.add(gray);
+		pool.release(images, unused.toArray(new ImagePlus[unused.size()]));
+		return images;
+	}
+
+	/** Scales the image down to the given width, keeping its aspect
+		ratio, and adjusts the calibration. 8-bit and 16-bit images go
+		through PostProcessPipeline, others are averaged and interpolated
+		like "Size..." without running the command, which needs a GUI. */
+	ImagePlus resize(ImagePlus img, int width) {
+		ImageProcessor ip = img.getProcessor();
+		if (ip instanceof ByteProcessor || ip instanceof ShortProcessor) {
+			PostProcessPipeline pipeline = new PostProcessPipeline();
+			pipeline.setResizeWidth(width);
+			pipeline.setBufferPool(pool);
+			return pipeline.apply(img);
+		}
+		int height = Math.max(1, (int)Math.round(width*((double)img.getHeight()/img.getWidth())));
+		int method = ip.getInterpolationMethod();
+		ip.setInterpolationMethod(ImageProcessor.BILINEAR);
+		ImagePlus img2 = img.createImagePlus();
+		img2.setProcessor(img.getTitle(), ip.resize(width, height, true));
+		ip.setInterpolationMethod(method);
+		Calibration cal = img.getCalibration().copy();
+		if (cal.scaled()) {
+			cal.pixelWidth *= (double)img.getWidth()/width;
+			cal.pixelHeight *= (double)img.getHeight()/height;
+		}
+		img2.setCalibration(cal);
+		return img2;
+	}
+
+	/** Saves the images of a job without touching the current image of
+		ImageJ, each to the path of its spec, gives their pixels back to
+		the buffer pool and closes them. The job is recorded in the
+		manifest once every output has been written. */
+	void save(ImagePlus[] images, ConversionJob job) {
+		String first = null;
+		boolean ok = true;
+		for (int i=0; i<specs.length; i++) {
+			String path = saveImage(job, images[i], specs[i].format, specs[i].getOutputPath(job.outputPath));
+			if (path==null)
+				ok = false;
+			else if (first==null)
+				first = path;
+		}
+		release(images);
+		for (int i=0; i<images.length; i++)
+			images[i].close();
+		if (ok)
+			record(job, first);
+	}
+
+	/** Saves one output of a job and returns the path that was written,
+		or null if saving failed. */
+	String saveImage(ConversionJob job, ImagePlus img, String format, String path) {
+		File parent = new File(path).getParentFile();
+		if (parent!=null && !parent.isDirectory())
+			parent.mkdirs();
+		BatchMetrics.Timer timer = metrics.start(BatchMetrics.ENCODE);
+		String saved = ImageSaver.save(img, format, partPath(path));
+		if (saved!=null)
+			saved = publish(saved);
+		if (saved!=null)
+			job.written.add(saved);
+		timer.stop(saved!=null ? new File(saved).length() : 0);
+		if (saved==null)
+			IJ.log("Could not save "+path);
+		return saved;
+	}
+
+	/** Gives the pixels of images that have been written back to the
+		buffer pool, except those of the kept images. */
+	void release(ImagePlus[] images, ImagePlus... keep) {
+		pool.release(keep, images);
+	}
+
+	/** Records in the manifest, or as done for the other processes of
+		a sharded run, that the job has been converted, and counts it
+		in the metrics. */
+	void record(ConversionJob job, String output) {
+		metrics.countImage();
+		if (manifest!=null)
+			manifest.record(job, optionsKey(), output);
+		if (claims!=null)
+			claims.complete(job, output);
+		if (index!=null)
+			index.record(job, optionsKey());
+	}
+
+	/** Called when a job leaves the conversion, converted or not. Gives
+		up its claim in a sharded run if it was not converted, so that
+		another process can try it, and the memory reserved for it. */
+	void finish(ConversionJob job) {
+		if (claims!=null)
+			claims.release(job);
+		if (budget!=null)
+			budget.release(job);
+	}
+
+	/** The path to write an output to. Outputs are written under a
+		temporary name and renamed with publish() once complete, so
+		that other processes never see a partial file and an output
+		that is a hard link to another one (see ContentIndex) is
+		replaced rather than written through. */
+	String partPath(String path) {
+		return WorkClaims.partPath(path);
+	}
+
+	/** Gives an output written to partPath() its final name. Returns
+		the final path, or null if it could not be renamed. */
+	String publish(String written) {
+		return WorkClaims.publish(written);
+	}
+
 	/** This is the place to add code to process each image. The image 
 		is not written if this method returns null. */
 	public ImagePlus process(ImagePlus img) {
@@ -131,14 +822,14 @@ public class Batch_Converter implements PlugIn {
 		return img;
 	}
 
+	/** Reduces RGB images to 256 colors with the same median cut as
+		MedianCut, see ColorQuantizer, and other images to 8 bits. */
 	ImagePlus convertTo8Bits(ImagePlus img) {
 		ImageProcessor ip = img.getProcessor();
 		if (ip instanceof ColorProcessor) {
-			MedianCut mc = new MedianCut((int[])ip.getPixels(), ip.getWidth(), ip.getHeight());
-			img.setProcessor(null, mc.convertToByte(256));
+			img.setProcessor(null, quantizer.quantize((ColorProcessor)ip, pool.getBytes(ip.getPixelCount())));
 		} else {
-			ip = ip.convertToByte(true);
-			img.setProcessor(null, ip);
+			img.setProcessor(null, toByte(ip));
 		}
 		return img;
 	}
@@ -158,11 +849,34 @@ public class Batch_Converter implements PlugIn {
 
 	ImagePlus convertToGrayscale(ImagePlus img) {
 		ImagePlus img2 = img.createImagePlus();
-		img2.setProcessor(img.getTitle(), img.getProcessor().convertToByte(true));
+		img2.setProcessor(img.getTitle(), toByte(img.getProcessor()));
 		return img2;
 	}
 
+	/** Converts to 8 bits like convertToByte(true), with the 16-bit and
+		RGB pixels converted into an array from the buffer pool. */
+	ImageProcessor toByte(ImageProcessor ip) {
+		int w = ip.getWidth(), h = ip.getHeight();
+		if (ip instanceof ShortProcessor) {
+			byte[] pixels = pool.getBytes(w*h);
+			PixelKernels.toByte((short[])ip.getPixels(), pixels, (int)ip.getMin(), (int)ip.getMax());
+			return new ByteProcessor(w, h, pixels, ip.getCurrentColorModel());
+		}
+		if (ip instanceof ColorProcessor) {
+			double[] weights = ((ColorProcessor)ip).getRGBWeights();
+			byte[] pixels = pool.getBytes(w*h);
+			PixelKernels.toByte((int[])ip.getPixels(), pixels, weights!=null ? weights : ColorProcessor.getWeightingFactors());
+			return new ByteProcessor(w, h, pixels, null);
+		}
+		return ip.convertToByte(true);
+	}
+
     ImagePlus addScaleBar(ImagePlus img) {
+	return addScaleBar(img, 16, 48);
+    }
+
+    /** Draws a scale bar of the given height and font size on the image. */
+    ImagePlus addScaleBar(ImagePlus img, int height, int font) {
 	Calibration cal = img.getCalibration();
 	//if (!cal.calibrated())
 	//    return img; // Don't do anything if not calibrated
@@ -175,62 +889,124 @@ public class Batch_Converter implements PlugIn {
 	int imageWidth = imageDimensions[0];
 	double imageWidthInUnits = cal.getX((double)imageWidth);
 	
-	double width = imageWidthInUnits / 4.0;
-	double decade;
-	if (width > 1000.0) 
-	    decade = 1000.0;
-	else if (width > 100.0)
-	    decade = 100.0;
-	else if (width > 10.0)
-	    decade = 10.0;
-	else if (width > 1.0)
-	    decade = 1.0;
-	else if (width > 0.1)
-	    decade = 0.1;
-	else if (width > 0.01)
-	    decade = 0.01;
-	else 
-	    decade = 0.001;
-
-	width = Math.floor((width/decade)+0.5)*decade;
+	double width = ScaleBarRenderer.getDefaultWidth(imageWidthInUnits);
 	IJ.log("Scalebar width: "+width+pixelUnit);
 
-	double height = 16.0;
-	double font = 48.0;
-	String color = "Black";
-	String bgcolor = "White";
-	String location = "[Lower Left]";
-	String options = "bold overlay";
-	IJ.run(img, "Scale Bar...", "width="+width+" height="+height+" unit="+pixelUnit+" font="+font+" color="+color+" background="+bgcolor+" location="+location+" "+options);
-	
-	// Make semitransparent bg
-	Overlay ol = img.getOverlay();
-	if (ol.size() == 3) {
-	    Roi r = ol.get(0); // This should be the bg
-	    r.setFillColor(new Color(255,255,255,128));
-	    r.setStrokeColor(new Color(0,0,0,255));
-	}
-	ImagePlus flatImg = img.flatten();
-	flatImg.copyScale(img);
-	img = flatImg;
+	// Draw the bar straight into the pixels, there is no overlay to flatten
+	new ScaleBarRenderer(height, font).draw(img.getProcessor(), cal, width);
 	
 	return img;
     }
 
+	/** Sets the static options from command line arguments. Returns the
+		index of the first argument that is not an option, or -1 if an
+		option is not known. */
+	static int parseOptions(String args[]) {
+		int first = 0;
+		while (first<args.length && args[first].startsWith("-")) {
+			String opt = args[first++];
+			if (opt.equals("-threads") && first<args.length)
+				threads = Math.max(1, Integer.parseInt(args[first++]));
+			else if (opt.equals("-format") && first<args.length)
+				format = args[first++];
+			else if (opt.equals("-filter") && first<args.length)
+				filter = args[first++];
+			else if (opt.equals("-recursive"))
+				recursive = true;
+			else if (opt.equals("-incremental"))
+				incremental = true;
+			else if (opt.equals("-watch"))
+				watch = true;
+			else if (opt.equals("-quiet") && first<args.length)
+				quietMillis = Math.max(0, Integer.parseInt(args[first++]));
+			else if (opt.equals("-metrics") && first<args.length)
+				metricsPath = args[first++];
+			else if (opt.equals("-metrics-interval") && first<args.length)
+				metricsInterval = Integer.parseInt(args[first++]);
+			else if (opt.equals("-tiled"))
+				tiled = true;
+			else if (opt.equals("-shared-palette"))
+				sharedPalette = true;
+			else if (opt.equals("-dedup"))
+				dedup = true;
+			else if (opt.equals("-shard"))
+				shard = true;
+			else if (opt.equals("-memory") && first<args.length)
+				memoryBudget = Math.max(0, Integer.parseInt(args[first++]));
+			else if (opt.equals("-shard-timeout") && first<args.length)
+				shardTimeout = Math.max(1, Integer.parseInt(args[first++]));
+			else if (opt.equals("-stack") && first<args.length) {
+				String mode = args[first++];
+				if (mode.equals("pages"))
+					stackMode = MULTI_PAGE;
+				else if (mode.equals("files"))
+					stackMode = PER_SLICE;
+				else if (mode.equals("first"))
+					stackMode = FIRST_SLICE;
+				else
+					return -1;
+			} else if (opt.equals("-output") && first<args.length)
+				outputs += (outputs.length()>0 ? ";" : "")+args[first++];
+			else if (opt.equals("-grayscale"))
+				convertToGrayscale = true;
+			else if (opt.equals("-scalebar"))
+				addScaleBar = true;
+			else if (opt.equals("-size") && first<args.length)
+				size = args[first++];
+			else
+				return -1;
+		}
+		return first;
+	}
+
 	/**	Run Batch_Converter using a command something like
 			"java -cp ij.jar;. Batch_Converter c:\dir1\ c:\dir2\"
 		or (Unix)
 			"java -cp ij.jar:. Batch_Converter /users/wayne/dir1 /users/wayne/dir2/"
+		Add "-threads n" before the folders to convert n files at a time,
+		"-recursive" to include subfolders and "-filter *.dm3" to convert
+		only the files whose names match the pattern. With "-incremental"
+		files that are already converted are skipped. "-watch" keeps
+		converting the images that arrive in srcdir until the process is
+		stopped; a file is converted once it and its .txt sidecar have not
+		changed for 2000 ms, or "-quiet ms". "-format PNG",
+		"-grayscale", "-scalebar" and "-size 800x600" match the choices of
+		the dialog; the default format is Jpeg. "-metrics run.csv" (or run.json) writes
+		the time spent in each stage at the end; a summary is logged every
+		10 seconds, or "-metrics-interval s", 0 to turn it off. TIFFs larger
+		than 1/8 of the heap are converted to TIFF a band of rows at a time;
+		"-tiled" does that for all TIFFs. Each "-output spec", for example
+		"-output PNG,scalebar,800x600" or "-output JPEG,200,suffix=_thumb",
+		writes one more file from the same decoded image, see OutputSpec.
+		Stacks are reduced to their first slice; "-stack pages" converts
+		every slice and writes TIFF outputs as multi-page files, and
+		"-stack files" writes one file per slice. With "-shared-palette"
+		8-bit Color TIFF and GIF outputs all use the palette of the
+		first color image converted, in the order of the files, also
+		with several threads. With "-shard" any number of processes, on this or
+		other hosts, can convert the same srcdir into the same dstdir:
+		each file is claimed by one of them, see WorkClaims, and a claim
+		left by a process that died is taken over after 600 seconds, or
+		"-shard-timeout s". Sharded runs are always incremental. With
+		"-dedup" a file that is a copy of one converted before, in this
+		or an earlier run, gets hard links to the outputs of the first
+		one instead of being converted, see ContentIndex. With more
+		than one thread, a file is only started when the memory it is
+		estimated to need, read from its header, fits in 3/4 of the
+		heap, or "-memory mb"; smaller files go ahead of one that has
+		to wait, see MemoryBudget. When every output is scaled down, a
+		single image TIFF, BMP or JPEG is decoded at the size of the
+		largest one, see ReducedDecoder.
 	*/
 	public static void main(String args[]) {
-		if (args.length<2)
-			IJ.log("usage: java Batch_Converter srcdir dstdir");
+		format = "Jpeg";
+		int first = parseOptions(args);
+		if (first<0 || args.length-first<2)
+			IJ.log("usage: java Batch_Converter [-threads n] [-format name] [-grayscale] [-scalebar] [-size wxh] [-recursive] [-filter glob] [-incremental] [-watch] [-quiet ms] [-metrics file] [-metrics-interval s] [-tiled] [-output spec]... [-stack first|pages|files] [-shared-palette] [-shard] [-shard-timeout s] [-dedup] [-memory mb] srcdir dstdir");
 		else {
-			new Batch_Converter().convert(args[0], args[1], "Jpeg");
+			new Batch_Converter().convert(args[first], args[first+1], format);
 			System.exit(0);
 		}
 	}
 
 }
-
-
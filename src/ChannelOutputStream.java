@@ -0,0 +1,123 @@
+/*
+ * @(#)ChannelOutputStream.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+
+/**
+ * An output stream that writes to a file through a FileChannel and a large
+ * direct buffer, so that the bytes go to the operating system in big pieces
+ * without being copied to a heap array first. The position of the stream is
+ * kept, and bytes already written can be overwritten with writeAt(), which
+ * is used to fill in sizes and checksums once they are known.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ChannelOutputStream extends OutputStream {
+
+    static final int BUFFER_SIZE = 1<<20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private long position;
+
+    /** Creates or truncates the file. */
+    ChannelOutputStream(String path) throws IOException {
+	this(path, BUFFER_SIZE);
+    }
+
+    ChannelOutputStream(String path, int bufferSize) throws IOException {
+	this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	this.buffer = ByteBuffer.allocateDirect(bufferSize);
+    }
+
+    /** Number of bytes written to the stream so far. */
+    long position() {
+	return position;
+    }
+
+    public void write(int b) throws IOException {
+	if (!buffer.hasRemaining())
+	    drain();
+	buffer.put((byte)b);
+	position++;
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	position += len;
+	while (len>0) {
+	    if (!buffer.hasRemaining())
+		drain();
+	    int n = Math.min(len, buffer.remaining());
+	    buffer.put(b, off, n);
+	    off += n;
+	    len -= n;
+	}
+    }
+
+    /**
+     * Overwrites bytes that were written earlier, at the given position
+     * from the start of the file. The buffered bytes are written first.
+     */
+    void writeAt(byte[] b, long pos) throws IOException {
+	drain();
+	ByteBuffer bb = ByteBuffer.wrap(b);
+	while (bb.hasRemaining())
+	    channel.write(bb, pos+bb.position());
+    }
+
+    private void drain() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+	buffer.clear();
+    }
+
+    public void flush() throws IOException {
+	drain();
+    }
+
+    public void close() throws IOException {
+	if (!channel.isOpen())
+	    return;
+	try {
+	    drain();
+	}
+	finally {
+	    channel.close();
+	}
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * @(#)ColorQuantizer.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.awt.image.IndexColorModel;
+import java.util.Arrays;
+import ij.process.*;
+
+/**
+ * Reduces RGB images to 8-bit indexed color with the median cut of ImageJ's
+ * MedianCut: the same 32x32x32 histogram, the same boxes and the same
+ * centroids, so the pixels and the palette are the same as with MedianCut.
+ * It is faster because
+ * <ul>
+ * <li>the histogram and the final mapping of the pixels are done on all
+ *     cores, each core working on its own block of pixels,
+ * <li>the boxes are kept in primitive arrays, and the colors of a box, which
+ *     are distinct 15-bit numbers, are sorted by setting and reading back
+ *     their bits in a 32768-bit set instead of with a quicksort, and
+ * <li>the histogram and sort arrays are kept from one image to the next
+ *     instead of being allocated again.
+ * </ul>
+ * With a shared palette, the palette of the first image is used for all
+ * the following ones, which then only need the mapping pass. The colors
+ * that were not in the first image are mapped to the nearest palette color.
+ * The first image is the first one to be quantized, so a caller that
+ * quantizes on several threads quantizes one image at a time until
+ * needsPalette() returns false.
+ * This suits series of similar images, such as SEM micrographs with the
+ * same scale bar.
+ *
+ * A quantizer can be used from several threads at the same time.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ColorQuantizer {
+
+    private static final int HSIZE = 32768;
+    /** Smallest block of pixels given to a core. */
+    private static final int MIN_BLOCK = 1<<17;
+
+    /** Histogram and sort buffer of the calling thread. */
+    private static final ThreadLocal<int[][]> buffers = new ThreadLocal<int[][]>() {
+	    protected int[][] initialValue() {
+		return new int[][] {new int[HSIZE], new int[HSIZE]};
+	    }
+	};
+    /** Histogram of a block, for the threads working on the blocks. */
+    private static final ThreadLocal<int[]> blockHistogram = new ThreadLocal<int[]>() {
+	    protected int[] initialValue() {
+		return new int[HSIZE];
+	    }
+	};
+
+    private final int maxColors;
+    private final boolean sharedPalette;
+    private int[] sharedMap;
+    private IndexColorModel sharedColorModel;
+
+    /**
+     * @param maxColors		number of colors, at most 256
+     * @param sharedPalette	true to use the palette of the first image
+     *				for all images
+     */
+    public ColorQuantizer(int maxColors, boolean sharedPalette) {
+	this.maxColors = Math.max(2, Math.min(256, maxColors));
+	this.sharedPalette = sharedPalette;
+    }
+
+    /** Returns true if the palette is shared and has not been made yet. */
+    public synchronized boolean needsPalette() {
+	return sharedPalette && sharedMap==null;
+    }
+
+    /** Returns an 8-bit indexed color version of the image. */
+    public ByteProcessor quantize(ColorProcessor cp) {
+	return quantize(cp, new byte[cp.getWidth()*cp.getHeight()]);
+    }
+
+    /**
+     * Returns an 8-bit indexed color version of the image, with the pixels
+     * written into the given array, which must have one byte per pixel.
+     */
+    public ByteProcessor quantize(ColorProcessor cp, byte[] pixels8) {
+	int[] pixels = (int[])cp.getPixels();
+	int[] map;
+	IndexColorModel cm;
+	if (sharedPalette) {
+	    synchronized (this) {
+		if (sharedMap==null) {
+		    int[] hist = new int[HSIZE];
+		    histogram(pixels, hist);
+		    boolean[] present = new boolean[HSIZE];
+		    for (int i=0; i<HSIZE; i++)
+			present[i] = hist[i]!=0;
+		    sharedColorModel = medianCut(hist, buffers.get()[1]);
+		    mapMissingColors(hist, present, sharedColorModel);
+		    sharedMap = hist;
+		}
+		map = sharedMap;
+		cm = sharedColorModel;
+	    }
+	} else {
+	    int[][] b = buffers.get();
+	    map = b[0];
+	    Arrays.fill(map, 0);
+	    histogram(pixels, map);
+	    cm = medianCut(map, b[1]);
+	}
+	mapPixels(pixels, pixels8, map);
+	return new ByteProcessor(cp.getWidth(), cp.getHeight(), pixels8, cm);
+    }
+
+    /** Convert from 24-bit to 15-bit color, red in the lowest bits. */
+    private static int rgb(int c) {
+	return (c&0xf80000)>>19 | (c&0xf800)>>6 | (c&0xf8)<<7;
+    }
+
+    private static int red(int x) {
+	return (x&31)<<3;
+    }
+
+    private static int green(int x) {
+	return (x>>2)&0xf8;
+    }
+
+    private static int blue(int x) {
+	return (x>>7)&0xf8;
+    }
+
+    /** Adds the 15-bit colors of the pixels to the histogram. */
+    private static void histogram(final int[] pixels, final int[] hist) {
+	PixelKernels.forEachBlock(pixels.length, MIN_BLOCK, new PixelKernels.Block() {
+		public void run(int from, int to) {
+		    int[] h = blockHistogram.get();
+		    Arrays.fill(h, 0);
+		    for (int i=from; i<to; i++)
+			h[rgb(pixels[i])]++;
+		    synchronized (hist) {
+			for (int i=0; i<HSIZE; i++)
+			    hist[i] += h[i];
+		    }
+		}
+	    });
+    }
+
+    /** Looks up the palette index of every pixel. */
+    private static void mapPixels(final int[] pixels, final byte[] pixels8, final int[] map) {
+	PixelKernels.forEachBlock(pixels.length, MIN_BLOCK, new PixelKernels.Block() {
+		public void run(int from, int to) {
+		    for (int i=from; i<to; i++)
+			pixels8[i] = (byte)map[rgb(pixels[i])];
+		}
+	    });
+    }
+
+    /**
+     * Divides the colors of the histogram into at most maxColors boxes
+     * exactly like MedianCut.convertToByte and returns the palette of their
+     * centroids. The histogram is then turned into the inverse color map,
+     * the palette index of every 15-bit color that occurs.
+     *
+     * @param hist	the histogram, becomes the inverse map
+     * @param histPtr	buffer for the colors that occur, HSIZE long
+     */
+    private IndexColorModel medianCut(int[] hist, int[] histPtr) {
+	long[] bits = new long[HSIZE/64];
+	int[] lower = new int[maxColors], upper = new int[maxColors];
+	int[] count = new int[maxColors], level = new int[maxColors];
+	int[] min = new int[3*maxColors], max = new int[3*maxColors];
+
+	int colors = 0, total = 0;
+	for (int i=0; i<HSIZE; i++) {
+	    if (hist[i]!=0) {
+		histPtr[colors++] = i;
+		total += hist[i];
+	    }
+	}
+	int ncubes = 1;
+	lower[0] = 0;
+	upper[0] = colors-1;
+	count[0] = total;
+	shrink(histPtr, 0, lower, upper, min, max);
+
+	while (ncubes<maxColors) {
+	    // The lowest level box that has more than one color
+	    int lowest = 255, split = -1;
+	    for (int k=0; k<ncubes; k++) {
+		if (lower[k]!=upper[k] && level[k]<lowest) {
+		    lowest = level[k];
+		    split = k;
+		}
+	    }
+	    if (split==-1)
+		break;
+
+	    int lr = max[3*split]-min[3*split];
+	    int lg = max[3*split+1]-min[3*split+1];
+	    int lb = max[3*split+2]-min[3*split+2];
+	    int longdim = 0;
+	    if (lr>=lg && lr>=lb) longdim = 0;
+	    if (lg>=lr && lg>=lb) longdim = 1;
+	    if (lb>=lr && lb>=lg) longdim = 2;
+
+	    // Sort along the longest dimension, then the two others
+	    int lo = lower[split], hi = upper[split];
+	    reorderColors(histPtr, lo, hi, longdim);
+	    sort(histPtr, lo, hi, bits);
+	    restoreColorOrder(histPtr, lo, hi, longdim);
+
+	    int c = 0, i;
+	    for (i=lo; i<=hi-1; i++) {
+		if (c>=count[split]/2) break;
+		c += hist[histPtr[i]];
+	    }
+	    int median = i;
+
+	    int b = ncubes++;
+	    lower[b] = median;
+	    upper[b] = hi;
+	    count[b] = count[split]-c;
+	    level[b] = level[split]+1;
+	    shrink(histPtr, b, lower, upper, min, max);
+	    upper[split] = median-1;
+	    count[split] = c;
+	    level[split]++;
+	    shrink(histPtr, split, lower, upper, min, max);
+	}
+
+	// The centroids are the palette, summed in floats like MedianCut
+	byte[] rLUT = new byte[256], gLUT = new byte[256], bLUT = new byte[256];
+	for (int k=0; k<ncubes; k++) {
+	    float rsum = 0f, gsum = 0f, bsum = 0f;
+	    for (int i=lower[k]; i<=upper[k]; i++) {
+		int color = histPtr[i];
+		rsum += (float)red(color)*(float)hist[color];
+		gsum += (float)green(color)*(float)hist[color];
+		bsum += (float)blue(color)*(float)hist[color];
+	    }
+	    int r = (int)(rsum/(float)count[k]);
+	    int g = (int)(gsum/(float)count[k]);
+	    int b = (int)(bsum/(float)count[k]);
+	    if (r==248 && g==248 && b==248)
+		r = g = b = 255; // Restore white
+	    rLUT[k] = (byte)r;
+	    gLUT[k] = (byte)g;
+	    bLUT[k] = (byte)b;
+	}
+	for (int k=0; k<ncubes; k++)
+	    for (int i=lower[k]; i<=upper[k]; i++)
+		hist[histPtr[i]] = k;
+	return new IndexColorModel(8, ncubes, rLUT, gLUT, bLUT);
+    }
+
+    /**
+     * Sorts distinct 15-bit numbers by setting their bits and reading them
+     * back in order. The bit set is cleared again on the way.
+     */
+    private static void sort(int[] a, int lo, int hi, long[] bits) {
+	int first = HSIZE, last = 0;
+	for (int i=lo; i<=hi; i++) {
+	    int c = a[i];
+	    bits[c>>6] |= 1L<<c;
+	    if (c<first) first = c;
+	    if (c>last) last = c;
+	}
+	int k = lo;
+	for (int w=first>>6; w<=last>>6; w++) {
+	    long x = bits[w];
+	    bits[w] = 0L;
+	    while (x!=0L) {
+		a[k++] = w<<6 | Long.numberOfTrailingZeros(x);
+		x &= x-1;
+	    }
+	}
+    }
+
+    /** Sets the bounds of a box to the colors it holds. */
+    private static void shrink(int[] histPtr, int k, int[] lower, int[] upper, int[] min, int[] max) {
+	int rmin = 255, rmax = 0, gmin = 255, gmax = 0, bmin = 255, bmax = 0;
+	for (int i=lower[k]; i<=upper[k]; i++) {
+	    int color = histPtr[i];
+	    int r = red(color), g = green(color), b = blue(color);
+	    if (r>rmax) rmax = r;
+	    if (r<rmin) rmin = r;
+	    if (g>gmax) gmax = g;
+	    if (g<gmin) gmin = g;
+	    if (b>bmax) bmax = b;
+	    if (b<bmin) bmin = b;
+	}
+	min[3*k] = rmin; min[3*k+1] = gmin; min[3*k+2] = bmin;
+	max[3*k] = rmax; max[3*k+1] = gmax; max[3*k+2] = bmax;
+    }
+
+    /** Moves the 5 bits of the longest dimension to the top, for sorting. */
+    private static void reorderColors(int[] a, int lo, int hi, int longdim) {
+	if (longdim==0) {
+	    for (int i=lo; i<=hi; i++) {
+		int c = a[i];
+		a[i] = (c&31)<<10 | c>>5;
+	    }
+	} else if (longdim==1) {
+	    for (int i=lo; i<=hi; i++) {
+		int c = a[i];
+		a[i] = ((c>>5)&31)<<10 | (c>>10)<<5 | (c&31);
+	    }
+	}
+    }
+
+    private static void restoreColorOrder(int[] a, int lo, int hi, int longdim) {
+	if (longdim==0) {
+	    for (int i=lo; i<=hi; i++) {
+		int c = a[i];
+		a[i] = (c&1023)<<5 | c>>10;
+	    }
+	} else if (longdim==1) {
+	    for (int i=lo; i<=hi; i++) {
+		int c = a[i];
+		a[i] = ((c>>5)&31)<<10 | (c>>10)<<5 | (c&31);
+	    }
+	}
+    }
+
+    /** Maps the colors that are not in the histogram to the nearest color of the palette. */
+    private static void mapMissingColors(int[] map, boolean[] present, IndexColorModel cm) {
+	int n = cm.getMapSize();
+	int[] r = new int[n], g = new int[n], b = new int[n];
+	for (int k=0; k<n; k++) {
+	    r[k] = cm.getRed(k);
+	    g[k] = cm.getGreen(k);
+	    b[k] = cm.getBlue(k);
+	}
+	for (int x=0; x<HSIZE; x++) {
+	    if (present[x])
+		continue;
+	    int best = 0, bestDist = Integer.MAX_VALUE;
+	    for (int k=0; k<n; k++) {
+		int dr = red(x)+4-r[k], dg = green(x)+4-g[k], db = blue(x)+4-b[k];
+		int d = dr*dr+dg*dg+db*db;
+		if (d<bestDist) {
+		    bestDist = d;
+		    best = k;
+		}
+	    }
+	    map[x] = best;
+	}
+    }
+}
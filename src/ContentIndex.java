@@ -0,0 +1,514 @@
+/*
+ * @(#)ContentIndex.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.security.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+
+/**
+ * Finds source files that are byte for byte copies of files converted
+ * before, such as session folders copied into several projects, so that
+ * Batch_Converter can link the outputs already written instead of decoding
+ * and encoding the copy again. Every source is hashed with SHA-256, read
+ * through a FileChannel in 1 MB chunks. The hashing runs a few files ahead
+ * of the conversion on threads of its own, so it overlaps with the decoding
+ * and encoding of the files before, and a file is usually still in the
+ * operating system's cache when it is decoded. A source with a JEOL .txt
+ * sidecar, which gives its calibration and so its scale bar, is only a
+ * duplicate of one whose sidecar has the same contents too: the hash of
+ * the sidecar is added to that of the source.
+ *
+ * The index maps the hash and the conversion options to the outputs of the
+ * first source converted with them. It is kept in a text file in the
+ * destination folder, one tab separated line per source, which is appended
+ * to as files are converted and rewritten when the run ends, so copies spread
+ * over an archive and over many runs are found. Processes that convert into
+ * the same folder at the same time append to files of their own, and each
+ * merges its file into the index when it ends. The index is only rewritten
+ * under a lock file, after reading it again, so that runs ending at the same
+ * time keep each other's entries. A duplicate gets hard links
+ * to the outputs, or copies where links are not possible, named as its own
+ * outputs would be. Outputs that have been deleted since are converted
+ * again.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ContentIndex implements Closeable {
+
+    /** Name of the index file in the destination folder. */
+    static final String FILE_NAME = ".Batch_Converter.hashes";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    /** Number of files hashed ahead of the conversion. */
+    private static final int AHEAD = 4;
+    private static final int CHUNK = 1<<20;
+    /** Milliseconds to wait for another process to merge its file. */
+    private static final long LOCK_WAIT = 10000;
+    /** Milliseconds after which a merge lock was left by a process that died. */
+    private static final long LOCK_TIMEOUT = 60000;
+    /** Milliseconds after which the file of another process that has not
+	changed was left by a process that died: a day. */
+    private static final long ABANDONED = 24*3600*1000L;
+
+    private static volatile ExecutorService pool;
+    private static final ThreadLocal<ByteBuffer> buffers = new ThreadLocal<ByteBuffer>() {
+	    protected ByteBuffer initialValue() {
+		return ByteBuffer.allocateDirect(CHUNK);
+	    }
+	};
+
+    private final File file;
+    private final boolean shared;
+    /** The files of other processes that were read. */
+    private final List<File> others = new ArrayList<File>();
+    /** The outputs of a hash and options, as the key "hash\toptions". */
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+    /** The entries recorded in this run. */
+    private final Map<String,Entry> recorded = new HashMap<String,Entry>();
+    private Writer out;
+    private Thread feeder;
+
+    /** The outputs recorded for one source. */
+    private static class Entry {
+	/** The output path of the source without its extension, which
+	    every output starts with. */
+	String base;
+	String[] outputs;
+    }
+
+    /**
+     * Reads the index of the destination folder, if there is one. With
+     * several processes converting into the same folder each one appends
+     * to a file of its own, and all of them are read, also those left by
+     * processes that did not end normally.
+     *
+     * @param dir2	the destination folder
+     * @param name	the file to record to, FILE_NAME unless the folder
+     *			is shared with other processes
+     */
+    ContentIndex(String dir2, String name) {
+	this.file = new File(dir2, name);
+	this.shared = !name.equals(FILE_NAME);
+	for (File f : files(new File(dir2))) {
+	    read(f, entries);
+	    if (!f.getName().equals(FILE_NAME) && !f.equals(file))
+		others.add(f);
+	}
+    }
+
+    /** The index and the files of the processes that record into the folder. */
+    private static List<File> files(File dir2) {
+	List<File> list = new ArrayList<File>();
+	File[] files = dir2.listFiles(new FilenameFilter() {
+		public boolean accept(File dir, String n) {
+		    return n.startsWith(FILE_NAME) && !n.endsWith(".tmp") && !n.endsWith(".lock");
+		}
+	    });
+	if (files!=null)
+	    list.addAll(Arrays.asList(files));
+	return list;
+    }
+
+    private static void read(File f, Map<String,Entry> entries) {
+	try {
+	    BufferedReader in = Files.newBufferedReader(f.toPath(), UTF8);
+	    try {
+		String line;
+		while ((line = in.readLine())!=null) {
+		    String[] fields = line.split("\t");
+		    if (fields.length<4)
+			continue; // Partly written line from an interrupted run
+		    Entry e = new Entry();
+		    e.base = fields[2];
+		    e.outputs = Arrays.copyOfRange(fields, 3, fields.length);
+		    entries.put(fields[0]+"\t"+fields[1], e);
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (NoSuchFileException e) {
+	    // Merged into the index by its process since the folder was listed
+	}
+	catch (IOException e) {
+	    IJ.log("Could not read "+f+": "+e);
+	}
+    }
+
+    private static ExecutorService getPool() {
+	if (pool==null) {
+	    synchronized (ContentIndex.class) {
+		if (pool==null) {
+		    pool = Executors.newFixedThreadPool(2, new ThreadFactory() {
+			    private int n;
+			    public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "ContentIndex-"+(n++));
+				t.setDaemon(true);
+				return t;
+			    }
+			});
+		}
+	    }
+	}
+	return pool;
+    }
+
+    /**
+     * Returns the jobs of the given source with their hashes. A thread of
+     * its own takes the jobs from the source and hashes up to AHEAD of
+     * them while the ones before are converted.
+     */
+    Iterator<ConversionJob> hashAhead(final Iterator<ConversionJob> jobs) {
+	final BlockingQueue<Future<ConversionJob>> ahead = new ArrayBlockingQueue<Future<ConversionJob>>(AHEAD);
+	final FutureTask<ConversionJob> end = new FutureTask<ConversionJob>(new Callable<ConversionJob>() {
+		public ConversionJob call() {
+		    return null;
+		}
+	    });
+	end.run();
+	feeder = new Thread("ContentIndex-feeder") {
+		public void run() {
+		    try {
+			while (jobs.hasNext()) {
+			    final ConversionJob job = jobs.next();
+			    ahead.put(getPool().submit(new Callable<ConversionJob>() {
+				    public ConversionJob call() {
+					try {
+					    job.hash = hash(job.source);
+					    File txt = new File(job.source.getParentFile(), JeolSidecar.sidecarName(job.source.getName()));
+					    if (txt.isFile() && !txt.equals(job.source))
+						job.hash += "+"+hash(txt);
+					}
+					catch (IOException e) {
+					    IJ.log(job+": could not hash: "+e);
+					}
+					return job;
+				    }
+				}));
+			}
+			ahead.put(end);
+		    }
+		    catch (InterruptedException e) {
+			ahead.offer(end);
+		    }
+		}
+	    };
+	feeder.setDaemon(true);
+	feeder.start();
+	return new Iterator<ConversionJob>() {
+	    private ConversionJob next;
+	    private boolean ended;
+
+	    public boolean hasNext() {
+		while (next==null && !ended) {
+		    try {
+			next = ahead.take().get();
+			ended = next==null;
+		    }
+		    catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			ended = true;
+		    }
+		    catch (ExecutionException e) {
+			IJ.log("Hashing failed: "+e.getCause());
+		    }
+		}
+		return next!=null;
+	    }
+
+	    public ConversionJob next() {
+		if (!hasNext())
+		    throw new NoSuchElementException();
+		ConversionJob job = next;
+		next = null;
+		return job;
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    /** Returns the SHA-256 of the contents of a file as a hex string. */
+    static String hash(File f) throws IOException {
+	MessageDigest md;
+	try {
+	    md = MessageDigest.getInstance("SHA-256");
+	}
+	catch (NoSuchAlgorithmException e) {
+	    throw new IOException(e.toString());
+	}
+	ByteBuffer b = buffers.get();
+	FileChannel channel = FileChannel.open(f.toPath(), StandardOpenOption.READ);
+	try {
+	    b.clear();
+	    while (channel.read(b)>=0) {
+		b.flip();
+		md.update(b);
+		b.clear();
+	    }
+	}
+	finally {
+	    channel.close();
+	}
+	byte[] d = md.digest();
+	StringBuilder sb = new StringBuilder(2*d.length);
+	for (int i=0; i<d.length; i++)
+	    sb.append(Character.forDigit((d[i]>>4)&15, 16)).append(Character.forDigit(d[i]&15, 16));
+	return sb.toString();
+    }
+
+    /**
+     * If a source with the same contents has been converted with the same
+     * options and its outputs are still there, links or copies them to the
+     * outputs of the job and returns them. Returns null if the job has to be
+     * converted.
+     */
+    List<String> linkDuplicate(ConversionJob job, String options) {
+	if (job.hash==null)
+	    return null;
+	Entry e;
+	synchronized (this) {
+	    e = entries.get(job.hash+"\t"+options);
+	}
+	String base = base(job.outputPath);
+	if (e==null || e.base.equals(base))
+	    return null;
+	for (String output : e.outputs)
+	    if (!new File(output).isFile())
+		return null;
+	List<String> linked = new ArrayList<String>();
+	for (String output : e.outputs) {
+	    String path = base+output.substring(e.base.length());
+	    String part = WorkClaims.partPath(path);
+	    try {
+		File parent = new File(path).getParentFile();
+		if (parent!=null && !parent.isDirectory())
+		    parent.mkdirs();
+		link(new File(output), new File(part));
+		if (WorkClaims.publish(part)==null)
+		    return null;
+		linked.add(path);
+	    }
+	    catch (IOException ex) {
+		IJ.log("Could not link "+output+" to "+path+": "+ex);
+		new File(part).delete();
+		return null;
+	    }
+	}
+	return linked;
+    }
+
+    /** Makes a hard link, or a copy if the file system can not link. */
+    private static void link(File existing, File link) throws IOException {
+	Files.deleteIfExists(link.toPath());
+	try {
+	    Files.createLink(link.toPath(), existing.toPath());
+	}
+	catch (IOException e) {
+	    Files.copy(existing.toPath(), link.toPath());
+	}
+	catch (UnsupportedOperationException e) {
+	    Files.copy(existing.toPath(), link.toPath());
+	}
+    }
+
+    /** Records the outputs written for a job that has been converted. */
+    synchronized void record(ConversionJob job, String options) {
+	if (job.hash==null || job.written.isEmpty())
+	    return;
+	Entry e = new Entry();
+	e.base = base(job.outputPath);
+	synchronized (job.written) {
+	    e.outputs = new String[job.written.size()];
+	    for (int i=0; i<e.outputs.length; i++)
+		e.outputs[i] = new File(job.written.get(i)).getAbsolutePath();
+	}
+	String key = job.hash+"\t"+options;
+	entries.put(key, e);
+	recorded.put(key, e);
+	try {
+	    if (out==null) {
+		file.getParentFile().mkdirs();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+	    }
+	    out.write(line(key, e));
+	    out.flush();
+	}
+	catch (IOException ex) {
+	    IJ.log("Could not update "+file+": "+ex);
+	}
+    }
+
+    /** The absolute output path without its extension. */
+    private static String base(String outputPath) {
+	String path = new File(outputPath).getAbsolutePath();
+	int dot = path.lastIndexOf('.');
+	return dot>path.lastIndexOf(File.separatorChar) ? path.substring(0, dot) : path;
+    }
+
+    /**
+     * Stops hashing and rewrites the index with one line per hash and
+     * options. A process that shares the folder with others merges its own
+     * file into the index and deletes it. A run that does not share it
+     * merges in the files of the other processes, and deletes those that
+     * have not changed for a day.
+     */
+    public synchronized void close() {
+	if (feeder!=null)
+	    feeder.interrupt();
+	try {
+	    if (out!=null)
+		out.close();
+	    out = null;
+	}
+	catch (IOException e) {
+	    IJ.log("Could not update "+file+": "+e);
+	    return;
+	}
+	if (shared ? !file.isFile() : recorded.isEmpty() && others.isEmpty())
+	    return; // Nothing was converted, the file is as it was
+	compact();
+    }
+
+    /**
+     * Rewrites the index with what it has now and the files to merge into
+     * it. The index is read again while holding the lock, so the entries
+     * that other processes merged into it meanwhile are kept.
+     */
+    private void compact() {
+	File dir2 = file.getParentFile();
+	File lock = new File(dir2, FILE_NAME+".lock");
+	if (!lock(lock)) {
+	    IJ.log("Could not rewrite "+file+", "+lock+" is held by another process");
+	    return;
+	}
+	try {
+	    Map<String,Entry> merged = new HashMap<String,Entry>();
+	    File index = new File(dir2, FILE_NAME);
+	    if (index.isFile())
+		read(index, merged);
+	    List<File> abandoned = new ArrayList<File>();
+	    if (shared) {
+		read(file, merged);
+	    } else {
+		long now = System.currentTimeMillis();
+		for (File f : files(dir2)) {
+		    if (f.equals(index))
+			continue;
+		    read(f, merged);
+		    if (now-f.lastModified()>ABANDONED)
+			abandoned.add(f);
+		}
+		// The lines appended to an index another process has replaced
+		// since are not in it
+		merged.putAll(recorded);
+	    }
+	    write(merged);
+	    if (shared)
+		file.delete();
+	    for (File f : abandoned)
+		f.delete();
+	}
+	catch (IOException e) {
+	    IJ.log("Could not rewrite "+file+": "+e);
+	}
+	finally {
+	    lock.delete();
+	}
+    }
+
+    /**
+     * Creates the lock file, waiting up to LOCK_WAIT for another process to
+     * give it up. A lock older than LOCK_TIMEOUT is taken over.
+     */
+    private static boolean lock(File lock) {
+	long end = System.currentTimeMillis()+LOCK_WAIT;
+	while (true) {
+	    try {
+		Files.write(lock.toPath(), WorkClaims.processName().getBytes(UTF8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+		return true;
+	    }
+	    catch (FileAlreadyExistsException e) {
+		long t = lock.lastModified();
+		if (t!=0 && System.currentTimeMillis()-t>LOCK_TIMEOUT) {
+		    lock.delete();
+		    continue;
+		}
+	    }
+	    catch (IOException e) {
+		IJ.log("Could not create "+lock+": "+e);
+		return false;
+	    }
+	    if (System.currentTimeMillis()>=end)
+		return false;
+	    try {
+		Thread.sleep(100);
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	}
+    }
+
+    /** Rewrites the index, FILE_NAME, with the given entries. */
+    private void write(Map<String,Entry> entries) throws IOException {
+	File index = new File(file.getParent(), FILE_NAME);
+	File tmp = new File(index.getPath()+"-"+WorkClaims.processName()+".tmp");
+	Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+	try {
+	    for (Map.Entry<String,Entry> me : entries.entrySet())
+		w.write(line(me.getKey(), me.getValue()));
+	}
+	finally {
+	    w.close();
+	}
+	Files.move(tmp.toPath(), index.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static String line(String key, Entry e) {
+	StringBuilder sb = new StringBuilder(key).append('\t').append(e.base);
+	for (String output : e.outputs)
+	    sb.append('\t').append(output);
+	return sb.append('\n').toString();
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * @(#)ConversionJob.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import ij.*;
+
+/**
+ * One source file on its way through the batch conversion. The job carries
+ * the source, the destination path (before the format extension is applied)
+ * and the image while it is being decoded, processed and encoded.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ConversionJob {
+
+    /** Running number of the job, used for logging. */
+    final int index;
+    /** The source image file. */
+    final File source;
+    /** Destination path, the extension is replaced when saving. */
+    final String outputPath;
+    /** The decoded (and later processed) image, null until decoded. */
+    ImagePlus image;
+    /** The images to write, one for each output spec, null until processed. */
+    ImagePlus[] outputs;
+    /** Size and modification time of the source when it was checked. */
+    long sourceSize, sourceModified;
+    /** Content hash of the source, null if not computed. */
+    volatile String hash;
+    /** Memory reserved for the job by MemoryBudget, in bytes. */
+    long memory;
+    /** The output files written so far. */
+    final List<String> written = Collections.synchronizedList(new ArrayList<String>());
+
+    ConversionJob(int index, File source, String outputPath) {
+	this.index = index;
+	this.source = source;
+	this.outputPath = outputPath;
+    }
+
+    public String toString() {
+	return source.getName();
+    }
+}
@@ -0,0 +1,177 @@
+/*
+ * @(#)ConversionManifest.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import ij.*;
+
+/**
+ * Remembers which files Batch_Converter has already converted. The manifest
+ * is a text file in the destination folder with one tab separated line per
+ * converted source: the source path, its size and modification time, the
+ * conversion options and the output file. A source is up to date if none of
+ * these have changed and the output still exists, in which case it does not
+ * have to be opened at all.
+ *
+ * Lines are appended and flushed as soon as an output has been written, so a
+ * run that is interrupted continues from where it stopped. When the run ends
+ * normally, the file is rewritten with one line per source.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ConversionManifest implements Closeable {
+
+    /** Name of the manifest file in the destination folder. */
+    static final String FILE_NAME = ".Batch_Converter.manifest";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final File file;
+    private final Map<String,Entry> entries = new HashMap<String,Entry>();
+    private Writer out;
+
+    /** What was recorded for one source file. */
+    private static class Entry {
+	long size;
+	long modified;
+	String options;
+	String output;
+    }
+
+    /**
+     * Reads the manifest of the destination folder, if there is one.
+     *
+     * @param dir2	the destination folder
+     */
+    ConversionManifest(String dir2) {
+	this.file = new File(dir2, FILE_NAME);
+	if (!file.isFile())
+	    return;
+	try {
+	    BufferedReader in = Files.newBufferedReader(file.toPath(), UTF8);
+	    try {
+		String line;
+		while ((line = in.readLine())!=null) {
+		    String[] f = line.split("\t");
+		    if (f.length!=5)
+			continue; // Partly written line from an interrupted run
+		    try {
+			Entry e = new Entry();
+			e.size = Long.parseLong(f[1]);
+			e.modified = Long.parseLong(f[2]);
+			e.options = f[3];
+			e.output = f[4];
+			entries.put(f[0], e);
+		    }
+		    catch (NumberFormatException ex) {
+			continue;
+		    }
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (IOException e) {
+	    IJ.log("Could not read "+file+": "+e);
+	}
+    }
+
+    /**
+     * Returns true if the source of the job has been converted with the same
+     * options before and neither the source nor the output has changed since.
+     * Stores the size and modification time of the source in the job, so
+     * that the same values are recorded once it has been converted.
+     */
+    synchronized boolean isUpToDate(ConversionJob job, String options) {
+	job.sourceSize = job.source.length();
+	job.sourceModified = job.source.lastModified();
+	Entry e = entries.get(job.source.getAbsolutePath());
+	return e!=null
+	    && e.size==job.sourceSize
+	    && e.modified==job.sourceModified
+	    && e.options.equals(options)
+	    && new File(e.output).isFile();
+    }
+
+    /** Records that the job has been converted and written to output. */
+    synchronized void record(ConversionJob job, String options, String output) {
+	Entry e = new Entry();
+	e.size = job.sourceSize;
+	e.modified = job.sourceModified;
+	e.options = options;
+	e.output = new File(output).getAbsolutePath();
+	String key = job.source.getAbsolutePath();
+	entries.put(key, e);
+	try {
+	    if (out==null) {
+		file.getParentFile().mkdirs();
+		out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file, true), UTF8));
+	    }
+	    out.write(line(key, e));
+	    out.flush();
+	}
+	catch (IOException ex) {
+	    IJ.log("Could not update "+file+": "+ex);
+	}
+    }
+
+    /** Rewrites the manifest with only the latest line of every source. */
+    public synchronized void close() {
+	try {
+	    if (out==null)
+		return; // Nothing was converted, the file is as it was
+	    out.close();
+	    out = null;
+	    File tmp = new File(file.getPath()+".tmp");
+	    Writer w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(tmp), UTF8));
+	    try {
+		for (Map.Entry<String,Entry> me : entries.entrySet())
+		    w.write(line(me.getKey(), me.getValue()));
+	    }
+	    finally {
+		w.close();
+	    }
+	    Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+	catch (IOException e) {
+	    IJ.log("Could not rewrite "+file+": "+e);
+	}
+    }
+
+    private static String line(String source, Entry e) {
+	return source+"\t"+e.size+"\t"+e.modified+"\t"+e.options+"\t"+e.output+"\n";
+    }
+}
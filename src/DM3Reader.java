@@ -0,0 +1,458 @@
+/*
+ * @(#)DM3Reader.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Reads Gatan DigitalMicrograph 3 (.dm3) files. The file is mapped into
+ * memory and its tag tree is walked once; the values of the simple tags are
+ * kept by their path (for example
+ * "ImageList.1.ImageData.Calibrations.Dimension.0.Scale", where unnamed
+ * tags are numbered from 0) and of the arrays only the position and length
+ * are noted, so no pixel data is touched while the tags are read. The image
+ * is the largest one in the ImageList (the first entry is usually a small
+ * thumbnail), and its pixels are copied straight from the mapped file into
+ * the pixel array of the ImageProcessor.
+ *
+ * The calibration comes from the Scale and Units of the first two
+ * calibration dimensions of the image, so a scale bar drawn from it is
+ * correct whatever reader plugins are installed. Unsigned and signed 8, 16
+ * and 32-bit integers, 32 and 64-bit floats and RGB are supported; stacks
+ * can be read whole or only their first plane.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class DM3Reader {
+
+    /** DigitalMicrograph data types of the ImageData tag. */
+    private static final int INT16 = 1, FLOAT32 = 2, UINT8 = 6, INT32 = 7, INT8 = 9,
+	UINT16 = 10, UINT32 = 11, FLOAT64 = 12, RGBA = 23;
+
+    private final String name;
+    private final ByteBuffer buffer;
+    private final ByteOrder dataOrder;
+    private final Map<String,Object> tags = new HashMap<String,Object>();
+    private String image;
+
+    /** The place of an array in the file. */
+    private static class ArrayRef {
+	final int position, type, count;
+
+	ArrayRef(int position, int type, int count) {
+	    this.position = position;
+	    this.type = type;
+	    this.count = count;
+	}
+    }
+
+    private DM3Reader(String name, ByteBuffer buffer) throws IOException {
+	this.name = name;
+	this.buffer = buffer.order(ByteOrder.BIG_ENDIAN);
+	if (buffer.limit()<16 || buffer.getInt(0)!=3)
+	    throw new IOException(name+": not a DM3 file");
+	dataOrder = buffer.getInt(8)==1 ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN;
+	try {
+	    buffer.position(12);
+	    readGroup("");
+	}
+	catch (BufferUnderflowException e) {
+	    throw new IOException(name+": DM3 file is truncated");
+	}
+	catch (IndexOutOfBoundsException e) {
+	    throw new IOException(name+": DM3 file is truncated");
+	}
+	image = findImage();
+    }
+
+    /**
+     * Maps the file and reads its tags.
+     *
+     * @throws IOException	if the file can not be read or is not a DM3 file
+     */
+    public static DM3Reader read(File file) throws IOException {
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    long size = channel.size();
+	    if (size>Integer.MAX_VALUE)
+		throw new IOException(file.getName()+": DM3 file larger than 2 GB");
+	    return new DM3Reader(file.getName(), channel.map(FileChannel.MapMode.READ_ONLY, 0, size));
+	}
+	finally {
+	    channel.close(); // The mapping stays valid
+	}
+    }
+
+    /**
+     * Opens a DM3 file as an image, or returns null if it has no image of a
+     * supported type.
+     *
+     * @param firstOnly	only read the first plane of a stack
+     */
+    public static ImagePlus open(File file, boolean firstOnly) throws IOException {
+	return read(file).getImage(firstOnly);
+    }
+
+    /** Opens a DM3 file with the pixel arrays taken from the pool. */
+    static ImagePlus open(File file, boolean firstOnly, PixelBufferPool pool) throws IOException {
+	return read(file).getImage(firstOnly, pool);
+    }
+
+    private void readGroup(String path) throws IOException {
+	buffer.get();			// sorted
+	buffer.get();			// open
+	int n = buffer.getInt();
+	for (int i=0; i<n; i++)
+	    readTag(path, i);
+    }
+
+    private void readTag(String path, int index) throws IOException {
+	int type = buffer.get()&0xff;
+	int length = buffer.getShort()&0xffff;
+	String label;
+	if (length>0) {
+	    byte[] b = new byte[length];
+	    buffer.get(b);
+	    label = new String(b, "ISO-8859-1");
+	} else
+	    label = String.valueOf(index);
+	String p = path.length()>0 ? path+"."+label : label;
+	if (type==20)
+	    readGroup(p);
+	else if (type==21)
+	    readData(p);
+	else
+	    throw new IOException(name+": bad DM3 tag type "+type+" at "+p);
+    }
+
+    private void readData(String path) throws IOException {
+	if (buffer.getInt()!=0x25252525)	// "%%%%"
+	    throw new IOException(name+": bad DM3 tag at "+path);
+	int n = buffer.getInt();
+	int[] info = new int[n];
+	for (int i=0; i<n; i++)
+	    info[i] = buffer.getInt();
+	int pos = buffer.position();
+	int type = n>0 ? info[0] : 0;
+	if (type==20) {
+	    // Array: [20, type, count] or [20, 15, name length, fields, (name length, type)*, count]
+	    int elementType = info[1];
+	    int count = info[n-1];
+	    int size;
+	    if (elementType==15) {
+		size = 0;
+		for (int i=0; i<info[3]; i++)
+		    size += size(info[5+2*i]);
+	    } else
+		size = size(elementType);
+	    tags.put(path, new ArrayRef(pos, elementType, count));
+	    skip((long)size*count);
+	} else if (type==15) {
+	    int size = 0;
+	    for (int i=0; i<info[2]; i++)
+		size += size(info[4+2*i]);
+	    skip(size);
+	} else if (type==18) {
+	    skip(info[1]);
+	} else {
+	    tags.put(path, value(type, pos));
+	    skip(size(type));
+	}
+    }
+
+    private void skip(long n) throws IOException {
+	if (buffer.position()+n>buffer.limit())
+	    throw new IOException(name+": DM3 file is truncated");
+	buffer.position(buffer.position()+(int)n);
+    }
+
+    /** Size of a simple DM3 type in bytes. */
+    private int size(int type) throws IOException {
+	switch (type) {
+	case 2: case 4: return 2;		// short, unsigned short
+	case 3: case 5: case 6: return 4;	// long, unsigned long, float
+	case 7: case 11: case 12: return 8;	// double, 64-bit integers
+	case 8: case 9: case 10: return 1;	// boolean, char, octet
+	default:
+	    throw new IOException(name+": unknown DM3 data type "+type);
+	}
+    }
+
+    private Number value(int type, int pos) {
+	ByteBuffer b = buffer.duplicate().order(dataOrder);
+	switch (type) {
+	case 2: return b.getShort(pos);
+	case 3: return b.getInt(pos);
+	case 4: return b.getShort(pos)&0xffff;
+	case 5: return b.getInt(pos)&0xffffffffL;
+	case 6: return b.getFloat(pos);
+	case 7: return b.getDouble(pos);
+	case 11: case 12: return b.getLong(pos);
+	default: return b.get(pos);
+	}
+    }
+
+    /** Path of the ImageList entry with the most pixels, or null. */
+    private String findImage() {
+	String best = null;
+	long most = 0;
+	for (Map.Entry<String,Object> e : tags.entrySet()) {
+	    String key = e.getKey();
+	    if (!key.startsWith("ImageList.") || !key.endsWith(".ImageData.Data")
+		|| !(e.getValue() instanceof ArrayRef))
+		continue;
+	    String p = key.substring(0, key.length()-".ImageData.Data".length());
+	    long count = ((ArrayRef)e.getValue()).count;
+	    if (p.indexOf('.', "ImageList.".length())<0 && (count>most || (count==most && p.compareTo(best)<0))) {
+		most = count;
+		best = p;
+	    }
+	}
+	return best;
+    }
+
+    /**
+     * Returns the value of a simple tag (a Number) or of an array of
+     * unsigned shorts (a String), null if there is no such tag.
+     */
+    public Object getTag(String path) {
+	Object o = tags.get(path);
+	if (o instanceof ArrayRef) {
+	    ArrayRef a = (ArrayRef)o;
+	    if (a.type!=4)
+		return null;
+	    ByteBuffer b = buffer.duplicate().order(dataOrder);
+	    char[] c = new char[a.count];
+	    for (int i=0; i<c.length; i++)
+		c[i] = (char)b.getShort(a.position+2*i);
+	    return new String(c);
+	}
+	return o;
+    }
+
+    private double getNumber(String path) {
+	Object o = getTag(path);
+	return o instanceof Number ? ((Number)o).doubleValue() : Double.NaN;
+    }
+
+    /** Returns a tag of the image, such as "ImageData.DataType". */
+    private double getImageNumber(String path) {
+	return image!=null ? getNumber(image+"."+path) : Double.NaN;
+    }
+
+    /** Width, height and number of planes of the image, 0 if there is none. */
+    public int getWidth() {
+	return (int)dimension(0);
+    }
+
+    public int getHeight() {
+	return (int)dimension(1);
+    }
+
+    public int getDepth() {
+	double d = getImageNumber("ImageData.Dimensions.2");
+	return Double.isNaN(d) ? (getWidth()>0 ? 1 : 0) : (int)d;
+    }
+
+    /**
+     * Bytes per pixel of the opened image, as in ImageHeader: 3 for RGB, 0
+     * if the data type is not supported.
+     */
+    public int getBytesPerPixel() {
+	int type = (int)getImageNumber("ImageData.DataType");
+	switch (type) {
+	case UINT8: return 1;
+	case INT8: case INT16: case UINT16: return 2;
+	case RGBA: return 3;
+	default: return bytesPerPixel(type)>0 ? 4 : 0;
+	}
+    }
+
+    private double dimension(int i) {
+	double d = getImageNumber("ImageData.Dimensions."+i);
+	return Double.isNaN(d) ? (i==1 && getImageNumber("ImageData.Dimensions.0")>0 ? 1 : 0) : d;
+    }
+
+    /**
+     * Returns the spatial calibration of the image, or an uncalibrated one
+     * if the file does not give a scale.
+     */
+    public Calibration getCalibration() {
+	Calibration cal = new Calibration();
+	if (image==null)
+	    return cal;
+	String dim = image+".ImageData.Calibrations.Dimension.";
+	double sx = getNumber(dim+"0.Scale");
+	double sy = getNumber(dim+"1.Scale");
+	Object units = getTag(dim+"0.Units");
+	if (sx>0 && units instanceof String && ((String)units).length()>0) {
+	    cal.pixelWidth = sx;
+	    cal.pixelHeight = sy>0 ? sy : sx;
+	    cal.setUnit((String)units);
+	    double ox = getNumber(dim+"0.Origin"), oy = getNumber(dim+"1.Origin");
+	    if (!Double.isNaN(ox)) cal.xOrigin = ox;
+	    if (!Double.isNaN(oy)) cal.yOrigin = oy;
+	}
+	return cal;
+    }
+
+    /** The indicated magnification of the microscope, NaN if not known. */
+    public double getMagnification() {
+	double m = getImageNumber("ImageTags.Microscope Info.Indicated Magnification");
+	return Double.isNaN(m) ? getImageNumber("ImageTags.Microscope Info.Actual Magnification") : m;
+    }
+
+    /** The accelerating voltage in volts, NaN if not known. */
+    public double getVoltage() {
+	return getImageNumber("ImageTags.Microscope Info.Voltage");
+    }
+
+    /**
+     * Returns the image, or null if the file has none or its data type is
+     * not supported.
+     *
+     * @param firstOnly	only read the first plane of a stack
+     */
+    public ImagePlus getImage(boolean firstOnly) {
+	return getImage(firstOnly, new PixelBufferPool(0));
+    }
+
+    /** Returns the image with its pixel arrays taken from the pool. */
+    ImagePlus getImage(boolean firstOnly, PixelBufferPool pool) {
+	if (image==null)
+	    return null;
+	ArrayRef data = (ArrayRef)tags.get(image+".ImageData.Data");
+	int type = (int)getImageNumber("ImageData.DataType");
+	int width = getWidth(), height = getHeight();
+	int depth = firstOnly ? 1 : getDepth();
+	int bytes = bytesPerPixel(type);
+	int plane = width*height;
+	if (width<=0 || height<=0 || depth<=0 || bytes==0 || (long)plane*depth*bytes>(long)data.count*size(data))
+	    return null;
+	ImageStack stack = new ImageStack(width, height);
+	for (int z=0; z<depth; z++) {
+	    ByteBuffer b = buffer.duplicate().order(dataOrder);
+	    b.position(data.position+z*plane*bytes);
+	    stack.addSlice(null, readPlane(b, type, width, height, pool));
+	}
+	ImagePlus imp = new ImagePlus(name, stack);
+	imp.setCalibration(getCalibration());
+	if (type==INT16 || type==INT8)
+	    imp.getLocalCalibration().setSigned16BitCalibration();
+	return imp;
+    }
+
+    private static int size(ArrayRef a) {
+	switch (a.type) {
+	case 2: case 4: return 2;
+	case 3: case 5: case 6: return 4;
+	case 7: case 11: case 12: return 8;
+	default: return 1;
+	}
+    }
+
+    private static int bytesPerPixel(int type) {
+	switch (type) {
+	case UINT8: case INT8: return 1;
+	case INT16: case UINT16: return 2;
+	case FLOAT32: case INT32: case UINT32: case RGBA: return 4;
+	case FLOAT64: return 8;
+	default: return 0;
+	}
+    }
+
+    /**
+     * Reads one plane starting at the position of the buffer. The common
+     * types are copied with a single bulk get; signed integers are shifted
+     * to unsigned as ImageJ does for signed 16-bit TIFFs.
+     */
+    private static ImageProcessor readPlane(ByteBuffer b, int type, int width, int height, PixelBufferPool pool) {
+	int n = width*height;
+	switch (type) {
+	case UINT8: {
+	    byte[] p = pool.getBytes(n);
+	    b.get(p);
+	    return new ByteProcessor(width, height, p, null);
+	}
+	case INT8: {
+	    short[] p = pool.getShorts(n);
+	    for (int i=0; i<n; i++)
+		p[i] = (short)(b.get()+32768);
+	    return new ShortProcessor(width, height, p, null);
+	}
+	case UINT16: case INT16: {
+	    short[] p = pool.getShorts(n);
+	    b.asShortBuffer().get(p);
+	    if (type==INT16)
+		for (int i=0; i<n; i++)
+		    p[i] = (short)(p[i]+32768);
+	    return new ShortProcessor(width, height, p, null);
+	}
+	case FLOAT32: {
+	    float[] p = pool.getFloats(n);
+	    b.asFloatBuffer().get(p);
+	    return new FloatProcessor(width, height, p, null);
+	}
+	case INT32: case UINT32: {
+	    float[] p = pool.getFloats(n);
+	    IntBuffer ib = b.asIntBuffer();
+	    for (int i=0; i<n; i++) {
+		int v = ib.get(i);
+		p[i] = type==UINT32 ? (float)(v&0xffffffffL) : v;
+	    }
+	    return new FloatProcessor(width, height, p, null);
+	}
+	case FLOAT64: {
+	    float[] p = pool.getFloats(n);
+	    DoubleBuffer db = b.asDoubleBuffer();
+	    for (int i=0; i<n; i++)
+		p[i] = (float)db.get(i);
+	    return new FloatProcessor(width, height, p, null);
+	}
+	default: {
+	    // RGBA, stored as 32-bit 0xAARRGGBB values
+	    int[] p = pool.getInts(n);
+	    b.asIntBuffer().get(p);
+	    for (int i=0; i<n; i++)
+		p[i] |= 0xff000000;
+	    return new ColorProcessor(width, height, p);
+	}
+	}
+    }
+}
@@ -0,0 +1,324 @@
+/*
+ * @(#)FolderWatcher.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import ij.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches a source folder for Batch_Converter and hands out the images that
+ * arrive in it. The folder is not rescanned: a WatchService reports files as
+ * they are created or written to, and a file is handed out only after it has
+ * kept the same size and modification time for a while, so that files still
+ * being written by the microscope are not opened. An image waits also for
+ * its JEOL .txt sidecar: when the sidecar is there it has to be complete
+ * too, and when it is not, the image is given a little more time for the
+ * sidecar to show up. Bursts of events for one file count as one arrival.
+ * The files in a folder that arrives, copied or moved in with it, arrive
+ * with the folder. When the WatchService has lost events, the folder they
+ * were for is read again, and its files that have not been handed out or,
+ * with a manifest, converted before arrive too. Links to folders and the
+ * destination folder are not watched, like in SourceWalker.
+ *
+ * hasNext() blocks until the next image is ready, and returns false when
+ * the watcher is closed, the thread is interrupted or Esc is pressed in
+ * ImageJ. Used as the job source of Batch_Converter, the images go through
+ * the same serial or parallel conversion as the files of a folder.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class FolderWatcher implements Iterator<ConversionJob>, Closeable {
+
+    /** How often the arrived files are checked, in milliseconds. */
+    private static final long POLL = 250;
+
+    private final Path root;
+    private final String dir2;
+    private final Path destination;
+    private final boolean recursive;
+    private final PathMatcher matcher;
+    private final long quiet;
+    private final WatchService watcher;
+    private final Map<WatchKey,Path> keys = new HashMap<WatchKey,Path>();
+    private final Map<Path,Arrival> arrivals = new LinkedHashMap<Path,Arrival>();
+    private final Deque<ConversionJob> ready = new ArrayDeque<ConversionJob>();
+    /** The modification time of every file handed out. */
+    private final Map<Path,Long> handedOut = new HashMap<Path,Long>();
+    private ConversionManifest manifest;
+    private String options;
+    private volatile boolean closed;
+    private int count;
+
+    /** A file that has arrived but is not handed out yet. */
+    private static class Arrival {
+	long size, modified, sidecarSize, sidecarModified;
+	long stableSince;
+    }
+
+    /**
+     * @param dir1	the folder to watch
+     * @param dir2	the destination folder
+     * @param recursive	whether subfolders are watched too
+     * @param glob	file name pattern, null or empty for all files
+     * @param quiet	how long a file has to stay unchanged, in milliseconds
+     */
+    FolderWatcher(String dir1, String dir2, boolean recursive, String glob, long quiet) throws IOException {
+	this.root = Paths.get(dir1);
+	this.dir2 = dir2;
+	this.destination = Paths.get(dir2);
+	this.recursive = recursive;
+	if (glob==null || glob.trim().length()==0)
+	    glob = "*";
+	this.matcher = root.getFileSystem().getPathMatcher("glob:"+glob.trim());
+	this.quiet = quiet;
+	this.watcher = root.getFileSystem().newWatchService();
+	register(root, false);
+    }
+
+    /**
+     * Makes the files that the manifest has as converted with the options
+     * be skipped when a folder is read again after lost events.
+     */
+    void setManifest(ConversionManifest manifest, String options) {
+	this.manifest = manifest;
+	this.options = options;
+    }
+
+    public boolean hasNext() {
+	while (ready.isEmpty()) {
+	    if (closed || Thread.currentThread().isInterrupted() || IJ.escapePressed())
+		return false;
+	    try {
+		WatchKey key = watcher.poll(POLL, java.util.concurrent.TimeUnit.MILLISECONDS);
+		while (key!=null) {
+		    handle(key);
+		    key = watcher.poll();
+		}
+	    }
+	    catch (InterruptedException e) {
+		Thread.currentThread().interrupt();
+		return false;
+	    }
+	    catch (ClosedWatchServiceException e) {
+		return false;
+	    }
+	    checkArrivals();
+	}
+	return true;
+    }
+
+    public ConversionJob next() {
+	if (!hasNext())
+	    throw new NoSuchElementException();
+	return ready.poll();
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    /** Stops watching. A blocked hasNext() returns false shortly after. */
+    public void close() {
+	closed = true;
+	try {
+	    watcher.close();
+	}
+	catch (IOException e) {
+	    // Nothing to do, the watcher is not used anymore
+	}
+    }
+
+    /**
+     * Watches a folder and, if recursive, its subfolders. With arrived, the
+     * folder has just arrived and the files in it are arrivals too.
+     */
+    private void register(Path dir, boolean arrived) throws IOException {
+	keys.put(dir.register(watcher, ENTRY_CREATE, ENTRY_MODIFY), dir);
+	if (!recursive && !arrived)
+	    return;
+	DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+	try {
+	    for (Path p : ds) {
+		if (p.getFileName().toString().startsWith("."))
+		    continue;
+		if (Files.isDirectory(p)) {
+		    if (isWatchable(p))
+			register(p, arrived);
+		} else if (arrived)
+		    offer(p);
+	    }
+	}
+	finally {
+	    ds.close();
+	}
+    }
+
+    /** True for a subfolder that is watched when recursive. */
+    private boolean isWatchable(Path dir) {
+	if (!recursive || Files.isSymbolicLink(dir))
+	    return false;
+	try {
+	    return !Files.isSameFile(dir, destination);
+	}
+	catch (IOException e) {
+	    return true;
+	}
+    }
+
+    /**
+     * Reads a watched folder again after its events were lost. Its files
+     * that have not been handed out or converted arrive, and so do the
+     * subfolders that are not watched yet.
+     */
+    private void rescan(Path dir) {
+	try {
+	    DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+	    try {
+		for (Path p : ds) {
+		    if (p.getFileName().toString().startsWith("."))
+			continue;
+		    if (!Files.isDirectory(p))
+			offer(p);
+		    else if (isWatchable(p) && !keys.containsValue(p))
+			register(p, true);
+		}
+	    }
+	    finally {
+		ds.close();
+	    }
+	}
+	catch (IOException e) {
+	    IJ.log("Could not read "+dir+" again: "+e);
+	}
+	catch (DirectoryIteratorException e) {
+	    IJ.log("Could not read "+dir+" again: "+e.getCause());
+	}
+    }
+
+    /**
+     * Makes a file an arrival unless it is a sidecar, does not match the
+     * pattern, has been handed out unchanged or is up to date in the
+     * manifest.
+     */
+    private void offer(Path p) {
+	Path name = p.getFileName();
+	if (name.toString().toLowerCase(Locale.US).endsWith(".txt"))
+	    return; // Sidecars are checked together with their image
+	if (!matcher.matches(name) || arrivals.containsKey(p))
+	    return;
+	File f = p.toFile();
+	Long modified = handedOut.get(p);
+	if (modified!=null && modified.longValue()==f.lastModified())
+	    return;
+	if (manifest!=null && manifest.isUpToDate(job(p), options))
+	    return;
+	arrivals.put(p, new Arrival());
+    }
+
+    private ConversionJob job(Path p) {
+	return new ConversionJob(count+1, p.toFile(), dir2+root.relativize(p).toString());
+    }
+
+    /** Notes the files that were created or modified. */
+    private void handle(WatchKey key) {
+	Path dir = keys.get(key);
+	for (WatchEvent<?> event : key.pollEvents()) {
+	    if (event.kind()==OVERFLOW) {
+		IJ.log("Too many files arrived at once in "+dir+", reading it again");
+		rescan(dir);
+		continue;
+	    }
+	    Path name = (Path)event.context();
+	    Path p = dir.resolve(name);
+	    String s = name.toString();
+	    if (s.startsWith("."))
+		continue;
+	    if (Files.isDirectory(p)) {
+		if (event.kind()==ENTRY_CREATE && isWatchable(p) && !keys.containsValue(p)) {
+		    try {
+			register(p, true);
+		    }
+		    catch (IOException e) {
+			IJ.log("Could not watch "+p+": "+e);
+		    }
+		}
+		continue;
+	    }
+	    offer(p);
+	}
+	if (!key.reset())
+	    keys.remove(key);
+    }
+
+    /**
+     * Moves the files that have not changed for long enough to the ready
+     * queue. Any change in the image or its sidecar starts the wait again.
+     */
+    private void checkArrivals() {
+	long now = System.currentTimeMillis();
+	Iterator<Map.Entry<Path,Arrival>> it = arrivals.entrySet().iterator();
+	while (it.hasNext()) {
+	    Map.Entry<Path,Arrival> me = it.next();
+	    Path p = me.getKey();
+	    Arrival a = me.getValue();
+	    File f = p.toFile();
+	    if (!f.isFile()) {
+		it.remove(); // Deleted or moved away
+		continue;
+	    }
+	    File txt = new File(f.getParentFile(), JeolSidecar.sidecarName(f.getName()));
+	    long size = f.length(), modified = f.lastModified();
+	    long txtSize = txt.length(), txtModified = txt.lastModified();
+	    if (a.stableSince==0 || size!=a.size || modified!=a.modified
+		|| txtSize!=a.sidecarSize || txtModified!=a.sidecarModified) {
+		a.size = size;
+		a.modified = modified;
+		a.sidecarSize = txtSize;
+		a.sidecarModified = txtModified;
+		a.stableSince = now;
+		continue;
+	    }
+	    // Without a sidecar, wait twice as long in case it is on its way
+	    long wait = txtModified!=0 ? quiet : 2*quiet;
+	    if (now-a.stableSince<wait)
+		continue;
+	    it.remove();
+	    handedOut.put(p, modified);
+	    String relative = root.relativize(p).toString();
+	    ready.add(new ConversionJob(++count, f, dir2+relative));
+	}
+    }
+}
@@ -0,0 +1,131 @@
+/*
+ * @(#)ImageHeader.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import javax.imageio.*;
+import javax.imageio.stream.*;
+import ij.io.FileInfo;
+import ij.io.TiffDecoder;
+
+/**
+ * The size of an image as told by its file header. TIFF headers are read
+ * with the TiffDecoder of ImageJ, DM3 tags with DM3Reader and other formats
+ * (JPEG, PNG, BMP, GIF) with an ImageIO reader, which all stop before the
+ * pixel data.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ImageHeader {
+
+    /** Width and height of the image in pixels. */
+    public final int width, height;
+    /** Bytes per pixel of the decoded image, 3 for RGB. */
+    public final int bytesPerPixel;
+    /** Number of images (slices) in the file. */
+    public final int nImages;
+
+    public ImageHeader(int width, int height, int bytesPerPixel, int nImages) {
+	this.width = width;
+	this.height = height;
+	this.bytesPerPixel = bytesPerPixel;
+	this.nImages = nImages;
+    }
+
+    /** Returns the size of the pixel data of all the images in bytes. */
+    public long getPixelBytes() {
+	return (long)width*height*bytesPerPixel*nImages;
+    }
+
+    /**
+     * Reads the header of an image file. Returns null if the format is not
+     * known or the header can not be read.
+     */
+    public static ImageHeader read(File file) {
+	String name = file.getName().toLowerCase(Locale.US);
+	try {
+	    if (name.endsWith(".tif") || name.endsWith(".tiff"))
+		return readTiff(file);
+	    if (name.endsWith(".dm3"))
+		return readDM3(file);
+	    return readImageIO(file);
+	}
+	catch (IOException e) {
+	    return null;
+	}
+    }
+
+    private static ImageHeader readTiff(File file) throws IOException {
+	file = file.getAbsoluteFile();
+	TiffDecoder td = new TiffDecoder(file.getParent()+File.separator, file.getName());
+	FileInfo[] info = td.getTiffInfo();
+	if (info==null || info.length==0)
+	    return null;
+	FileInfo fi = info[0];
+	int n = info.length>1 ? info.length : Math.max(1, fi.nImages);
+	return new ImageHeader(fi.width, fi.height, Math.max(1, fi.getBytesPerPixel()), n);
+    }
+
+    private static ImageHeader readDM3(File file) throws IOException {
+	DM3Reader dm3 = DM3Reader.read(file);
+	if (dm3.getWidth()<=0)
+	    return null;
+	return new ImageHeader(dm3.getWidth(), dm3.getHeight(), dm3.getBytesPerPixel(), dm3.getDepth());
+    }
+
+    private static ImageHeader readImageIO(File file) throws IOException {
+	ImageInputStream in = ImageIO.createImageInputStream(file);
+	if (in==null)
+	    return null;
+	try {
+	    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+	    if (!readers.hasNext())
+		return null;
+	    ImageReader reader = readers.next();
+	    try {
+		reader.setInput(in, true, true);
+		int bpp = 3;
+		ImageTypeSpecifier type = reader.getRawImageType(0);
+		if (type!=null && type.getNumBands()==1)
+		    bpp = (type.getColorModel().getPixelSize()+7)/8;
+		return new ImageHeader(reader.getWidth(0), reader.getHeight(0), bpp, 1);
+	    }
+	    finally {
+		reader.dispose();
+	    }
+	}
+	finally {
+	    in.close();
+	}
+    }
+}
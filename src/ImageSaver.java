@@ -0,0 +1,155 @@
+/*
+ * @(#)ImageSaver.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.Locale;
+import ij.*;
+import ij.io.*;
+
+/**
+ * Saves an image without going through the "current image" of ImageJ.
+ * IJ.saveAs(format, path) works on whatever image WindowManager thinks is
+ * current and dispatches through the macro command table, which is not safe
+ * when several threads save at the same time. This class maps the same format
+ * names to the matching FileSaver call directly, so the bytes written are the
+ * same as with IJ.saveAs. Single TIFF, ZIP and PNG images go through
+ * ParallelEncoder, which compresses on all cores; TIFF and ZIP files hold
+ * the same TIFF as FileSaver writes, PNGs have the same pixels.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ImageSaver {
+
+    private static final int TIFF = 0, ZIP = 1, PNG = 2;
+
+    private ImageSaver() {
+    }
+
+    /**
+     * Saves the image in the given format. The format names are the ones
+     * accepted by IJ.saveAs ("TIFF", "8-bit Color TIFF", "Jpeg", "PNG", ...)
+     * and the extension of the path is updated the same way.
+     *
+     * @param img	the image to save
+     * @param format	format name, case insensitive
+     * @param path	destination path, extension is replaced as needed
+     * @return		the path that was written, or null if saving failed
+     */
+    public static String save(ImagePlus img, String format, String path) {
+	String f = format.toLowerCase(Locale.US);
+	FileSaver fs = new FileSaver(img);
+	boolean ok;
+	if (f.indexOf("tif")!=-1) {
+	    if (!path.endsWith(".tiff"))
+		path = updateExtension(path, ".tif");
+	    if (img.getStackSize()>1)
+		ok = fs.saveAsTiffStack(path);
+	    else
+		ok = encode(TIFF, img, path) || fs.saveAsTiff(path);
+	} else if (f.indexOf("jpeg")!=-1 || f.indexOf("jpg")!=-1) {
+	    path = updateExtension(path, ".jpg");
+	    ok = fs.saveAsJpeg(path);
+	} else if (f.indexOf("gif")!=-1) {
+	    path = updateExtension(path, ".gif");
+	    ok = fs.saveAsGif(path);
+	} else if (f.indexOf("text image")!=-1) {
+	    path = updateExtension(path, ".txt");
+	    ok = fs.saveAsText(path);
+	} else if (f.indexOf("zip")!=-1) {
+	    path = updateExtension(path, ".zip");
+	    ok = encode(ZIP, img, path) || fs.saveAsZip(path);
+	} else if (f.indexOf("raw")!=-1) {
+	    if (img.getStackSize()>1)
+		ok = fs.saveAsRawStack(path);
+	    else
+		ok = fs.saveAsRaw(path);
+	} else if (f.indexOf("bmp")!=-1) {
+	    path = updateExtension(path, ".bmp");
+	    ok = fs.saveAsBmp(path);
+	} else if (f.indexOf("fits")!=-1) {
+	    path = updateExtension(path, ".fits");
+	    // FITS_Writer is run as a plugin on the temporary current image
+	    synchronized (ImageSaver.class) {
+		ok = fs.saveAsFits(path);
+	    }
+	} else if (f.indexOf("png")!=-1) {
+	    path = updateExtension(path, ".png");
+	    ok = encode(PNG, img, path) || fs.saveAsPng(path);
+	} else if (f.indexOf("pgm")!=-1) {
+	    path = updateExtension(path, ".pgm");
+	    ok = fs.saveAsPgm(path);
+	} else {
+	    IJ.log("Unsupported file format: "+format);
+	    return null;
+	}
+	return ok ? path : null;
+    }
+
+    /**
+     * Saves with ParallelEncoder. Returns false if it does not handle the
+     * image or writing failed, so that FileSaver can be used instead.
+     */
+    private static boolean encode(int format, ImagePlus img, String path) {
+	try {
+	    switch (format) {
+	    case TIFF:
+		return ParallelEncoder.writeTiff(img, path);
+	    case ZIP:
+		return ParallelEncoder.writeZip(img, path);
+	    default:
+		return ParallelEncoder.writePng(img, path);
+	    }
+	}
+	catch (IOException e) {
+	    IJ.log(path+": "+e.getMessage());
+	    return false;
+	}
+    }
+
+    /**
+     * Replaces the extension of the path the same way as IJ.saveAs does.
+     * An extension starting with a digit is treated as part of the name.
+     */
+    static String updateExtension(String path, String extension) {
+	int dotIndex = path.lastIndexOf(".");
+	int separatorIndex = path.lastIndexOf(File.separator);
+	if (dotIndex>=0 && dotIndex>separatorIndex && (path.length()-dotIndex)<=5) {
+	    if (dotIndex+1<path.length() && Character.isDigit(path.charAt(dotIndex+1)))
+		path += extension;
+	    else
+		path = path.substring(0, dotIndex) + extension;
+	} else
+	    path += extension;
+	return path;
+    }
+}
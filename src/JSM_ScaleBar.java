@@ -37,9 +37,11 @@ import ij.plugin.*;
 import ij.process.*;
 import ij.measure.*;
 import ij.text.*;
+import ij.util.Tools;
 import java.util.*;
+import java.util.concurrent.*;
+import java.nio.file.*;
 import java.awt.*;
-import java.io.*;
 
 /**
  * This class is a plugin for the program ImageJ. It is meant for users of a 
@@ -50,6 +52,11 @@ import java.io.*;
  * v1.0.1 : Try to update the plugin to work also with Zeiss Sigma micrographs,
  * which are TIFF-files that contain the pixel size information in the headers.
  * Not all functionality might be implemented.
+ * A TIFF without a .txt -file is calibrated from its Zeiss header, which
+ * is read without opening the image, see ZeissTiffHeader.
+ * Run from a macro with a "dir=" option, or from the command line, it
+ * processes every image of a folder that has a .txt -file, and every Zeiss
+ * TIFF, without dialogs, see batch(String, Options, int).
  *
  * @version 	%I% %U%
  * @author 	Juuso Korhonen
@@ -67,7 +74,9 @@ public class JSM_ScaleBar implements PlugIn {
     private double imgWidth, imgHeight;
     private double fullWidth, fullHeight;
     private double pixelSize;
-    private HashMap infoFromFile;
+    private JeolSidecar sidecar;
+    private ZeissTiffHeader zeiss;
+    private double scalingFactor;
 
     private boolean pp_crop = true;
     private boolean pp_smooth = true;
@@ -83,9 +92,15 @@ public class JSM_ScaleBar implements PlugIn {
      * This function is executed, when the plugin is run from the menu.
      * It contains the functionality of the plugin.
      *
-     * @param arg   arguments defined in IJ_Props.txt. Not used.
+     * @param arg   arguments defined in IJ_Props.txt, "batch" to process a folder
      */
     public void run(String arg) {
+			String options = Macro.getOptions();
+			if ("batch".equals(arg) || (options!=null && options.indexOf("dir=")!=-1)) {
+					runBatch(options);
+					return;
+			}
+
 			// Open a file using last used directory
 			// String def_path = OpenDialog.getLastDirectory();
 			OpenDialog od = new OpenDialog("Open image ...", null);
@@ -126,60 +141,34 @@ public class JSM_ScaleBar implements PlugIn {
 			// Execute the script (the functionality)
 			this.exec();
 
-			// Post-process
-			this.origImg = this.img.duplicate();
-			if (pp_crop) {
-					int w = (int)(((Double)this.infoFromFile.get("image width")).doubleValue()  * ((Double)this.infoFromFile.get("scaling factor")).doubleValue());
-					int h = (int)(((Double)this.infoFromFile.get("image height")).doubleValue() * ((Double)this.infoFromFile.get("scaling factor")).doubleValue());
-					this.img.setRoi(0,0, w, h);
-					IJ.run(this.img, "Crop", "");
-			}
-			if (pp_manbc) {
-					IJ.run(this.img, "Enhance Contrast", "saturated=0.4 equalize");	    
-			}
-			if (pp_smooth) {
-					IJ.run(this.img, "Smooth", "");
-			}
-			if (pp_resizesmall) {
-					IJ.run(this.img, "Size...", "width=800 height=600 constrain average interpolation=Bilinear");
-			}
-			if (pp_convertrgb) {
-					IJ.run(this.img, "RGB Color", "");
-			}
-			if (pp_scalebar) {
-					//	    String scaleunit = (String)this.infoFromFile.get("micron bar unit");
-					double width = ((Double)this.infoFromFile.get("micron bar")).doubleValue();
-					double height = 4.0;
-					double font = 14.0;
-					String color = "Black";
-					String bgcolor = "White";
-					String location = "[Lower Left]";
-					String options = "bold overlay";
-					IJ.run(this.img, "Scale Bar...", "width="+width+" height="+height+" font="+font+" color="+color+" background="+bgcolor+" location="+location+" "+options);
-
-					// Make semitransparent bg
-					Overlay ol = this.img.getOverlay();
-					if (ol.size() == 3) {
-							Roi r = ol.get(0); // This should be the bg
-							r.setFillColor(new Color(255,255,255,128));
-							r.setStrokeColor(new Color(0,0,0,255));
+			// Post-process. The pipeline leaves the source image as it is.
+			Options o = new Options(pp_crop, pp_smooth, pp_manbc, pp_resizesmall,
+									pp_convertrgb, pp_scalebar, pp_autosave);
+			Rectangle bounds = micrographBounds(this.sidecar, this.scalingFactor, this.zeiss);
+			double barWidth = barWidth(this.imgCal, (int)this.imgWidth, this.sidecar, this.zeiss, bounds);
+			ImagePlus result = null;
+			if (this.img == null) {
+					// Not opened by getCalibration, resize straight from the file if it can be read row by row
+					try {
+							result = postProcess(new File(this.fileDir, this.fileName), this.imgCal, bounds, barWidth, o);
+					}
+					catch (IOException e) {
+							IJ.error("JSM ScaleBar...", e.getMessage());
+							return;
+					}
+					if (result == null) {
+							this.img = IJ.openImage(this.fileDir + this.fileName);
+							if (this.imgCal != null)
+									this.img.setCalibration(this.imgCal);
 					}
-					ImagePlus flatImg = this.img.flatten();
-					flatImg.copyScale(this.img);
-					this.img = flatImg;
 			}
+			if (result == null)
+					result = postProcess(this.img, bounds, barWidth, o);
+			this.origImg = this.img;
+			this.img = result;
 
 			if (pp_autosave) {
-					//IJ.showMessage("Not implemented", "Autosave is not yet implemented");
-					String newName = new String(this.baseName);
-					String newExt = ".tif";
-					String format = "TIFF";
-					String prefix = "e-";
-					if (pp_resizesmall) {
-							prefix = "er-";
-					}
-					newName = prefix + newName;
-					IJ.saveAs(this.img, format, this.fileDir + newName);
+					IJ.saveAs(this.img, "TIFF", this.fileDir + o.getPrefix() + this.baseName);
 			}
 
 			if (pp_showimage) {
@@ -187,8 +176,12 @@ public class JSM_ScaleBar implements PlugIn {
 			}
 
 			if (pp_showinfo) {
-					String infoWindowTitle = "Information read from the .txt file";
-					TextWindow infoWindow = new TextWindow(infoWindowTitle, this.infoFromFile.toString(), 400, 450);
+					if (this.zeiss != null) {
+							new TextWindow("Information read from the TIFF header", this.zeiss.toString(), 400, 450);
+					} else {
+							String infoWindowTitle = "Information read from the .txt file";
+							TextWindow infoWindow = new TextWindow(infoWindowTitle, this.sidecar.toString() + "scaling factor : " + this.scalingFactor + "\n", 400, 450);
+					}
 			}
     }   
 
@@ -202,167 +195,389 @@ public class JSM_ScaleBar implements PlugIn {
 	getCalibration();
     }
 
-    private static String readFileAsString(String filePath)
-	throws java.io.IOException {
-        StringBuffer fileData = new StringBuffer(1000);
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-        char[] buf = new char[1024];
-        int numRead=0;
-        while((numRead=reader.read(buf)) != -1){
-            fileData.append(buf, 0, numRead);
-        }
-        reader.close();
-        return fileData.toString();
-    }
-
     /**
      * This function reads image calibration from .txt file. If reading of the
-     * file fails, a black calibration is set.
+     * file fails, the calibration is read from the header of a Zeiss TIFF,
+     * and otherwise a black calibration is set. An image that is resized to
+     * 800x600 is not opened, its size is read from the file header.
      */
     private void getCalibration() {
-			// Get the image size (from the image)
-			if (this.img == null) {
+			// Get the image size (from the header, or from the image)
+			ImageHeader header = null;
+			if (this.img == null && this.pp_resizesmall) {
+					header = ImageHeader.read(new File(this.fileDir, this.fileName));
+			}
+			if (this.img == null && header == null) {
 					this.img = IJ.openImage(this.fileDir + this.fileName);
 			}
-			this.imgWidth = this.img.getWidth();
-			this.imgHeight = this.img.getHeight();
+			this.imgWidth = header != null ? header.width : this.img.getWidth();
+			this.imgHeight = header != null ? header.height : this.img.getHeight();
 
-			// (Try to) read the .txt -file as a string. If this fails, set empty calibration
-			String lines = new String();
+			// Read the .txt -file. If this fails, set empty calibration
 			try {
-					lines = readFileAsString(this.fileDir + this.txtFileName);
+					this.sidecar = JeolSidecar.read(this.fileDir + this.txtFileName);
 			}
-			catch (Exception e) {
-					IJ.error("JSM ScaleBar...", e.getMessage());
-					this.imgCal = new Calibration();
-					this.img.setCalibration(this.imgCal);
-			}	
-
-			// Process the file to an array
-			String linesarray[] = lines.split("\\r?\\n|\\r");
-
-			this.infoFromFile = new MyHashMap();
-			// Now read the file and put information into temporary variables
-			for (int i=0; i<linesarray.length; i++) {
-					String line = linesarray[i];
-					if (line.startsWith("$$SM_MICRON_BAR ")) {
-							String micron_bar_string = line.substring(16);
-							this.infoFromFile.put("micron bar px", new Double(micron_bar_string));
-					}
-					else if (line.startsWith("$$SM_MICRON_MARKER ")) {
-							String micron_marker_string = line.substring(19, line.length()-2);
-							String micron_marker_unit_string = line.substring(line.length()-2);
-							this.infoFromFile.put("micron bar", new Double(micron_marker_string));
-							this.infoFromFile.put("micron bar unit", micron_marker_unit_string);
-					}
-					else if (line.startsWith("$CM_FULL_SIZE ")) {
-							String fullsize_string = line.substring(14);
-							String fullsize_strings[] = fullsize_string.split(" ");
-							this.infoFromFile.put("image width",  new Double(fullsize_strings[0]));
-							this.infoFromFile.put("image height",  new Double(fullsize_strings[1]));
-					}
-					else if (line.startsWith("$CM_TITLE ")) {
-							String title_string = line.substring(10);
-							this.infoFromFile.put("title", title_string);
-					}
-					else if (line.startsWith("$CM_INSTRUMENT ")) {
-							String instrument_string = line.substring(15);
-							this.infoFromFile.put("instrument", instrument_string);
-					}
-					else if (line.startsWith("$CM_DATE ")) {
-							String date_string = line.substring(9);
-							this.infoFromFile.put("date", date_string);
-					}
-					else if (line.startsWith("$CM_TIME ")) {
-							String time_string = line.substring(9);
-							this.infoFromFile.put("time", time_string);
-					}
-					else if (line.startsWith("$SM_PENNING_VAC ")) {
-							String vac_string = line.substring(16);
-							this.infoFromFile.put("vacuum", vac_string);
-					}
-					else if (line.startsWith("$CM_SIGNAL ")) {
-							String signal_string = line.substring(11);
-							this.infoFromFile.put("signal", signal_string);
-					}
-					else if (line.startsWith("$CM_SIGNAL_NAME ")) {
-							String signalname_string = line.substring(16);
-							this.infoFromFile.put("signal name", signalname_string);
-					}
-					else if (line.startsWith("$CM_ACCEL_VOLT ")) {
-							String accv_string = line.substring(15);
-							this.infoFromFile.put("acceleration voltage", accv_string);
-					}
-					else if (line.startsWith("$SM_GB_BIAS_VOLT ")) {
-							String biasv_string = line.substring(17);
-							this.infoFromFile.put("bias voltage", biasv_string);
-					}
-					else if (line.startsWith("$$SM_WD ")) {
-							String wd_string = line.substring(8);
-							this.infoFromFile.put("working distance", new Double(wd_string));
-					}
-					else if (line.startsWith("$CM_MAG ")) {
-							String mag_string = line.substring(8);
-							this.infoFromFile.put("magnification", new Double(mag_string));
-					}
-					else if (line.startsWith("$$SM_COLUMN_MODE ")) {
-							String colmode_string = line.substring(17);
-							this.infoFromFile.put("column mode", colmode_string);
-					}
-					else if (line.startsWith("$CM_STAGE_POS ")) {
-							String stagepos_string = line.substring(14);
-							String stagepos_strings[] = stagepos_string.split(" ");
-							Double x = new Double(stagepos_strings[0]);
-							Double y = new Double(stagepos_strings[1]);
-							Double z = new Double(stagepos_strings[2]);
-							Double r = new Double(stagepos_strings[3]);
-							Double t = new Double(stagepos_strings[4]);
-							//Double extra = new Double(stagepos_strings[0]);
-							this.infoFromFile.put("stage x", x);
-							this.infoFromFile.put("stage y", y);
-							this.infoFromFile.put("stage z", z);
-							this.infoFromFile.put("stage r", r);
-							this.infoFromFile.put("stage t", t);
+			catch (IOException e) {
+					this.sidecar = JeolSidecar.EMPTY;
+					this.zeiss = ZeissTiffHeader.readCalibrated(new File(this.fileDir, this.fileName));
+					if (this.zeiss != null) {
+							this.imgCal = this.zeiss.getCalibration();
+							this.pixelSize = this.imgCal.pixelWidth;
+					} else {
+							IJ.error("JSM ScaleBar...", e.getMessage());
+							this.imgCal = new Calibration();
 					}
+					if (this.img != null)
+							this.img.setCalibration(this.imgCal);
 			}
 
-			try { // Check for nullpointer exceptions	
-					// The width of the image does not contain the information bar and can thus be used to calculcate the scaling factor
-					double sizeScaleFactor = this.imgWidth / ((Double)this.infoFromFile.get("image width")).doubleValue();
+			if (this.sidecar.hasCalibration()) {
+					this.imgCal = calibration(this.sidecar, this.imgWidth);
+					this.scalingFactor = this.sidecar.getScalingFactor(this.imgWidth);
+					if (this.img != null)
+							this.img.setCalibration(this.imgCal);
+					this.pixelSize = this.imgCal.pixelWidth;
+			} else if (this.img != null) {
+					this.imgCal = this.img.getCalibration();
+			}
+	}
 
-					// Calculate the pixelsize. The scaling factor has to be taken into account, because of a bug in the PC_SEM software
-					// which occurs, when a file is saved in a lower resolution than 1024 px wide.
-					this.pixelSize = ((Double)this.infoFromFile.get("micron bar")).doubleValue() / ( ((Double)this.infoFromFile.get("micron bar px")).doubleValue() * sizeScaleFactor );
-					this.infoFromFile.put("scaling factor", new Double(sizeScaleFactor));
+    /**
+     * Sets the calibration read from the .txt -file to the image and returns
+     * the factor from the full size of the micrograph to the size of the
+     * image. The calibration is left as it is if the file has none.
+     */
+    static double calibrate(ImagePlus img, JeolSidecar sidecar) {
+	if (!sidecar.hasCalibration())
+	    return 0;
+	// The width of the image does not contain the information bar and can thus be used to calculcate the scaling factor
+	double width = img.getWidth();
+	img.setCalibration(calibration(sidecar, width));
+	return sidecar.getScalingFactor(width);
+    }
 
-					// Make the calibration
-					this.imgCal = new Calibration();
-					this.imgCal.setUnit((String)this.infoFromFile.get("micron bar unit"));
-					this.imgCal.pixelWidth = this.pixelSize;
-					this.imgCal.pixelHeight = this.pixelSize;
+    /** The calibration of an image of the given width from its .txt -file. */
+    static Calibration calibration(JeolSidecar sidecar, double width) {
+	Calibration cal = new Calibration();
+	cal.setUnit(sidecar.getMicronMarkerUnit());
+	cal.pixelWidth = sidecar.getPixelSize(width);
+	cal.pixelHeight = cal.pixelWidth;
+	return cal;
+    }
 
-					this.img.setCalibration(this.imgCal);
-			}
-			catch (NullPointerException e) {
-					// Do nothing here
+    /**
+     * Returns the part of the image that holds the micrograph, without the
+     * information bar, or null if it is not known.
+     *
+     * @param sidecar		the .txt -file of the image, EMPTY if none
+     * @param scalingFactor	as returned by calibrate
+     * @param zeiss		the Zeiss header of the image, or null
+     */
+    static Rectangle micrographBounds(JeolSidecar sidecar, double scalingFactor, ZeissTiffHeader zeiss) {
+	if (sidecar.hasCalibration()) {
+	    int w = (int)(sidecar.getFullWidth()  * scalingFactor);
+	    int h = (int)(sidecar.getFullHeight() * scalingFactor);
+	    return new Rectangle(0,0, w, h);
+	}
+	if (zeiss != null)
+	    return zeiss.getMicrographBounds();
+	return null;
+    }
+
+    /**
+     * Returns the length of the scale bar in the unit of the calibration:
+     * the micron marker of the .txt -file, or for a Zeiss TIFF the default
+     * length for the width of the micrograph.
+     */
+    static double barWidth(Calibration cal, int imageWidth, JeolSidecar sidecar, ZeissTiffHeader zeiss, Rectangle bounds) {
+	if (zeiss != null)
+	    return ScaleBarRenderer.getDefaultWidth(cal.getX(bounds!=null ? bounds.width : imageWidth));
+	return sidecar.getMicronMarker();
+    }
+
+    /**
+     * Runs the selected post-processing steps and draws the scale bar. The
+     * source image is left as it is.
+     *
+     * @param img		the calibrated micrograph
+     * @param bounds		the micrograph without the information bar,
+     *			null if not known
+     * @param barWidth		length of the scale bar, see barWidth
+     * @param o			the steps to run
+     * @return			the processed image
+     */
+    static ImagePlus postProcess(ImagePlus img, Rectangle bounds, double barWidth, Options o) {
+	return drawScaleBar(pipeline(bounds, o).apply(img), barWidth, o);
+    }
+
+    /**
+     * Runs the post-processing steps on an image that is resized to 800x600
+     * without opening it: TIFFs and BMPs that can be read row by row go
+     * through the pipeline straight from the file, so the full size image is
+     * never held in memory. The result is the same as with the opened image.
+     *
+     * @param cal	the calibration of the full size image, null for the
+     *			one in the file
+     * @return		the processed image, or null if the image is not
+     *			resized or has to be opened
+     * @throws IOException	if reading the file fails
+     */
+    static ImagePlus postProcess(File image, Calibration cal, Rectangle bounds, double barWidth, Options o) throws IOException {
+	if (!o.resize)
+	    return null;
+	ImagePlus result = pipeline(bounds, o).apply(image, cal);
+	return result != null ? drawScaleBar(result, barWidth, o) : null;
+    }
+
+    private static PostProcessPipeline pipeline(Rectangle bounds, Options o) {
+	PostProcessPipeline pipeline = new PostProcessPipeline();
+	if (o.crop && bounds != null)
+	    pipeline.setCrop(bounds);
+	pipeline.setEqualize(o.contrast);
+	pipeline.setSmooth(o.smooth);
+	if (o.resize)
+	    pipeline.setResizeWidth(800);
+	pipeline.setConvertToRGB(o.rgb);
+	return pipeline;
+    }
+
+    private static ImagePlus drawScaleBar(ImagePlus result, double barWidth, Options o) {
+	if (o.scalebar) {
+	    // Draw the bar straight into the pixels, there is no overlay to flatten
+	    new ScaleBarRenderer(4, 14).draw(result.getProcessor(), result.getCalibration(), barWidth);
+	}
+	return result;
+    }
+
+    /**
+     * Batch mode, run when the plugin gets a "dir=" macro option or is
+     * installed with the argument "batch". Without macro options the folder
+     * and the steps are asked for in a dialog.
+     */
+    private void runBatch(String options) {
+	String dir;
+	Options o;
+	int threads;
+	if (options!=null && options.indexOf("dir=")!=-1) {
+	    dir = Macro.getValue(options, "dir", null);
+	    o = Options.parse(options);
+	    threads = (int)Tools.parseDouble(Macro.getValue(options, "threads", ""), Runtime.getRuntime().availableProcessors());
+	} else {
+	    dir = IJ.getDirectory("Select a folder of micrographs...");
+	    if (dir==null) return;
+	    GenericDialog gd = new GenericDialog("JSM ScaleBar batch");
+	    gd.setOKLabel("Execute");
+	    gd.addCheckbox("Crop infobar", true);
+	    gd.addCheckbox("Smooth", true);
+	    gd.addCheckbox("Contrast enhancement", true);
+	    gd.addCheckbox("Resize to 800x600", false);
+	    gd.addCheckbox("RGB mode", true);
+	    gd.addCheckbox("Scalebar at bottom left", true);
+	    gd.addNumericField("Threads", Runtime.getRuntime().availableProcessors(), 0);
+	    gd.showDialog();
+	    if (gd.wasCanceled()) return;
+	    o = new Options(gd.getNextBoolean(), gd.getNextBoolean(), gd.getNextBoolean(), gd.getNextBoolean(),
+			    gd.getNextBoolean(), gd.getNextBoolean(), true);
+	    threads = (int)gd.getNextNumber();
+	}
+	try {
+	    batch(dir, o, threads);
+	}
+	catch (IOException e) {
+	    IJ.error("JSM ScaleBar...", e.getMessage());
+	}
+    }
+
+    /**
+     * Processes every image of a folder that has a .txt -file next to it, and
+     * every TIFF with a Zeiss pixel size, and saves the result as "e-" + name
+     * + ".tif" ("er-" when resized) in the same folder, the same file as
+     * autosave writes. Other images, which include the saved results, are
+     * left out. The images are
+     * processed on a pool of threads; each one is opened, processed and
+     * saved by one thread, so the only state shared is the options.
+     *
+     * @param dir	the folder of micrographs
+     * @param o		the post-processing steps, autosave must be on
+     * @param threads	number of images processed at a time
+     * @return		number of images saved
+     */
+    public static int batch(String dir, final Options o, int threads) throws IOException {
+	if (!o.autosave) {
+	    IJ.log("JSM ScaleBar: autosave is off, nothing to do in "+dir);
+	    return 0;
+	}
+	Map<File,File> pairs = pairs(new File(dir));
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	int saved = 0, skipped = 0;
+	try {
+	    Map<File,Future<String>> results = new LinkedHashMap<File,Future<String>>();
+	    for (final Map.Entry<File,File> pair : pairs.entrySet())
+		results.put(pair.getKey(), pool.submit(new Callable<String>() {
+			public String call() throws IOException {
+			    return process(pair.getKey(), pair.getValue(), o);
 			}
+		    }));
+	    int n = 0;
+	    for (Map.Entry<File,Future<String>> r : results.entrySet()) {
+		IJ.showProgress(n++, results.size());
+		try {
+		    if (r.getValue().get()!=null)
+			saved++;
+		    else
+			skipped++;
+		}
+		catch (ExecutionException e) {
+		    IJ.log(r.getKey()+": "+e.getCause().getMessage());
+		}
+	    }
+	    IJ.showProgress(1.0);
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Batch interrupted");
 	}
+	finally {
+	    pool.shutdownNow();
+	}
+	IJ.log("JSM ScaleBar: saved "+saved+" of "+(pairs.size()-skipped)+" images in "+dir
+	       +(skipped>0 ? ", "+skipped+" TIFFs without .txt -file or Zeiss pixel size" : ""));
+	return saved;
+    }
 
-    /** 
-     * This is a class which inherits the HashMap. It's only functionality so far
-     * is to make a nicer toString() method.
+    /**
+     * Pairs the images of a folder with their .txt -files, reading the folder
+     * once. TIFFs without a .txt -file are paired with null, they may have a
+     * Zeiss header. The pairs are sorted by image name.
      */
-    private class MyHashMap extends HashMap {
-	public String toString() {
-	    String message = new String();
-	    Iterator i = this.entrySet().iterator();
-	    while(i.hasNext()){
-		Map.Entry me = (Map.Entry)i.next();
-		message += me.getKey().toString() + " : " + me.getValue().toString() + "\n";
+    static Map<File,File> pairs(File dir) throws IOException {
+	Set<String> names = new HashSet<String>();
+	DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath());
+	try {
+	    for (Path p : ds)
+		names.add(p.getFileName().toString());
+	}
+	finally {
+	    ds.close();
+	}
+	Map<File,File> pairs = new TreeMap<File,File>();
+	for (String name : names) {
+	    if (name.startsWith(".") || !MetadataIndex.isImage(name))
+		continue;
+	    String txt = JeolSidecar.sidecarName(name);
+	    if (names.contains(txt) && !txt.equals(name))
+		pairs.put(new File(dir, name), new File(dir, txt));
+	    else if (ZeissTiffHeader.isTiff(name))
+		pairs.put(new File(dir, name), null);
+	}
+	return pairs;
+    }
+
+    /**
+     * Opens, calibrates, post-processes and saves one image. An image without
+     * a .txt -file is calibrated from its Zeiss header, which is read before
+     * the image is opened. An image that is resized is read straight from
+     * the file if it can be, see postProcess(File, ...).
+     *
+     * @param txt	the .txt -file of the image, or null
+     * @return		the path written, null if the image has no calibration
+     * @throws IOException	if the image can not be read or saved
+     */
+    static String process(File image, File txt, Options o) throws IOException {
+	JeolSidecar sidecar = JeolSidecar.EMPTY;
+	ZeissTiffHeader zeiss = null;
+	if (txt!=null)
+	    sidecar = JeolSidecar.read(txt.getPath());
+	else if ((zeiss = ZeissTiffHeader.readCalibrated(image))==null)
+	    return null;
+	ImagePlus img = null, result = null;
+	ImageHeader header = o.resize ? ImageHeader.read(image) : null;
+	if (header!=null) {
+	    Calibration cal = null;
+	    double scalingFactor = 0;
+	    if (zeiss!=null)
+		cal = zeiss.getCalibration();
+	    else if (sidecar.hasCalibration()) {
+		cal = calibration(sidecar, header.width);
+		scalingFactor = sidecar.getScalingFactor(header.width);
 	    }
-	    return message;
+	    Rectangle bounds = micrographBounds(sidecar, scalingFactor, zeiss);
+	    result = postProcess(image, cal, bounds, barWidth(cal, header.width, sidecar, zeiss, bounds), o);
+	}
+	if (result==null) {
+	    img = IJ.openImage(image.getPath());
+	    if (img==null)
+		throw new IOException("Could not open "+image);
+	    double scalingFactor = 0;
+	    if (zeiss!=null)
+		img.setCalibration(zeiss.getCalibration());
+	    else
+		scalingFactor = calibrate(img, sidecar);
+	    Rectangle bounds = micrographBounds(sidecar, scalingFactor, zeiss);
+	    result = postProcess(img, bounds, barWidth(img.getCalibration(), img.getWidth(), sidecar, zeiss, bounds), o);
 	}
+	String name = image.getName();
+	String baseName = name.substring(0, name.lastIndexOf('.'));
+	String path = ImageSaver.save(result, "TIFF", new File(image.getParentFile(), o.getPrefix()+baseName).getPath());
+	result.flush();
+	if (img!=null)
+	    img.flush();
+	if (path==null)
+	    throw new IOException("Could not save "+o.getPrefix()+baseName);
+	return path;
     }
 
-}
+    /**
+     * The post-processing steps. The macro and command line keywords are
+     * the names of the fields, for example "crop smooth contrast rgb
+     * scalebar autosave".
+     */
+    public static final class Options {
+
+	final boolean crop, smooth, contrast, resize, rgb, scalebar, autosave;
 
+	public Options(boolean crop, boolean smooth, boolean contrast, boolean resize,
+		       boolean rgb, boolean scalebar, boolean autosave) {
+	    this.crop = crop;
+	    this.smooth = smooth;
+	    this.contrast = contrast;
+	    this.resize = resize;
+	    this.rgb = rgb;
+	    this.scalebar = scalebar;
+	    this.autosave = autosave;
+	}
+
+	/** Reads the options from a list of keywords. */
+	public static Options parse(String keywords) {
+	    String s = " "+keywords+" ";
+	    return new Options(s.indexOf(" crop ")!=-1, s.indexOf(" smooth ")!=-1, s.indexOf(" contrast ")!=-1,
+			       s.indexOf(" resize ")!=-1, s.indexOf(" rgb ")!=-1, s.indexOf(" scalebar ")!=-1,
+			       s.indexOf(" autosave ")!=-1);
+	}
+
+	/** Returns the prefix of the saved file names, "e-" or "er-" when resized. */
+	String getPrefix() {
+	    return resize ? "er-" : "e-";
+	}
+    }
+
+    /**
+     * Processes a folder from the command line:
+     * "java -cp ij.jar:. JIPS.JSM_ScaleBar dir [crop] [smooth] [contrast]
+     * [resize] [rgb] [scalebar] [threads=n]". Results are always saved.
+     */
+    public static void main(String args[]) throws IOException {
+	if (args.length<1) {
+	    System.err.println("usage: java JSM_ScaleBar dir [crop] [smooth] [contrast] [resize] [rgb] [scalebar] [threads=n]");
+	    System.exit(1);
+	}
+	StringBuilder keywords = new StringBuilder("autosave");
+	for (int i=1; i<args.length; i++)
+	    keywords.append(' ').append(args[i]);
+	String options = keywords.toString();
+	int threads = (int)Tools.parseDouble(Macro.getValue(options, "threads", ""), Runtime.getRuntime().availableProcessors());
+	int saved = batch(args[0], Options.parse(options), threads);
+	System.exit(saved>0 ? 0 : 1);
+    }
+
+}
@@ -0,0 +1,352 @@
+/*
+ * @(#)JeolSidecar.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+
+/**
+ * The information in the .txt file that a JEOL SEM (e.g. the JSM-7500F)
+ * writes next to each micrograph. The file is read once, line by line, and
+ * each line is dispatched on its "$KEY" or "$$KEY" word; lines with other
+ * keys are ignored. Numeric values are kept as primitives. Values that are
+ * missing or can not be parsed are NaN for numbers and null for text.
+ * The lines are parsed into a Parser, from which the final fields are set
+ * once.
+ *
+ * Instances are immutable and do not depend on the ImageJ user interface, so
+ * they can be used from batch code and from several threads.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class JeolSidecar {
+
+    /** A sidecar without any information, for images that have none. */
+    public static final JeolSidecar EMPTY = new JeolSidecar();
+
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private final double micronBarPx;
+    private final double micronMarker;
+    private final String micronMarkerUnit;
+    private final double fullWidth;
+    private final double fullHeight;
+    private final String title;
+    private final String instrument;
+    private final String date;
+    private final String time;
+    private final String vacuum;
+    private final String signal;
+    private final String signalName;
+    private final double accelVoltage;
+    private final String accelVoltageText;
+    private final String biasVoltage;
+    private final double workingDistance;
+    private final double magnification;
+    private final String columnMode;
+    private final double stageX;
+    private final double stageY;
+    private final double stageZ;
+    private final double stageR;
+    private final double stageT;
+
+    private JeolSidecar() {
+	this(new Parser());
+    }
+
+    private JeolSidecar(Parser p) {
+	micronBarPx = p.micronBarPx;
+	micronMarker = p.micronMarker;
+	micronMarkerUnit = p.micronMarkerUnit;
+	fullWidth = p.fullWidth;
+	fullHeight = p.fullHeight;
+	title = p.title;
+	instrument = p.instrument;
+	date = p.date;
+	time = p.time;
+	vacuum = p.vacuum;
+	signal = p.signal;
+	signalName = p.signalName;
+	accelVoltageText = p.accelVoltage;
+	accelVoltage = p.accelVoltage!=null ? parse(p.accelVoltage) : Double.NaN;
+	biasVoltage = p.biasVoltage;
+	workingDistance = p.workingDistance;
+	magnification = p.magnification;
+	columnMode = p.columnMode;
+	stageX = p.stageX;
+	stageY = p.stageY;
+	stageZ = p.stageZ;
+	stageR = p.stageR;
+	stageT = p.stageT;
+    }
+
+    /**
+     * Reads the sidecar file at the given path.
+     *
+     * @throws IOException	if the file can not be read
+     */
+    public static JeolSidecar read(String path) throws IOException {
+	BufferedReader in = Files.newBufferedReader(Paths.get(path), LATIN1);
+	try {
+	    return read(in);
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /** Reads the sidecar from a reader, which is not closed. */
+    public static JeolSidecar read(BufferedReader in) throws IOException {
+	Parser p = new Parser();
+	String line;
+	while ((line = in.readLine())!=null)
+	    p.parseLine(line);
+	return new JeolSidecar(p);
+    }
+
+    /** Returns the name of the sidecar file of an image file name. */
+    public static String sidecarName(String imageName) {
+	int dot = imageName.lastIndexOf('.');
+	return (dot<0 ? imageName : imageName.substring(0, dot)) + ".txt";
+    }
+
+    /** The values of the file while it is being read. */
+    private static final class Parser {
+	double micronBarPx = Double.NaN;
+	double micronMarker = Double.NaN;
+	String micronMarkerUnit;
+	double fullWidth = Double.NaN;
+	double fullHeight = Double.NaN;
+	String title;
+	String instrument;
+	String date;
+	String time;
+	String vacuum;
+	String signal;
+	String signalName;
+	String accelVoltage;
+	String biasVoltage;
+	double workingDistance = Double.NaN;
+	double magnification = Double.NaN;
+	String columnMode;
+	double stageX = Double.NaN;
+	double stageY = Double.NaN;
+	double stageZ = Double.NaN;
+	double stageR = Double.NaN;
+	double stageT = Double.NaN;
+
+	void parseLine(String line) {
+	    if (line.length()==0 || line.charAt(0)!='$')
+		return;
+	    int sp = line.indexOf(' ');
+	    if (sp<0)
+		return;
+	    String key = line.substring(0, sp);
+	    String value = line.substring(sp+1).trim();
+	    switch (key) {
+	    case "$$SM_MICRON_BAR":
+		micronBarPx = parse(value);
+		break;
+	    case "$$SM_MICRON_MARKER":
+		// The unit is the last two characters, e.g. "100nm" or "1um"
+		if (value.length()>2) {
+		    micronMarker = parse(value.substring(0, value.length()-2));
+		    micronMarkerUnit = value.substring(value.length()-2);
+		}
+		break;
+	    case "$CM_FULL_SIZE": {
+		int i = value.indexOf(' ');
+		if (i>0) {
+		    fullWidth = parse(value.substring(0, i));
+		    fullHeight = parse(value.substring(i+1));
+		}
+		break;
+	    }
+	    case "$CM_TITLE":
+		title = value;
+		break;
+	    case "$CM_INSTRUMENT":
+		instrument = value;
+		break;
+	    case "$CM_DATE":
+		date = value;
+		break;
+	    case "$CM_TIME":
+		time = value;
+		break;
+	    case "$SM_PENNING_VAC":
+		vacuum = value;
+		break;
+	    case "$CM_SIGNAL":
+		signal = value;
+		break;
+	    case "$CM_SIGNAL_NAME":
+		signalName = value;
+		break;
+	    case "$CM_ACCEL_VOLT":
+		accelVoltage = value;
+		break;
+	    case "$SM_GB_BIAS_VOLT":
+		biasVoltage = value;
+		break;
+	    case "$$SM_WD":
+		workingDistance = parse(value);
+		break;
+	    case "$CM_MAG":
+		magnification = parse(value);
+		break;
+	    case "$$SM_COLUMN_MODE":
+		columnMode = value;
+		break;
+	    case "$CM_STAGE_POS": {
+		String[] p = value.split(" ");
+		if (p.length>=5) {
+		    stageX = parse(p[0]);
+		    stageY = parse(p[1]);
+		    stageZ = parse(p[2]);
+		    stageR = parse(p[3]);
+		    stageT = parse(p[4]);
+		}
+		break;
+	    }
+	    default:
+		break;
+	    }
+	}
+    }
+
+    private static double parse(String s) {
+	try {
+	    return Double.parseDouble(s);
+	}
+	catch (NumberFormatException e) {
+	    return Double.NaN;
+	}
+    }
+
+    /** Length of the micron bar in pixels. */
+    public double getMicronBarPx() { return micronBarPx; }
+    /** Length of the micron bar in micronMarkerUnit. */
+    public double getMicronMarker() { return micronMarker; }
+    /** Unit of the micron bar, e.g. "nm" or "um". */
+    public String getMicronMarkerUnit() { return micronMarkerUnit; }
+    /** Width of the image without the information bar, in pixels. */
+    public double getFullWidth() { return fullWidth; }
+    /** Height of the image without the information bar, in pixels. */
+    public double getFullHeight() { return fullHeight; }
+    public String getTitle() { return title; }
+    public String getInstrument() { return instrument; }
+    public String getDate() { return date; }
+    public String getTime() { return time; }
+    public String getVacuum() { return vacuum; }
+    public String getSignal() { return signal; }
+    public String getSignalName() { return signalName; }
+    /** Acceleration voltage in kV. */
+    public double getAccelVoltage() { return accelVoltage; }
+    /** Acceleration voltage as written in the file. */
+    public String getAccelVoltageText() { return accelVoltageText; }
+    public String getBiasVoltage() { return biasVoltage; }
+    public double getWorkingDistance() { return workingDistance; }
+    public double getMagnification() { return magnification; }
+    public String getColumnMode() { return columnMode; }
+    public double getStageX() { return stageX; }
+    public double getStageY() { return stageY; }
+    public double getStageZ() { return stageZ; }
+    public double getStageR() { return stageR; }
+    public double getStageT() { return stageT; }
+
+    /**
+     * Returns true if the file had the micron bar and the full size, which
+     * are needed for the calibration.
+     */
+    public boolean hasCalibration() {
+	return !Double.isNaN(micronBarPx) && !Double.isNaN(micronMarker)
+	    && micronMarkerUnit!=null && !Double.isNaN(fullWidth);
+    }
+
+    /**
+     * Returns the ratio of the saved image width and the full size in the
+     * file. It is not 1 when the image was saved at a lower resolution.
+     */
+    public double getScalingFactor(double imageWidth) {
+	return imageWidth / fullWidth;
+    }
+
+    /**
+     * Returns the size of one pixel in micronMarkerUnit for an image of the
+     * given width. The scaling factor has to be taken into account, because
+     * of a bug in the PC_SEM software which occurs, when a file is saved in a
+     * lower resolution than 1024 px wide.
+     */
+    public double getPixelSize(double imageWidth) {
+	return micronMarker / (micronBarPx * getScalingFactor(imageWidth));
+    }
+
+    /** Lists the values that were found, one "name : value" per line. */
+    public String toString() {
+	StringBuilder sb = new StringBuilder();
+	append(sb, "micron bar px", micronBarPx);
+	append(sb, "micron bar", micronMarker);
+	append(sb, "micron bar unit", micronMarkerUnit);
+	append(sb, "image width", fullWidth);
+	append(sb, "image height", fullHeight);
+	append(sb, "title", title);
+	append(sb, "instrument", instrument);
+	append(sb, "date", date);
+	append(sb, "time", time);
+	append(sb, "vacuum", vacuum);
+	append(sb, "signal", signal);
+	append(sb, "signal name", signalName);
+	append(sb, "acceleration voltage", accelVoltageText);
+	append(sb, "bias voltage", biasVoltage);
+	append(sb, "working distance", workingDistance);
+	append(sb, "magnification", magnification);
+	append(sb, "column mode", columnMode);
+	append(sb, "stage x", stageX);
+	append(sb, "stage y", stageY);
+	append(sb, "stage z", stageZ);
+	append(sb, "stage r", stageR);
+	append(sb, "stage t", stageT);
+	return sb.toString();
+    }
+
+    private static void append(StringBuilder sb, String name, double value) {
+	if (!Double.isNaN(value))
+	    sb.append(name).append(" : ").append(value).append('\n');
+    }
+
+    private static void append(StringBuilder sb, String name, String value) {
+	if (value!=null)
+	    sb.append(name).append(" : ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,207 @@
+/*
+ * @(#)MegaviewHeader.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import ij.measure.Calibration;
+
+/**
+ * Reads the magnification of a Megaview camera micrograph. The camera
+ * software writes its settings as text into the image file, and the
+ * magnification is the last word of the last line starting with "Mode ",
+ * e.g. "98000x". In a TIFF only the text values of the tags are searched,
+ * found through the IFDs with ZeissTiffHeader.textValues, so the pixel data
+ * is never read. If the file is not a TIFF, or its tags have no "Mode "
+ * line, only the first HEADER_WINDOW bytes of the file are searched, in
+ * chunks and as raw bytes without turning them into text, so that a file
+ * that is not from a Megaview costs kilobytes of I/O, not its full size.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class MegaviewHeader {
+
+    private static final int CHUNK = 64*1024;
+    /** Bytes searched at the start of a file whose TIFF tags have no "Mode " line. */
+    private static final int HEADER_WINDOW = 256*1024;
+    /** Longer lines are not "Mode " lines. */
+    private static final int MAX_LINE = 4096;
+    private static final byte[] MODE = {'M', 'o', 'd', 'e', ' '};
+
+    private MegaviewHeader() {
+    }
+
+    /**
+     * Returns the magnification written in the file, or NaN if there is no
+     * "Mode " line or the last one has no magnification.
+     *
+     * @throws IOException	if the file can not be read
+     */
+    public static double readMagnification(String path) throws IOException {
+	FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+	try {
+	    ModeScanner scanner = new ModeScanner();
+	    List<long[]> values = null;
+	    if (ZeissTiffHeader.isTiff(path)) {
+		try {
+		    values = ZeissTiffHeader.textValues(ch);
+		}
+		catch (IOException e) {
+		    values = null; // Not a TIFF after all, search the header
+		}
+	    }
+	    if (values!=null) {
+		for (long[] value : values)
+		    scan(ch, value[0], Math.min(value[1], ch.size()-value[0]), scanner);
+		if (scanner.found)
+		    return scanner.magnification;
+	    }
+	    scan(ch, 0, Math.min(HEADER_WINDOW, ch.size()), scanner);
+	    return scanner.magnification;
+	}
+	finally {
+	    ch.close();
+	}
+    }
+
+    /** Gives length bytes of the file from pos to the scanner. */
+    private static void scan(FileChannel ch, long pos, long length, ModeScanner scanner) throws IOException {
+	ByteBuffer bb = ByteBuffer.allocate((int)Math.max(0, Math.min(CHUNK, length)));
+	long end = pos+length;
+	while (pos<end) {
+	    bb.clear();
+	    bb.limit((int)Math.min(bb.capacity(), end-pos));
+	    int n = ch.read(bb, pos);
+	    if (n<0)
+		break;
+	    scanner.scan(bb.array(), n);
+	    pos += n;
+	}
+	// A value or the file may end without a line break
+	scanner.endLine();
+    }
+
+    /**
+     * Finds the last "Mode " line in the bytes given to it. Lines end at
+     * '\n' or '\r', like in BufferedReader.readLine.
+     */
+    private static final class ModeScanner {
+	private final byte[] line = new byte[MAX_LINE];
+	private int length;
+	/** The current line is not a "Mode " line. */
+	private boolean skip;
+	boolean found;
+	double magnification = Double.NaN;
+
+	void scan(byte[] buf, int n) {
+	    for (int i=0; i<n; i++) {
+		byte b = buf[i];
+		if (b=='\n' || b=='\r')
+		    endLine();
+		else if (skip)
+		    continue;
+		else if (length<MODE.length ? b!=MODE[length] : length==line.length)
+		    skip = true;
+		else
+		    line[length++] = b;
+	    }
+	}
+
+	void endLine() {
+	    if (!skip && length>=MODE.length) {
+		found = true;
+		magnification = parseMagnification(line, 0, length);
+	    }
+	    length = 0;
+	    skip = false;
+	}
+    }
+
+    /**
+     * Returns the pixel size in nanometers for a magnification of the
+     * camera, or 1.0 if the magnification has not been calibrated.
+     */
+    public static double pixelSize(double mag) {
+	if (mag == 340000) return 0.2354;
+	if (mag == 250000) return 0.3216;
+	if (mag == 150000) return 0.5419;
+	if (mag == 120000) return 0.6821;
+	if (mag == 68000) return 1.237;
+	if (mag == 30000) return 2.868;
+	if (mag == 23000) return 3.735;
+	if (mag == 18500) return 4.635;
+	if (mag == 6800) return 12.41;
+	return 1.0;
+    }
+
+    /**
+     * Reads the magnification from the file and returns the matching
+     * calibration in nanometers. If the file has no magnification, the
+     * returned calibration is empty.
+     *
+     * @throws IOException	if the file can not be read
+     */
+    public static Calibration readCalibration(String path) throws IOException {
+	Calibration cal = new Calibration();
+	double mag = readMagnification(path);
+	if (Double.isNaN(mag))
+	    return cal;
+	double pixelsize = pixelSize(mag);
+	cal.setUnit("nm");
+	cal.pixelWidth = pixelsize;
+	cal.pixelHeight = pixelsize;
+	return cal;
+    }
+
+    /** Parses the last word of the line, e.g. "98000x", without the "x". */
+    private static double parseMagnification(byte[] buf, int start, int end) {
+	while (end>start && (buf[end-1]&0xff)<=' ')
+	    end--;
+	int wordStart = end;
+	while (wordStart>start && (buf[wordStart-1]&0xff)>' ')
+	    wordStart--;
+	if (end-wordStart<2)
+	    return Double.NaN;
+	try {
+	    return Double.parseDouble(new String(buf, wordStart, end-wordStart-1, "ISO-8859-1"));
+	}
+	catch (NumberFormatException e) {
+	    return Double.NaN;
+	}
+	catch (UnsupportedEncodingException e) {
+	    return Double.NaN;
+	}
+    }
+}
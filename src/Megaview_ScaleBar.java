@@ -59,87 +59,17 @@ public class Megaview_ScaleBar implements PlugIn {
 	//	img.setRoi(0,0,1280,960);
     }   
 
-    private static String readFileAsString(String filePath)
-	throws java.io.IOException {
-        StringBuffer fileData = new StringBuffer(1000);
-        BufferedReader reader = new BufferedReader(new FileReader(filePath));
-        char[] buf = new char[1024];
-        int numRead=0;
-        while((numRead=reader.read(buf)) != -1){
-            fileData.append(buf, 0, numRead);
-        }
-        reader.close();
-        return fileData.toString();
-    }
-
-    private static Calibration getCalibrationFromFile(String textfile) {
-	// Read every line of the file
-	String lines = new String();
+    /**
+     * Reads the calibration from the header of the image file. Only the
+     * text in the TIFF tags is read, see MegaviewHeader.
+     */
+    private static Calibration getCalibrationFromFile(String imagefile) {
 	try {
-	    lines = readFileAsString(textfile);
+	    return MegaviewHeader.readCalibration(imagefile);
 	}
-	catch (Exception e) {
-	    IJ.error("JSM ScaleBar...", e.getMessage());
+	catch (IOException e) {
+	    IJ.error("Megaview ScaleBar...", e.getMessage());
 	    return new Calibration();
 	}
-
-	// Split the file into lines (it's binary, but who cares?)
-	String linesarray[] = lines.split("\\r?\\n|\\r");
-
-       
-	String mag_string = new String();
-
-	// Find the correct line containing the magnification info and put the magnification in mag_string (e.g. 98000x)
-	for (int i=0; i<linesarray.length; i++) {
-	    String line = linesarray[i];
-	    if (line.startsWith("Mode ")) {
-		String[] result = line.split("\\s");
-		mag_string = result[result.length-1];	 
-	    }
-	}
-
-	// Initialize magnification variables and read the magnification value
-	double mag = Double.parseDouble(mag_string.substring(0,mag_string.length()-1));
-	String micron_marker_unit = "nm";
-	double pixelsize = 0;
-	// Magnification calibration is set below, pixelsize is the size of pixel in nanometers
-	if (mag == 340000) {
-	    pixelsize = 0.2354;
-	}
-	else if (mag == 150000) {
-	    pixelsize = 0.5419;
-	}
-	else if (mag == 120000) {
-	    pixelsize = 0.6821;
-	}
-	else if (mag == 68000) {
-	    pixelsize = 1.237;
-	}
-	else if (mag == 23000) {
-	    pixelsize = 3.735;
-	}
-	else if (mag == 6800) {
-	    pixelsize = 12.41;
-	}
-	else if (mag == 30000) {
-	    pixelsize = 2.868;
-	}
-	else if (mag == 250000) {
-	    pixelsize = 0.3216;
-	}
-	else if (mag == 18500) {
-	    pixelsize = 4.635;
-	}
-	else {
-	    pixelsize = 1.0;
-	}
-
-	Calibration cal = new Calibration();
-	cal.setUnit(micron_marker_unit);
-	cal.pixelWidth = pixelsize;
-	cal.pixelHeight = pixelsize;
-	
-	return cal;
     }
 }
-
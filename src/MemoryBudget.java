@@ -0,0 +1,223 @@
+/*
+ * @(#)MemoryBudget.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.util.*;
+import ij.*;
+
+/**
+ * Lets a batch conversion start a file only when the memory it is estimated
+ * to need fits in a budget, so that a few very large images arriving
+ * together do not run the heap out. The estimate of each file is made from
+ * its header before it is decoded (see Batch_Converter.estimateMemory) and
+ * held from the moment the file is handed to the workers until it leaves the
+ * conversion.
+ *
+ * The files are read and estimated a window ahead of the workers. When the
+ * oldest one does not fit, any later one that does is started first, so
+ * small images fill in around a large one and the workers stay busy. A file that has been
+ * passed over window times is not passed over again: nothing more is started
+ * until it fits. A file whose estimate is larger than the whole budget is
+ * started when nothing else is running.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class MemoryBudget {
+
+    /** Estimates the memory needed to convert a job, in bytes. */
+    interface Estimator {
+	long estimate(ConversionJob job);
+    }
+
+    private final long capacity;
+    private final int window;
+    private final Estimator estimator;
+
+    // Guarded by this. The jobs read ahead, oldest first, with their
+    // estimates and the number of times they were passed over.
+    private final List<ConversionJob> waiting = new ArrayList<ConversionJob>();
+    private final List<long[]> state = new ArrayList<long[]>();
+    private boolean ended;
+    private long used;
+    private int running;
+    private long peak;
+    private int held, alone;
+
+    /**
+     * @param capacity	the budget in bytes
+     * @param window	number of files read ahead when the next one does
+     *			not fit
+     * @param estimator	estimates the memory of each file
+     */
+    MemoryBudget(long capacity, int window, Estimator estimator) {
+	this.capacity = capacity;
+	this.window = Math.max(1, window);
+	this.estimator = estimator;
+    }
+
+    /**
+     * Returns the jobs in the order they fit in the budget. The jobs are
+     * read from the source and estimated on a thread of their own, up to
+     * window of them ahead, so that a job that has to wait can be started
+     * as soon as memory is released even if the source blocks (a watched
+     * folder). next() blocks until a job can be started and reserves its
+     * memory; release() must be called when the job leaves the conversion.
+     * The returned iterator must be used by one thread.
+     */
+    Iterator<ConversionJob> admitAll(final Iterator<ConversionJob> jobs) {
+	Thread feeder = new Thread("MemoryBudget-feeder") {
+		public void run() {
+		    try {
+			while (jobs.hasNext()) {
+			    ConversionJob job = jobs.next();
+			    long estimate = Math.max(1, estimator.estimate(job));
+			    synchronized (MemoryBudget.this) {
+				while (waiting.size()>=window)
+				    MemoryBudget.this.wait();
+				waiting.add(job);
+				state.add(new long[] {estimate, 0});
+				MemoryBudget.this.notifyAll();
+			    }
+			}
+		    }
+		    catch (InterruptedException e) {
+			// Stop reading
+		    }
+		    catch (RuntimeException e) {
+			IJ.log("Reading the files to convert failed: "+e);
+		    }
+		    finally {
+			synchronized (MemoryBudget.this) {
+			    ended = true;
+			    MemoryBudget.this.notifyAll();
+			}
+		    }
+		}
+	    };
+	feeder.setDaemon(true);
+	feeder.start();
+	return new Iterator<ConversionJob>() {
+	    public boolean hasNext() {
+		synchronized (MemoryBudget.this) {
+		    try {
+			while (waiting.isEmpty() && !ended)
+			    MemoryBudget.this.wait();
+		    }
+		    catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return false;
+		    }
+		    return !waiting.isEmpty();
+		}
+	    }
+
+	    public ConversionJob next() {
+		synchronized (MemoryBudget.this) {
+		    while (true) {
+			int i = admit();
+			if (i>=0) {
+			    ConversionJob job = waiting.remove(i);
+			    long[] s = state.remove(i);
+			    job.memory = s[0];
+			    used += s[0];
+			    running++;
+			    peak = Math.max(peak, used);
+			    if (s[0]>capacity)
+				alone++;
+			    for (int j=0; j<i; j++)
+				state.get(j)[1]++;
+			    if (i>0)
+				held++;
+			    MemoryBudget.this.notifyAll(); // Room for the feeder
+			    return job;
+			}
+			if (waiting.isEmpty() && ended)
+			    throw new NoSuchElementException();
+			try {
+			    MemoryBudget.this.wait();
+			}
+			catch (InterruptedException e) {
+			    Thread.currentThread().interrupt();
+			    throw new NoSuchElementException("Interrupted");
+			}
+		    }
+		}
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+	};
+    }
+
+    /**
+     * Returns the index of the first waiting job that may start, -1 if
+     * none may: a job fits if its estimate fits in what is left of the
+     * budget, or nothing is running. The jobs after one that has been
+     * passed over window times are not looked at.
+     */
+    private int admit() {
+	for (int i=0; i<waiting.size(); i++) {
+	    long[] s = state.get(i);
+	    if (used+s[0]<=capacity || running==0)
+		return i;
+	    if (s[1]>=window)
+		return -1; // Passed over enough, wait for it to fit
+	}
+	return -1;
+    }
+
+    /** Gives back the memory reserved for a job. Does nothing if none is. */
+    synchronized void release(ConversionJob job) {
+	if (job.memory==0)
+	    return;
+	used -= job.memory;
+	running--;
+	job.memory = 0;
+	notifyAll();
+    }
+
+    /** Returns the budget in bytes. */
+    long getCapacity() {
+	return capacity;
+    }
+
+    /** Returns the most memory that was reserved at one time, in bytes. */
+    synchronized long getPeak() {
+	return peak;
+    }
+
+    public synchronized String toString() {
+	return "memory budget "+(capacity>>20)+" MB, peak "+(peak>>20)+" MB reserved, "
+	    +held+" files started ahead of larger ones, "+alone+" over budget ran alone";
+    }
+}
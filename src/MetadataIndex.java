@@ -0,0 +1,386 @@
+/*
+ * @(#)MetadataIndex.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.measure.Calibration;
+
+/**
+ * An index of the micrographs in one acquisition folder. For each image the
+ * index keeps what was read from its JEOL .txt sidecar or its Zeiss, DM3 or
+ * Megaview header: pixel size and unit, magnification, working distance,
+ * acceleration voltage, stage position, date and time. The index is stored
+ * in the folder as a tab separated text file, and an image is read again
+ * only when its size or modification time, or that of its sidecar, has
+ * changed. The first time the files are read on several threads.
+ *
+ * Once the index is up to date, calibrations can be looked up and images
+ * can be searched without opening any of them.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class MetadataIndex {
+
+    /** Name of the index file in the acquisition folder. */
+    public static final String FILE_NAME = ".JIPS.index";
+
+    /** First line of the index file. The number goes up whenever the
+	sources read or what is read from them change, so that an index
+	with stale entries is built again. */
+    private static final String HEADER = "# JIPS metadata index 2";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String[] EXTENSIONS = {".tif", ".tiff", ".jpg", ".jpeg", ".bmp", ".png", ".dm3"};
+
+    /** The information of one image. Missing numbers are NaN. */
+    public static class Entry {
+	public final String name;
+	public final long size, modified, sidecarModified;
+	/** Where the calibration came from: "JEOL", "Zeiss", "Megaview", "DM3" or "none". */
+	public final String source;
+	public final double pixelSize;
+	public final String unit;
+	public final double magnification;
+	public final double workingDistance;
+	public final String accelVoltage;
+	public final String date, time;
+	public final double stageX, stageY, stageZ, stageR, stageT;
+
+	Entry(String name, long size, long modified, long sidecarModified,
+	      String source, double pixelSize, String unit, double magnification,
+	      double workingDistance, String accelVoltage, String date, String time,
+	      double stageX, double stageY, double stageZ, double stageR, double stageT) {
+	    this.name = name;
+	    this.size = size;
+	    this.modified = modified;
+	    this.sidecarModified = sidecarModified;
+	    this.source = source;
+	    this.pixelSize = pixelSize;
+	    this.unit = unit;
+	    this.magnification = magnification;
+	    this.workingDistance = workingDistance;
+	    this.accelVoltage = accelVoltage;
+	    this.date = date;
+	    this.time = time;
+	    this.stageX = stageX;
+	    this.stageY = stageY;
+	    this.stageZ = stageZ;
+	    this.stageR = stageR;
+	    this.stageT = stageT;
+	}
+
+	/** Returns true if the image had a pixel size. */
+	public boolean isCalibrated() {
+	    return !Double.isNaN(pixelSize);
+	}
+
+	/** Returns the calibration of the image, empty if there is none. */
+	public Calibration getCalibration() {
+	    Calibration cal = new Calibration();
+	    if (isCalibrated()) {
+		cal.setUnit(unit);
+		cal.pixelWidth = pixelSize;
+		cal.pixelHeight = pixelSize;
+	    }
+	    return cal;
+	}
+
+	/** The column names of toString(), tab separated. */
+	public static String headings() {
+	    return "name\tsource\tpixel size\tunit\tmagnification\tWD\taccel. voltage\tdate\ttime\tstage x\tstage y\tstage z\tstage r\tstage t";
+	}
+
+	/** The values of the entry, tab separated. */
+	public String toString() {
+	    return name+"\t"+source+"\t"+pixelSize+"\t"+text(unit)+"\t"+magnification+"\t"+workingDistance
+		+"\t"+text(accelVoltage)+"\t"+text(date)+"\t"+text(time)+"\t"+stageX+"\t"+stageY+"\t"+stageZ+"\t"+stageR+"\t"+stageT;
+	}
+    }
+
+    private final File dir;
+    private final Map<String,Entry> entries = new TreeMap<String,Entry>();
+
+    private MetadataIndex(File dir) {
+	this.dir = dir;
+    }
+
+    /**
+     * Opens the index of a folder and brings it up to date.
+     *
+     * @param dir	the acquisition folder
+     * @param threads	number of threads used to read changed images
+     */
+    public static MetadataIndex open(String dir, int threads) throws IOException {
+	MetadataIndex index = load(dir);
+	index.update(threads);
+	return index;
+    }
+
+    /**
+     * Reads the stored index of a folder without checking the images. The
+     * index is empty if the folder has not been indexed yet.
+     */
+    public static MetadataIndex load(String dir) {
+	MetadataIndex index = new MetadataIndex(new File(dir));
+	File file = new File(dir, FILE_NAME);
+	if (!file.isFile())
+	    return index;
+	try {
+	    BufferedReader in = Files.newBufferedReader(file.toPath(), UTF8);
+	    try {
+		String line = in.readLine();
+		if (!HEADER.equals(line))
+		    return index; // Written by another version, build it again
+		while ((line = in.readLine())!=null) {
+		    Entry e = parse(line);
+		    if (e!=null)
+			index.entries.put(e.name, e);
+		}
+	    }
+	    finally {
+		in.close();
+	    }
+	}
+	catch (IOException e) {
+	    IJ.log("Could not read "+file+": "+e);
+	}
+	return index;
+    }
+
+    /**
+     * Re-reads the images that are new or have changed since the index was
+     * written, drops the ones that no longer exist and stores the index if
+     * anything changed.
+     *
+     * @param threads	number of threads used to read the images
+     * @return		number of images that were read
+     */
+    public int update(int threads) throws IOException {
+	final Set<String> seen = new HashSet<String>();
+	final List<Path> changed = new ArrayList<Path>();
+	DirectoryStream<Path> ds = Files.newDirectoryStream(dir.toPath());
+	try {
+	    for (Path p : ds) {
+		String name = p.getFileName().toString();
+		if (name.startsWith(".") || !isImage(name) || !Files.isRegularFile(p))
+		    continue;
+		seen.add(name);
+		Entry e = entries.get(name);
+		File f = p.toFile();
+		if (e==null || e.size!=f.length() || e.modified!=f.lastModified()
+		    || e.sidecarModified!=sidecar(f).lastModified())
+		    changed.add(p);
+	    }
+	}
+	finally {
+	    ds.close();
+	}
+	boolean removed = entries.keySet().retainAll(seen);
+	if (changed.isEmpty()) {
+	    if (removed)
+		save();
+	    return 0;
+	}
+
+	ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+	try {
+	    List<Future<Entry>> results = new ArrayList<Future<Entry>>();
+	    for (final Path p : changed)
+		results.add(pool.submit(new Callable<Entry>() {
+			public Entry call() {
+			    return read(p.toFile());
+			}
+		    }));
+	    for (Future<Entry> r : results) {
+		Entry e = r.get();
+		entries.put(e.name, e);
+	    }
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Indexing interrupted");
+	}
+	catch (ExecutionException e) {
+	    throw new IOException(e.getCause());
+	}
+	finally {
+	    pool.shutdown();
+	}
+	save();
+	return changed.size();
+    }
+
+    /** Returns the entry of an image, or null if it is not in the index. */
+    public Entry get(String name) {
+	return entries.get(name);
+    }
+
+    /** Returns the calibration of an image, empty if it has none. */
+    public Calibration getCalibration(String name) {
+	Entry e = entries.get(name);
+	return e==null ? new Calibration() : e.getCalibration();
+    }
+
+    /** Returns all the entries, sorted by name. */
+    public Collection<Entry> getEntries() {
+	return Collections.unmodifiableCollection(entries.values());
+    }
+
+    /** Returns the entries of the images taken at the given magnification. */
+    public List<Entry> withMagnification(double mag) {
+	List<Entry> list = new ArrayList<Entry>();
+	for (Entry e : entries.values())
+	    if (e.magnification==mag)
+		list.add(e);
+	return list;
+    }
+
+    /** Reads the metadata of one image from its sidecar or header. */
+    static Entry read(File f) {
+	File txt = sidecar(f);
+	long txtModified = txt.lastModified();
+	if (txtModified!=0) {
+	    try {
+		JeolSidecar s = JeolSidecar.read(txt.getPath());
+		double pixelSize = Double.NaN;
+		if (s.hasCalibration()) {
+		    ImageHeader h = ImageHeader.read(f);
+		    pixelSize = s.getPixelSize(h!=null ? h.width : s.getFullWidth());
+		}
+		return new Entry(f.getName(), f.length(), f.lastModified(), txtModified,
+				 "JEOL", pixelSize, s.getMicronMarkerUnit(), s.getMagnification(),
+				 s.getWorkingDistance(), s.getAccelVoltageText(), s.getDate(), s.getTime(),
+				 s.getStageX(), s.getStageY(), s.getStageZ(), s.getStageR(), s.getStageT());
+	    }
+	    catch (IOException e) {
+		IJ.log("Could not read "+txt+": "+e);
+	    }
+	}
+	else if (f.getName().toLowerCase(Locale.US).endsWith(".dm3")) {
+	    try {
+		DM3Reader dm3 = DM3Reader.read(f);
+		Calibration cal = dm3.getCalibration();
+		double voltage = dm3.getVoltage();
+		if (cal.scaled())
+		    return new Entry(f.getName(), f.length(), f.lastModified(), 0,
+				     "DM3", cal.pixelWidth, cal.getUnit(), dm3.getMagnification(),
+				     Double.NaN, Double.isNaN(voltage) ? null : IJ.d2s(voltage/1000, 1)+" kV", null, null,
+				     Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+	    }
+	    catch (IOException e) {
+		IJ.log("Could not read "+f+": "+e);
+	    }
+	}
+	else if (f.getName().toLowerCase(Locale.US).startsWith(".tif", f.getName().lastIndexOf('.'))) {
+	    ZeissTiffHeader z = ZeissTiffHeader.readCalibrated(f);
+	    if (z!=null)
+		return new Entry(f.getName(), f.length(), f.lastModified(), 0,
+				 "Zeiss", z.getPixelSize(), z.getPixelSizeUnit(), z.getMagnification(),
+				 z.getWorkingDistance(), z.getAccelVoltage(), z.getDate(), z.getTime(),
+				 z.getStageX(), z.getStageY(), z.getStageZ(), z.getStageR(), z.getStageT());
+	    try {
+		double mag = MegaviewHeader.readMagnification(f.getPath());
+		if (!Double.isNaN(mag))
+		    return new Entry(f.getName(), f.length(), f.lastModified(), 0,
+				     "Megaview", MegaviewHeader.pixelSize(mag), "nm", mag,
+				     Double.NaN, null, null, null,
+				     Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+	    }
+	    catch (IOException e) {
+		IJ.log("Could not read "+f+": "+e);
+	    }
+	}
+	return new Entry(f.getName(), f.length(), f.lastModified(), txtModified,
+			 "none", Double.NaN, null, Double.NaN, Double.NaN, null, null, null,
+			 Double.NaN, Double.NaN, Double.NaN, Double.NaN, Double.NaN);
+    }
+
+    private static File sidecar(File image) {
+	return new File(image.getParentFile(), JeolSidecar.sidecarName(image.getName()));
+    }
+
+    static boolean isImage(String name) {
+	String lower = name.toLowerCase(Locale.US);
+	for (String ext : EXTENSIONS)
+	    if (lower.endsWith(ext))
+		return true;
+	return false;
+    }
+
+    private void save() throws IOException {
+	File file = new File(dir, FILE_NAME);
+	File tmp = new File(dir, FILE_NAME+".tmp");
+	Writer out = Files.newBufferedWriter(tmp.toPath(), UTF8);
+	try {
+	    out.write(HEADER+"\n");
+	    for (Entry e : entries.values()) {
+		out.write(e.name+"\t"+e.size+"\t"+e.modified+"\t"+e.sidecarModified+"\t"+e.source
+			  +"\t"+e.pixelSize+"\t"+text(e.unit)+"\t"+e.magnification+"\t"+e.workingDistance
+			  +"\t"+text(e.accelVoltage)+"\t"+text(e.date)+"\t"+text(e.time)
+			  +"\t"+e.stageX+"\t"+e.stageY+"\t"+e.stageZ+"\t"+e.stageR+"\t"+e.stageT+"\n");
+	    }
+	}
+	finally {
+	    out.close();
+	}
+	Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static Entry parse(String line) {
+	String[] f = line.split("\t", -1);
+	if (f.length!=17)
+	    return null;
+	try {
+	    return new Entry(f[0], Long.parseLong(f[1]), Long.parseLong(f[2]), Long.parseLong(f[3]), f[4],
+			     Double.parseDouble(f[5]), value(f[6]), Double.parseDouble(f[7]),
+			     Double.parseDouble(f[8]), value(f[9]), value(f[10]), value(f[11]),
+			     Double.parseDouble(f[12]), Double.parseDouble(f[13]), Double.parseDouble(f[14]),
+			     Double.parseDouble(f[15]), Double.parseDouble(f[16]));
+	}
+	catch (NumberFormatException e) {
+	    return null;
+	}
+    }
+
+    /** Text values are stored without tabs, and null as an empty field. */
+    private static String text(String s) {
+	return s==null ? "" : s.replace('\t', ' ').replace('\n', ' ');
+    }
+
+    private static String value(String s) {
+	return s.length()==0 ? null : s;
+    }
+}
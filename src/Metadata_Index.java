@@ -0,0 +1,107 @@
+/*
+ * @(#)Metadata_Index.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import ij.*;
+import ij.gui.*;
+import ij.plugin.*;
+import ij.text.*;
+
+/**
+ * This class is a plugin for the program ImageJ. It builds or updates the
+ * metadata index (see MetadataIndex) of an acquisition folder and lists the
+ * images in it, optionally only those taken at a given magnification.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class Metadata_Index implements PlugIn {
+
+    private static double magnification = 0;
+    private static int threads = Runtime.getRuntime().availableProcessors();
+
+    /**
+     * This function is executed, when the plugin is run from the menu.
+     *
+     * @param arg   arguments defined in IJ_Props.txt. Not used.
+     */
+    public void run(String arg) {
+	String dir = IJ.getDirectory("Select acquisition folder...");
+	if (dir==null) return;
+
+	GenericDialog gd = new GenericDialog("Metadata Index");
+	gd.addNumericField("Magnification (0 for all)", magnification, 0);
+	gd.addNumericField("Threads", threads, 0);
+	gd.showDialog();
+	if (gd.wasCanceled()) return;
+	magnification = gd.getNextNumber();
+	threads = Math.max(1, (int)gd.getNextNumber());
+
+	MetadataIndex index;
+	try {
+	    IJ.showStatus("Indexing "+dir);
+	    index = MetadataIndex.open(dir, threads);
+	}
+	catch (IOException e) {
+	    IJ.error("Metadata Index", e.getMessage());
+	    return;
+	}
+	IJ.showStatus("");
+	new TextWindow("Metadata index of "+dir, MetadataIndex.Entry.headings(),
+		       list(index, magnification), 800, 450);
+    }
+
+    /** Lists the entries, one per line. A magnification of 0 lists all. */
+    static String list(MetadataIndex index, double mag) {
+	Collection<MetadataIndex.Entry> entries = mag>0 ? index.withMagnification(mag) : index.getEntries();
+	StringBuilder sb = new StringBuilder();
+	for (MetadataIndex.Entry e : entries)
+	    sb.append(e).append('\n');
+	return sb.toString();
+    }
+
+    /**
+     * Updates the index of a folder and prints it from the command line:
+     * "java -cp ij.jar:. JIPS.Metadata_Index dir [magnification]"
+     */
+    public static void main(String args[]) throws IOException {
+	if (args.length<1) {
+	    System.err.println("usage: java Metadata_Index dir [magnification]");
+	    System.exit(1);
+	}
+	double mag = args.length>1 ? Double.parseDouble(args[1]) : 0;
+	MetadataIndex index = MetadataIndex.open(args[0], threads);
+	System.out.println(MetadataIndex.Entry.headings());
+	System.out.print(list(index, mag));
+    }
+}
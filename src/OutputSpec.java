@@ -0,0 +1,180 @@
+/*
+ * @(#)OutputSpec.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.File;
+import java.util.Locale;
+
+/**
+ * One output that Batch_Converter writes for every source image: the format,
+ * whether the image is made grayscale, whether a scale bar is drawn and the
+ * size to fit the image in. A spec is written as comma separated words, the
+ * format first, for example
+ * <pre>
+ *     TIFF
+ *     PNG,scalebar,800x600
+ *     JPEG,grayscale,200,suffix=_thumb
+ * </pre>
+ * A size is either "width" or "widthxheight"; the image is scaled down,
+ * keeping its aspect ratio, to fit in it, and is never enlarged. The suffix
+ * is added to the output file name before the extension, so that several
+ * outputs can be written to the same folder. It defaults to "_" and the size,
+ * or nothing for full size outputs.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class OutputSpec {
+
+    /** Output format, as in IJ.saveAs. */
+    final String format;
+    final boolean grayscale;
+    final boolean scaleBar;
+    /** Size to fit the image in, 0 for no limit. */
+    final int width, height;
+    /** Added to the file name before the extension. */
+    final String suffix;
+
+    OutputSpec(String format, boolean grayscale, boolean scaleBar, int width, int height, String suffix) {
+	this.format = format;
+	this.grayscale = grayscale;
+	this.scaleBar = scaleBar;
+	this.width = width;
+	this.height = height;
+	this.suffix = suffix;
+    }
+
+    /**
+     * Parses a spec like "PNG,scalebar,800x600". The format is matched to
+     * one of the given names regardless of case.
+     *
+     * @param spec	the spec
+     * @param formats	the known format names
+     * @throws IllegalArgumentException if the format or an option is not known
+     */
+    static OutputSpec parse(String spec, String[] formats) {
+	String[] words = spec.split(",");
+	String format = null;
+	for (int i=0; i<formats.length; i++)
+	    if (formats[i].equalsIgnoreCase(words[0].trim()))
+		format = formats[i];
+	if (format==null)
+	    throw new IllegalArgumentException("Unknown format in \""+spec+"\"");
+	boolean grayscale = false, scaleBar = false;
+	int width = 0, height = 0;
+	String suffix = null;
+	for (int i=1; i<words.length; i++) {
+	    String word = words[i].trim();
+	    String lower = word.toLowerCase(Locale.US);
+	    int[] size = parseSize(lower);
+	    if (lower.equals("grayscale"))
+		grayscale = true;
+	    else if (lower.equals("scalebar"))
+		scaleBar = true;
+	    else if (lower.startsWith("suffix="))
+		suffix = word.substring(7);
+	    else if (size!=null) {
+		width = size[0];
+		height = size[1];
+	    } else
+		throw new IllegalArgumentException("Unknown option \""+word+"\" in \""+spec+"\"");
+	}
+	if (suffix==null)
+	    suffix = getSize(width, height).length()==0 ? "" : "_"+getSize(width, height);
+	return new OutputSpec(format, grayscale, scaleBar, width, height, suffix);
+    }
+
+    /**
+     * Parses a size, "width" or "widthxheight". Returns the width and the
+     * height, 0 if not given, or null if the text is not a size.
+     */
+    static int[] parseSize(String size) {
+	String lower = size.trim().toLowerCase(Locale.US);
+	if (!lower.matches("\\d+(x\\d+)?"))
+	    return null;
+	int x = lower.indexOf('x');
+	int width = Integer.parseInt(x<0 ? lower : lower.substring(0, x));
+	int height = x<0 ? 0 : Integer.parseInt(lower.substring(x+1));
+	return new int[] {width, height};
+    }
+
+    /**
+     * Returns the width of the output for an image of the given size: the
+     * largest width that fits the image in the size of the spec, or the
+     * image width if it already fits.
+     */
+    int getWidth(int imageWidth, int imageHeight) {
+	int w = imageWidth;
+	if (width>0)
+	    w = Math.min(w, width);
+	if (height>0 && imageHeight>height)
+	    w = Math.min(w, (int)Math.round(height*((double)imageWidth/imageHeight)));
+	return Math.max(1, w);
+    }
+
+    /** Returns true if the image is reduced to 256 colors for the format. */
+    boolean isQuantized() {
+	return format.equals("8-bit Color TIFF") || format.equals("GIF");
+    }
+
+    /** Returns the destination path with the suffix added to the file name. */
+    String getOutputPath(String path) {
+	return insertSuffix(path, suffix);
+    }
+
+    /** Adds a suffix to the file name of a path, before the extension. */
+    static String insertSuffix(String path, String suffix) {
+	if (suffix.length()==0)
+	    return path;
+	int dot = path.lastIndexOf('.');
+	if (dot<=path.lastIndexOf(File.separatorChar))
+	    return path+suffix;
+	return path.substring(0, dot)+suffix+path.substring(dot);
+    }
+
+    /** The options as stored in the conversion manifest. */
+    public String toString() {
+	String s = format+(grayscale?",grayscale":"")+(scaleBar?",scalebar":"");
+	String size = getSize(width, height);
+	if (size.length()>0)
+	    s += ","+size;
+	if (!suffix.equals(size.length()==0 ? "" : "_"+size))
+	    s += ",suffix="+suffix;
+	return s;
+    }
+
+    /** The size as written in a spec, "" for full size. */
+    private static String getSize(int width, int height) {
+	if (width==0 && height==0)
+	    return "";
+	return width+(height>0 ? "x"+height : "");
+    }
+}
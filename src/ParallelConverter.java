@@ -0,0 +1,184 @@
+/*
+ * @(#)ParallelConverter.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import ij.*;
+
+/**
+ * Runs the Batch_Converter steps for many files at the same time. The work is
+ * split in three stages, decoding, processing and encoding, which are
+ * connected with bounded queues. Each stage has its own worker threads, so
+ * that reading one file, processing a second and writing a third overlap,
+ * while the queues keep the number of images in memory bounded.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ParallelConverter {
+
+    /** Marks the end of the input of a stage. */
+    private static final ConversionJob END = new ConversionJob(-1, null, null);
+
+    private final Batch_Converter converter;
+    private final int threads;
+    private final BlockingQueue<ConversionJob> toDecode;
+    private final BlockingQueue<ConversionJob> toProcess;
+    private final BlockingQueue<ConversionJob> toEncode;
+    private final AtomicInteger done = new AtomicInteger();
+
+    /**
+     * @param converter	converter whose open/process/save steps are used
+     * @param threads	number of worker threads per stage
+     */
+    ParallelConverter(Batch_Converter converter, int threads) {
+	this.converter = converter;
+	this.threads = Math.max(1, threads);
+	this.toDecode = new ArrayBlockingQueue<ConversionJob>(2*this.threads);
+	this.toProcess = new ArrayBlockingQueue<ConversionJob>(this.threads);
+	this.toEncode = new ArrayBlockingQueue<ConversionJob>(this.threads);
+    }
+
+    /**
+     * Converts all the jobs and returns when every one of them has been
+     * written (or has failed).
+     *
+     * @param jobs	the files to convert, read as the workers need them
+     */
+    void convert(Iterator<ConversionJob> jobs) {
+	final CountDownLatch finished = new CountDownLatch(threads);
+
+	startStage("decode", toDecode, toProcess, null, new Step() {
+		public boolean apply(ConversionJob job) {
+		    IJ.log(job.index+": "+job);
+		    if (converter.isUpToDate(job))
+			return false;
+		    if (converter.linkDuplicate(job))
+			return false;
+		    if (converter.convertTiled(job))
+			return false;
+		    job.image = converter.open(job);
+		    return job.image!=null;
+		}
+	    });
+	startStage("process", toProcess, toEncode, null, new Step() {
+		public boolean apply(ConversionJob job) {
+		    if (converter.convertStack(job, job.image)) {
+			job.image = null;
+			return false;
+		    }
+		    job.outputs = converter.processImage(job.image);
+		    job.image = null;
+		    return job.outputs!=null;
+		}
+	    });
+	startStage("encode", toEncode, null, finished, new Step() {
+		public boolean apply(ConversionJob job) {
+		    converter.save(job.outputs, job);
+		    job.outputs = null;
+		    IJ.showStatus(done.incrementAndGet()+" converted");
+		    return true;
+		}
+	    });
+
+	try {
+	    while (jobs.hasNext())
+		toDecode.put(jobs.next());
+	    toDecode.put(END);
+	    finished.await();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	}
+    }
+
+    /** One step of the conversion, applied to a single job. */
+    private interface Step {
+	/** Returns false if the job should not be passed to the next stage. */
+	boolean apply(ConversionJob job);
+    }
+
+    /**
+     * Starts the worker threads of one stage. Every worker takes jobs from
+     * the input queue until it sees END. The last worker of the stage to
+     * finish passes END on to the next stage.
+     */
+    private void startStage(String name, final BlockingQueue<ConversionJob> in,
+			    final BlockingQueue<ConversionJob> out,
+			    final CountDownLatch finished, final Step step) {
+	final AtomicInteger alive = new AtomicInteger(threads);
+	for (int i=0; i<threads; i++) {
+	    Thread t = new Thread("Batch_Converter-"+name+"-"+i) {
+		    public void run() {
+			try {
+			    while (true) {
+				ConversionJob job = in.take();
+				if (job==END) {
+				    in.put(END); // Let the other workers see it too
+				    break;
+				}
+				boolean ok = false;
+				try {
+				    ok = step.apply(job);
+				}
+				catch (Throwable e) {
+				    IJ.log(job+": "+e);
+				}
+				if (ok && out!=null)
+				    out.put(job);
+				else
+				    converter.finish(job);
+			    }
+			}
+			catch (InterruptedException e) {
+			    // Fall through and finish the stage
+			}
+			finally {
+			    if (alive.decrementAndGet()==0 && out!=null) {
+				try {
+				    out.put(END);
+				}
+				catch (InterruptedException e) {
+				    Thread.currentThread().interrupt();
+				}
+			    }
+			    if (finished!=null)
+				finished.countDown();
+			}
+		    }
+		};
+	    t.setDaemon(true);
+	    t.start();
+	}
+    }
+}
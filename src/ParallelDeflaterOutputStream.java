@@ -0,0 +1,231 @@
+/*
+ * @(#)ParallelDeflaterOutputStream.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.zip.*;
+
+/**
+ * Compresses what is written to it into one raw deflate stream, using all
+ * the cores. The input is cut into blocks of 128 kB which are compressed at
+ * the same time by a shared pool of threads. Each block is primed with the
+ * last 32 kB of the block before it, so the result is almost as small as
+ * with a single Deflater, and ends on a byte boundary (SYNC_FLUSH) so the
+ * compressed blocks can simply be joined; the last block finishes the
+ * stream. This is the way pigz works.
+ *
+ * The compressed blocks are written to the output stream in order, as
+ * they are ready. A checksum of the uncompressed bytes (CRC32 for ZIP
+ * files, Adler32 for zlib streams) is kept while the bytes are written.
+ * The output stream is not closed.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ParallelDeflaterOutputStream extends OutputStream {
+
+    private static final int BLOCK_SIZE = 128<<10;
+    private static final int DICTIONARY_SIZE = 32<<10;
+    private static volatile ExecutorService pool;
+
+    private final OutputStream out;
+    private final int level;
+    private final Checksum checksum;
+    private final int maxPending;
+    private final Deque<Future<byte[]>> pending = new ArrayDeque<Future<byte[]>>();
+    private byte[] block = new byte[BLOCK_SIZE];
+    private int count;
+    private byte[] dictionary;
+    private long totalIn, totalOut;
+    private boolean finished;
+
+    /**
+     * @param out	where the compressed bytes go
+     * @param level	compression level, Deflater.DEFAULT_COMPRESSION for 6
+     * @param checksum	updated with the uncompressed bytes, or null
+     */
+    ParallelDeflaterOutputStream(OutputStream out, int level, Checksum checksum) {
+	this.out = out;
+	this.level = level;
+	this.checksum = checksum;
+	this.maxPending = 2*Runtime.getRuntime().availableProcessors();
+    }
+
+    /** The threads that compress the blocks, shared by all the streams. */
+    private static ExecutorService getPool() {
+	if (pool==null) {
+	    synchronized (ParallelDeflaterOutputStream.class) {
+		if (pool==null) {
+		    pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			    private int n;
+			    public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "Deflater-"+(n++));
+				t.setDaemon(true);
+				return t;
+			    }
+			});
+		}
+	    }
+	}
+	return pool;
+    }
+
+    public void write(int b) throws IOException {
+	write(new byte[] {(byte)b}, 0, 1);
+    }
+
+    public void write(byte[] b, int off, int len) throws IOException {
+	if (finished)
+	    throw new IOException("Stream is finished");
+	if (checksum!=null)
+	    checksum.update(b, off, len);
+	totalIn += len;
+	while (len>0) {
+	    int n = Math.min(len, BLOCK_SIZE-count);
+	    System.arraycopy(b, off, block, count, n);
+	    count += n;
+	    off += n;
+	    len -= n;
+	    if (count==BLOCK_SIZE)
+		submit(false);
+	}
+    }
+
+    /** Hands the current block to the pool and starts a new one. */
+    private void submit(boolean last) throws IOException {
+	final byte[] input = block;
+	final int length = count;
+	final byte[] dict = dictionary;
+	final boolean finish = last;
+	if (length>=DICTIONARY_SIZE)
+	    dictionary = Arrays.copyOfRange(input, length-DICTIONARY_SIZE, length);
+	else if (length>0) {
+	    // Short block: keep the end of the old dictionary too
+	    byte[] d = new byte[Math.min(DICTIONARY_SIZE, length+(dict!=null ? dict.length : 0))];
+	    int keep = d.length-length;
+	    if (keep>0)
+		System.arraycopy(dict, dict.length-keep, d, 0, keep);
+	    System.arraycopy(input, 0, d, keep, length);
+	    dictionary = d;
+	}
+	pending.add(getPool().submit(new Callable<byte[]>() {
+		public byte[] call() {
+		    return compress(input, length, dict, finish, level);
+		}
+	    }));
+	block = last ? null : new byte[BLOCK_SIZE];
+	count = 0;
+	while (pending.size()>=maxPending)
+	    writeNext();
+    }
+
+    private static byte[] compress(byte[] input, int length, byte[] dict, boolean finish, int level) {
+	Deflater def = new Deflater(level, true);
+	try {
+	    if (dict!=null)
+		def.setDictionary(dict);
+	    def.setInput(input, 0, length);
+	    ByteArrayOutputStream bos = new ByteArrayOutputStream(length/2+64);
+	    byte[] buf = new byte[BLOCK_SIZE];
+	    if (finish) {
+		def.finish();
+		while (!def.finished()) {
+		    int n = def.deflate(buf);
+		    bos.write(buf, 0, n);
+		}
+	    } else {
+		int n;
+		do {
+		    n = def.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+		    bos.write(buf, 0, n);
+		} while (n==buf.length);
+	    }
+	    return bos.toByteArray();
+	}
+	finally {
+	    def.end();
+	}
+    }
+
+    /** Waits for the oldest block and writes it out. */
+    private void writeNext() throws IOException {
+	Future<byte[]> f = pending.poll();
+	try {
+	    byte[] b = f.get();
+	    out.write(b);
+	    totalOut += b.length;
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new InterruptedIOException("Compression was interrupted");
+	}
+	catch (ExecutionException e) {
+	    throw new IOException("Compression failed", e.getCause());
+	}
+    }
+
+    /**
+     * Compresses the rest, ends the deflate stream and writes everything
+     * to the output stream. Nothing can be written after this.
+     */
+    void finish() throws IOException {
+	if (finished)
+	    return;
+	finished = true;
+	try {
+	    submit(true);
+	    while (!pending.isEmpty())
+		writeNext();
+	}
+	finally {
+	    for (Future<byte[]> f : pending)
+		f.cancel(false);
+	    pending.clear();
+	}
+    }
+
+    /** Finishes the stream. The output stream is left open. */
+    public void close() throws IOException {
+	finish();
+    }
+
+    /** Number of uncompressed bytes written. */
+    long getBytesRead() {
+	return totalIn;
+    }
+
+    /** Number of compressed bytes, complete after finish(). */
+    long getBytesWritten() {
+	return totalOut;
+    }
+}
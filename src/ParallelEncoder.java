@@ -0,0 +1,428 @@
+/*
+ * @(#)ParallelEncoder.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import java.util.zip.*;
+import ij.*;
+import ij.io.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Writers for the formats that batch runs use most, made for large frames.
+ * All of them write through a ChannelOutputStream, and the compressed ones
+ * deflate on all cores with ParallelDeflaterOutputStream.
+ * <ul>
+ * <li>TIFF is encoded by ImageJ's own TiffEncoder with the same header and
+ *     metadata as FileSaver.saveAsTiff, only the output is faster,
+ * <li>ZIP ("TIFF/ZIP") holds the same TIFF as FileSaver.saveAsZip, in one
+ *     deflated entry,
+ * <li>PNG is 8-bit gray, 16-bit gray or RGB with adaptive row filters, as
+ *     ImageIO writes them, and a pHYs chunk with the pixel size when the
+ *     image is calibrated in metric units.
+ * </ul>
+ * Each method returns false, without writing anything, if the image is of a
+ * kind it does not handle (stacks, composites, color tables, overlays to be
+ * flattened, ...); the caller then uses FileSaver.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ParallelEncoder {
+
+    /** Largest sizes that fit the 32-bit fields of a plain ZIP file. */
+    private static final long ZIP_LIMIT = 0xffffffffL - (1<<20);
+    /** The deflate level ImageIO uses for PNGs. */
+    private static final int PNG_LEVEL = 4;
+    private static final byte[] PNG_SIGNATURE = {(byte)137, 80, 78, 71, 13, 10, 26, 10};
+
+    private ParallelEncoder() {
+    }
+
+    /** The FileInfo FileSaver.saveAsTiff would encode. */
+    private static FileInfo tiffInfo(ImagePlus img) {
+	FileInfo fi = img.getFileInfo();
+	fi.nImages = 1;
+	fi.info = img.getInfoProperty();
+	Object label = img.getProperty("Label");
+	if (label instanceof String)
+	    fi.sliceLabels = new String[] {(String)label};
+	fi.description = new FileSaver(img).getDescriptionString();
+	fi.roi = RoiEncoder.saveAsByteArray(img.getRoi());
+	fi.overlay = FileSaver.getOverlay(img);
+	return fi;
+    }
+
+    private static boolean isPlain(ImagePlus img) {
+	return img.getStackSize()==1 && !img.isComposite() && img.getProperty("FHT")==null;
+    }
+
+    /** Saves a single image as an uncompressed TIFF. */
+    public static boolean writeTiff(ImagePlus img, String path) throws IOException {
+	if (!isPlain(img))
+	    return false;
+	FileInfo fi = tiffInfo(img);
+	ChannelOutputStream out = new ChannelOutputStream(path);
+	boolean ok = false;
+	try {
+	    new TiffEncoder(fi).write(out);
+	    out.close();
+	    ok = true;
+	}
+	finally {
+	    if (!ok) {
+		out.close();
+		new File(path).delete();
+	    }
+	}
+	return true;
+    }
+
+    /** Saves a single image as a TIFF inside a ZIP file. */
+    public static boolean writeZip(ImagePlus img, String path) throws IOException {
+	if (!isPlain(img))
+	    return false;
+	FileInfo fi = tiffInfo(img);
+	if ((long)img.getWidth()*img.getHeight()*img.getBytesPerPixel() > ZIP_LIMIT)
+	    return false; // Needs ZIP64, which ZipOutputStream does
+	String name = img.getTitle();
+	if (name.endsWith(".zip"))
+	    name = name.substring(0, name.length()-4);
+	if (!name.endsWith(".tif"))
+	    name = name+".tif";
+	byte[] nameBytes = name.getBytes("UTF-8");
+	int dosTime = dosTime(System.currentTimeMillis());
+
+	ChannelOutputStream out = new ChannelOutputStream(path);
+	boolean ok = false;
+	try {
+	    // Local file header; CRC and sizes are filled in at the end
+	    LittleEndian le = new LittleEndian();
+	    le.putInt(0x04034b50).putShort(20).putShort(0x0800).putShort(8).putInt(dosTime);
+	    le.putInt(0).putInt(0).putInt(0).putShort(nameBytes.length).putShort(0);
+	    le.put(nameBytes);
+	    out.write(le.toByteArray());
+
+	    CRC32 crc = new CRC32();
+	    ParallelDeflaterOutputStream def = new ParallelDeflaterOutputStream(out, Deflater.DEFAULT_COMPRESSION, crc);
+	    new TiffEncoder(fi).write(def);
+	    def.finish();
+	    long size = def.getBytesRead(), csize = def.getBytesWritten();
+	    if (size>ZIP_LIMIT || csize>ZIP_LIMIT)
+		throw new IOException("Too large for a ZIP file");
+	    long cdOffset = out.position();
+
+	    le = new LittleEndian();
+	    le.putInt(0x02014b50).putShort(20).putShort(20).putShort(0x0800).putShort(8).putInt(dosTime);
+	    le.putInt((int)crc.getValue()).putInt((int)csize).putInt((int)size);
+	    le.putShort(nameBytes.length).putShort(0).putShort(0).putShort(0).putShort(0).putInt(0).putInt(0);
+	    le.put(nameBytes);
+	    int cdSize = le.size();
+	    le.putInt(0x06054b50).putShort(0).putShort(0).putShort(1).putShort(1);
+	    le.putInt(cdSize).putInt((int)cdOffset).putShort(0);
+	    out.write(le.toByteArray());
+
+	    le = new LittleEndian();
+	    le.putInt((int)crc.getValue()).putInt((int)csize).putInt((int)size);
+	    out.writeAt(le.toByteArray(), 14);
+	    out.close();
+	    ok = true;
+	}
+	finally {
+	    if (!ok) {
+		out.close();
+		new File(path).delete();
+	    }
+	}
+	return true;
+    }
+
+    /** Converts a time to the MS-DOS date and time of ZIP headers. */
+    private static int dosTime(long time) {
+	Calendar c = Calendar.getInstance();
+	c.setTimeInMillis(time);
+	int year = Math.max(1980, c.get(Calendar.YEAR));
+	return (year-1980)<<25 | (c.get(Calendar.MONTH)+1)<<21 | c.get(Calendar.DAY_OF_MONTH)<<16
+	    | c.get(Calendar.HOUR_OF_DAY)<<11 | c.get(Calendar.MINUTE)<<5 | c.get(Calendar.SECOND)>>1;
+    }
+
+    /**
+     * Saves an 8-bit gray, 16-bit gray or RGB image as a PNG. 8-bit images
+     * have to use the normal gray LUT and full display range, as then the
+     * pixel values are what PNG_Writer would write.
+     */
+    public static boolean writePng(ImagePlus img, String path) throws IOException {
+	if (!isPlain(img) || (img.getOverlay()!=null && !img.getHideOverlay()))
+	    return false;
+	ImageProcessor ip = img.getProcessor();
+	int colorType, bitDepth, bpp;
+	if (ip instanceof ColorProcessor) {
+	    colorType = 2; bitDepth = 8; bpp = 3;
+	} else if (ip instanceof ShortProcessor && ip.isDefaultLut()) {
+	    colorType = 0; bitDepth = 16; bpp = 2;
+	} else if (ip instanceof ByteProcessor && ip.isDefaultLut() && !ip.isInvertedLut()
+		   && ip.getMin()==0 && ip.getMax()==255 && Prefs.getTransparentIndex()<0) {
+	    colorType = 0; bitDepth = 8; bpp = 1;
+	} else
+	    return false;
+	int width = ip.getWidth(), height = ip.getHeight();
+
+	ChannelOutputStream out = new ChannelOutputStream(path);
+	boolean ok = false;
+	try {
+	    out.write(PNG_SIGNATURE);
+	    BigEndian ihdr = new BigEndian();
+	    ihdr.putInt(width).putInt(height).put(bitDepth).put(colorType).put(0).put(0).put(0);
+	    writeChunk(out, "IHDR", ihdr.toByteArray(), 0, ihdr.size());
+	    long ppm = pixelsPerMeter(img.getCalibration());
+	    if (ppm>0) {
+		BigEndian phys = new BigEndian();
+		phys.putInt((int)ppm).putInt((int)ppm).put(1);
+		writeChunk(out, "pHYs", phys.toByteArray(), 0, phys.size());
+	    }
+
+	    IdatStream idat = new IdatStream(out);
+	    idat.write(0x78);		// zlib header: deflate, 32 kB window
+	    idat.write(0x5e);		// level 2-5, checksum of the header
+	    Adler32 adler = new Adler32();
+	    ParallelDeflaterOutputStream def = new ParallelDeflaterOutputStream(idat, PNG_LEVEL, adler);
+	    int rowBytes = width*bpp;
+	    byte[] prev = new byte[rowBytes], row = new byte[rowBytes], filtered = new byte[1+rowBytes];
+	    Object pixels = ip.getPixels();
+	    for (int y=0; y<height; y++) {
+		rowBytes(pixels, y*width, width, bpp, row);
+		filterRow(row, prev, bpp, filtered);
+		def.write(filtered);
+		byte[] t = prev; prev = row; row = t;
+	    }
+	    def.finish();
+	    long a = adler.getValue();
+	    idat.write((int)(a>>24));
+	    idat.write((int)(a>>16));
+	    idat.write((int)(a>>8));
+	    idat.write((int)a);
+	    idat.close();
+	    writeChunk(out, "IEND", new byte[0], 0, 0);
+	    out.close();
+	    ok = true;
+	}
+	finally {
+	    if (!ok) {
+		out.close();
+		new File(path).delete();
+	    }
+	}
+	return true;
+    }
+
+    /**
+     * Returns the pixel density for the pHYs chunk, or 0 if the image is
+     * not calibrated in a unit of length PNG can express.
+     */
+    static long pixelsPerMeter(Calibration cal) {
+	if (!cal.scaled() || cal.pixelWidth!=cal.pixelHeight)
+	    return 0;
+	String unit = cal.getUnit();
+	double meters;
+	if (unit.equals("nm") || unit.equals("nanometer"))
+	    meters = 1e-9;
+	else if (unit.equals("um") || unit.equals("\u00B5m") || unit.equals("micron") || unit.equals("micrometer"))
+	    meters = 1e-6;
+	else if (unit.equals("mm"))
+	    meters = 1e-3;
+	else if (unit.equals("cm"))
+	    meters = 1e-2;
+	else if (unit.equals("m") || unit.equals("meter"))
+	    meters = 1;
+	else if (unit.equals("inch"))
+	    meters = 0.0254;
+	else
+	    return 0;
+	long ppm = Math.round(1.0/(cal.pixelWidth*meters));
+	return ppm>0 && ppm<=0xffffffffL ? ppm : 0;
+    }
+
+    /** Puts the bytes of one row, as stored in a PNG, into dst. */
+    private static void rowBytes(Object pixels, int offset, int width, int bpp, byte[] dst) {
+	if (bpp==1)
+	    System.arraycopy((byte[])pixels, offset, dst, 0, width);
+	else if (bpp==2) {
+	    short[] p = (short[])pixels;
+	    for (int x=0, i=0; x<width; x++) {
+		short v = p[offset+x];
+		dst[i++] = (byte)(v>>8);
+		dst[i++] = (byte)v;
+	    }
+	} else {
+	    int[] p = (int[])pixels;
+	    for (int x=0, i=0; x<width; x++) {
+		int c = p[offset+x];
+		dst[i++] = (byte)(c>>16);
+		dst[i++] = (byte)(c>>8);
+		dst[i++] = (byte)c;
+	    }
+	}
+    }
+
+    /**
+     * Filters a row with the PNG filter that gives the smallest sum of
+     * absolute values, the usual heuristic. dst gets the filter type byte
+     * and the filtered row.
+     */
+    private static void filterRow(byte[] row, byte[] prev, int bpp, byte[] dst) {
+	int n = row.length;
+	long none = 0, sub = 0, up = 0, average = 0, paeth = 0;
+	for (int i=0; i<n; i++) {
+	    int x = row[i]&0xff;
+	    int a = i>=bpp ? row[i-bpp]&0xff : 0;
+	    int b = prev[i]&0xff;
+	    int c = i>=bpp ? prev[i-bpp]&0xff : 0;
+	    none += Math.abs((byte)x);
+	    sub += Math.abs((byte)(x-a));
+	    up += Math.abs((byte)(x-b));
+	    average += Math.abs((byte)(x-((a+b)>>1)));
+	    paeth += Math.abs((byte)(x-paethPredictor(a, b, c)));
+	}
+	int best = 0;
+	long min = none;
+	if (sub<min) { min = sub; best = 1; }
+	if (up<min) { min = up; best = 2; }
+	if (average<min) { min = average; best = 3; }
+	if (paeth<min) { best = 4; }
+	dst[0] = (byte)best;
+	for (int i=0; i<n; i++) {
+	    int x = row[i]&0xff;
+	    int a = i>=bpp ? row[i-bpp]&0xff : 0;
+	    int b = prev[i]&0xff;
+	    switch (best) {
+	    case 0: dst[i+1] = (byte)x; break;
+	    case 1: dst[i+1] = (byte)(x-a); break;
+	    case 2: dst[i+1] = (byte)(x-b); break;
+	    case 3: dst[i+1] = (byte)(x-((a+b)>>1)); break;
+	    default: dst[i+1] = (byte)(x-paethPredictor(a, b, i>=bpp ? prev[i-bpp]&0xff : 0));
+	    }
+	}
+    }
+
+    private static int paethPredictor(int a, int b, int c) {
+	int p = a+b-c;
+	int pa = Math.abs(p-a), pb = Math.abs(p-b), pc = Math.abs(p-c);
+	return pa<=pb && pa<=pc ? a : pb<=pc ? b : c;
+    }
+
+    private static void writeChunk(OutputStream out, String type, byte[] data, int off, int len) throws IOException {
+	byte[] t = type.getBytes("US-ASCII");
+	CRC32 crc = new CRC32();
+	crc.update(t);
+	crc.update(data, off, len);
+	BigEndian b = new BigEndian();
+	b.putInt(len);
+	out.write(b.toByteArray());
+	out.write(t);
+	out.write(data, off, len);
+	b = new BigEndian();
+	b.putInt((int)crc.getValue());
+	out.write(b.toByteArray());
+    }
+
+    /** Packs what is written to it into IDAT chunks of up to 256 kB. */
+    private static class IdatStream extends OutputStream {
+	private final OutputStream out;
+	private final byte[] buf = new byte[256<<10];
+	private int count;
+
+	IdatStream(OutputStream out) {
+	    this.out = out;
+	}
+
+	public void write(int b) throws IOException {
+	    if (count==buf.length)
+		flushChunk();
+	    buf[count++] = (byte)b;
+	}
+
+	public void write(byte[] b, int off, int len) throws IOException {
+	    while (len>0) {
+		if (count==buf.length)
+		    flushChunk();
+		int n = Math.min(len, buf.length-count);
+		System.arraycopy(b, off, buf, count, n);
+		count += n;
+		off += n;
+		len -= n;
+	    }
+	}
+
+	private void flushChunk() throws IOException {
+	    if (count>0)
+		writeChunk(out, "IDAT", buf, 0, count);
+	    count = 0;
+	}
+
+	/** Writes the last chunk. The underlying stream is left open. */
+	public void close() throws IOException {
+	    flushChunk();
+	}
+    }
+
+    /** Builds big-endian header fields. */
+    private static class BigEndian extends ByteArrayOutputStream {
+	BigEndian putInt(int v) {
+	    write(v>>>24); write(v>>>16); write(v>>>8); write(v);
+	    return this;
+	}
+
+	BigEndian put(int v) {
+	    write(v);
+	    return this;
+	}
+    }
+
+    /** Builds little-endian header fields. */
+    private static class LittleEndian extends ByteArrayOutputStream {
+	LittleEndian putInt(int v) {
+	    write(v); write(v>>>8); write(v>>>16); write(v>>>24);
+	    return this;
+	}
+
+	LittleEndian putShort(int v) {
+	    write(v); write(v>>>8);
+	    return this;
+	}
+
+	LittleEndian put(byte[] b) {
+	    write(b, 0, b.length);
+	    return this;
+	}
+    }
+}
@@ -0,0 +1,261 @@
+/*
+ * @(#)PixelBufferPool.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import ij.*;
+import ij.process.*;
+
+/**
+ * Keeps the pixel arrays of converted images so that the next images of a
+ * batch can use them instead of allocating new ones. The images of a batch
+ * almost always come from the same detector and have the same size, so after
+ * the first image most conversion steps find an array of the right type and
+ * length here, and the heap does not fill up with large short lived arrays
+ * that the garbage collector then has to copy or clear.
+ *
+ * Arrays are kept by type and length. The pool holds at most the given
+ * number of bytes; when it is full, the arrays of the size that was used
+ * least recently are dropped first, so a batch that changes resolution
+ * soon fills the pool with the new size. Arrays shorter than 64k elements
+ * are not worth keeping and are left to the garbage collector.
+ *
+ * An array handed out is not cleared, so it must be overwritten completely,
+ * and an array may only be given back once nothing refers to it any more.
+ * A pool can be used from several threads at the same time.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class PixelBufferPool {
+
+    private static final int BYTE = 0, SHORT = 1, INT = 2, FLOAT = 3;
+    private static final int MIN_LENGTH = 1<<16;
+
+    private final long capacity;
+    private long size;
+    /** Free arrays by type and length, least recently used size first. */
+    private final LinkedHashMap<Long,ArrayDeque<Object>> free = new LinkedHashMap<Long,ArrayDeque<Object>>(16, 0.75f, true);
+    private final AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /**
+     * @param capacity	the most bytes kept in the pool, 0 for a pool
+     *			that only allocates
+     */
+    PixelBufferPool(long capacity) {
+	this.capacity = capacity;
+    }
+
+    /** A pool of an eighth of the maximum heap. */
+    PixelBufferPool() {
+	this(Runtime.getRuntime().maxMemory()/8);
+    }
+
+    byte[] getBytes(int length) {
+	Object a = take(BYTE, length);
+	return a!=null ? (byte[])a : new byte[length];
+    }
+
+    short[] getShorts(int length) {
+	Object a = take(SHORT, length);
+	return a!=null ? (short[])a : new short[length];
+    }
+
+    int[] getInts(int length) {
+	Object a = take(INT, length);
+	return a!=null ? (int[])a : new int[length];
+    }
+
+    float[] getFloats(int length) {
+	Object a = take(FLOAT, length);
+	return a!=null ? (float[])a : new float[length];
+    }
+
+    /**
+     * Returns a copy of an 8-bit, 16-bit or RGB processor in an array from
+     * the pool, like ImageProcessor.duplicate(). Other processors are
+     * duplicated.
+     */
+    ImageProcessor duplicate(ImageProcessor ip) {
+	int w = ip.getWidth(), h = ip.getHeight();
+	ImageProcessor ip2;
+	if (ip instanceof ByteProcessor) {
+	    byte[] p = getBytes(w*h);
+	    System.arraycopy(ip.getPixels(), 0, p, 0, w*h);
+	    ip2 = new ByteProcessor(w, h, p, ip.getColorModel());
+	    if (ip.getMin()!=0 || ip.getMax()!=255)
+		ip2.setMinAndMax(ip.getMin(), ip.getMax());
+	} else if (ip instanceof ShortProcessor) {
+	    short[] p = getShorts(w*h);
+	    System.arraycopy(ip.getPixels(), 0, p, 0, w*h);
+	    ip2 = new ShortProcessor(w, h, p, ip.getColorModel());
+	    ip2.setMinAndMax(ip.getMin(), ip.getMax());
+	} else if (ip instanceof ColorProcessor) {
+	    int[] p = getInts(w*h);
+	    System.arraycopy(ip.getPixels(), 0, p, 0, w*h);
+	    return new ColorProcessor(w, h, p);
+	} else
+	    return ip.duplicate();
+	ip2.setInterpolationMethod(ip.getInterpolationMethod());
+	return ip2;
+    }
+
+    /**
+     * Gives the pixel arrays of the images, all the slices of a stack, back
+     * to the pool, except those that one of the kept images still uses.
+     * An array shared by several of the images is given back once.
+     */
+    void release(ImagePlus[] keep, ImagePlus... images) {
+	Set<Object> used = Collections.newSetFromMap(new IdentityHashMap<Object,Boolean>());
+	for (int i=0; i<keep.length; i++)
+	    addPixels(keep[i], used);
+	List<Object> arrays = new ArrayList<Object>();
+	for (int i=0; i<images.length; i++)
+	    addPixels(images[i], used, arrays);
+	for (Object a : arrays)
+	    release(a);
+    }
+
+    private static void addPixels(ImagePlus img, Set<Object> used) {
+	addPixels(img, used, null);
+    }
+
+    private static void addPixels(ImagePlus img, Set<Object> used, List<Object> added) {
+	if (img==null)
+	    return;
+	if (img.getStackSize()>1) {
+	    ImageStack stack = img.getStack();
+	    for (int n=1; n<=stack.getSize(); n++)
+		add(stack.getPixels(n), used, added);
+	} else if (img.getProcessor()!=null)
+	    add(img.getProcessor().getPixels(), used, added);
+    }
+
+    private static void add(Object pixels, Set<Object> used, List<Object> added) {
+	if (pixels!=null && used.add(pixels) && added!=null)
+	    added.add(pixels);
+    }
+
+    /**
+     * Gives an array back to the pool. Arrays that are too small, or of a
+     * type that is not pooled, are ignored.
+     */
+    void release(Object pixels) {
+	int type, length, bytes;
+	if (pixels instanceof byte[]) {
+	    type = BYTE; length = ((byte[])pixels).length; bytes = 1;
+	} else if (pixels instanceof short[]) {
+	    type = SHORT; length = ((short[])pixels).length; bytes = 2;
+	} else if (pixels instanceof int[]) {
+	    type = INT; length = ((int[])pixels).length; bytes = 4;
+	} else if (pixels instanceof float[]) {
+	    type = FLOAT; length = ((float[])pixels).length; bytes = 4;
+	} else
+	    return;
+	long n = (long)length*bytes;
+	if (length<MIN_LENGTH || n>capacity)
+	    return;
+	Long key = key(type, length);
+	synchronized (this) {
+	    ArrayDeque<Object> arrays = free.get(key);
+	    if (arrays==null) {
+		arrays = new ArrayDeque<Object>();
+		free.put(key, arrays);
+	    }
+	    for (Object a : arrays)
+		if (a==pixels)
+		    return;
+	    // Make room by dropping the sizes used least recently
+	    Iterator<Map.Entry<Long,ArrayDeque<Object>>> it = free.entrySet().iterator();
+	    while (size+n>capacity && it.hasNext()) {
+		Map.Entry<Long,ArrayDeque<Object>> e = it.next();
+		long each = bytes(e.getKey());
+		ArrayDeque<Object> d = e.getValue();
+		while (size+n>capacity && !d.isEmpty()) {
+		    d.poll();
+		    size -= each;
+		}
+		if (d.isEmpty() && d!=arrays)
+		    it.remove();
+	    }
+	    arrays.push(pixels);
+	    size += n;
+	}
+    }
+
+    private synchronized Object take(int type, int length) {
+	if (length<MIN_LENGTH)
+	    return null;
+	ArrayDeque<Object> arrays = free.get(key(type, length));
+	Object a = arrays!=null ? arrays.poll() : null;
+	if (a==null) {
+	    misses.incrementAndGet();
+	    return null;
+	}
+	size -= bytes(key(type, length));
+	hits.incrementAndGet();
+	return a;
+    }
+
+    private static Long key(int type, int length) {
+	return Long.valueOf((long)length<<2 | type);
+    }
+
+    private static long bytes(long key) {
+	int type = (int)(key&3);
+	return (key>>>2)*(type==BYTE ? 1 : type==SHORT ? 2 : 4);
+    }
+
+    long getHits() {
+	return hits.get();
+    }
+
+    long getMisses() {
+	return misses.get();
+    }
+
+    /** The fraction of requests that were served from the pool. */
+    double getHitRate() {
+	long h = hits.get(), n = h+misses.get();
+	return n>0 ? (double)h/n : 0;
+    }
+
+    /** Bytes currently held in the pool. */
+    synchronized long getSize() {
+	return size;
+    }
+
+    public String toString() {
+	return String.format(Locale.US, "buffer pool %.0f%% hits of %d, %.0f MB held",
+			     100*getHitRate(), getHits()+getMisses(), getSize()/1e6);
+    }
+}
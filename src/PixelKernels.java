@@ -0,0 +1,230 @@
+/*
+ * @(#)PixelKernels.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.awt.Rectangle;
+import java.util.concurrent.*;
+
+/**
+ * The inner loops of the post-processing steps, on primitive arrays. The
+ * loops are kept free of branches and lookups so that the JIT compiler can
+ * turn them into SIMD instructions or at least unroll them: the 3x3 mean is
+ * summed down the columns first and then across, with the edge pixels done
+ * outside the loop, so each pixel takes four additions instead of eight and
+ * no bounds tests. Work that covers a whole image is split into blocks of
+ * rows that run on all cores.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class PixelKernels {
+
+    private static volatile ExecutorService pool;
+
+    private PixelKernels() {
+    }
+
+    private static ExecutorService getPool() {
+	if (pool==null) {
+	    synchronized (PixelKernels.class) {
+		if (pool==null) {
+		    pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			    private int n;
+			    public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "PixelKernels-"+(n++));
+				t.setDaemon(true);
+				return t;
+			    }
+			});
+		}
+	    }
+	}
+	return pool;
+    }
+
+    /** Work on a range of rows or pixels. */
+    interface Block {
+	void run(int from, int to);
+    }
+
+    /**
+     * Splits [0, n) into at most one block per core, none smaller than
+     * minBlock, and runs them in parallel. The last block runs on the
+     * calling thread. The blocks must not submit work of their own.
+     */
+    static void forEachBlock(int n, int minBlock, final Block block) {
+	int nBlocks = Math.max(1, Math.min(Runtime.getRuntime().availableProcessors(), n/Math.max(1, minBlock)));
+	if (nBlocks==1) {
+	    block.run(0, n);
+	    return;
+	}
+	int size = (n+nBlocks-1)/nBlocks;
+	Future<?>[] futures = new Future<?>[nBlocks-1];
+	for (int b=0; b<nBlocks-1; b++) {
+	    final int from = b*size, to = Math.min(n, from+size);
+	    futures[b] = getPool().submit(new Runnable() {
+		    public void run() {
+			block.run(from, to);
+		    }
+		});
+	}
+	block.run(Math.min(n, (nBlocks-1)*size), n);
+	try {
+	    for (int b=0; b<futures.length; b++)
+		futures[b].get();
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    throw new RuntimeException(e);
+	}
+	catch (ExecutionException e) {
+	    Throwable cause = e.getCause();
+	    if (cause instanceof RuntimeException)
+		throw (RuntimeException)cause;
+	    throw new RuntimeException(cause);
+	}
+    }
+
+    /**
+     * Returns the histogram of the unsigned pixel values in a rectangle of
+     * an 8-bit (byte[]) or 16-bit (short[]) image.
+     */
+    static int[] histogram(final Object pixels, final int stride, final Rectangle r) {
+	final int bins = pixels instanceof byte[] ? 256 : 65536;
+	final int[] histogram = new int[bins];
+	// Blocks of at least 256k pixels, so that merging is cheap
+	forEachBlock(r.height, Math.max(1, (1<<18)/Math.max(1, r.width)), new Block() {
+		public void run(int from, int to) {
+		    int[] h = new int[bins];
+		    if (pixels instanceof byte[]) {
+			byte[] p = (byte[])pixels;
+			for (int y=r.y+from; y<r.y+to; y++)
+			    for (int i=y*stride+r.x, end=i+r.width; i<end; i++)
+				h[p[i]&0xff]++;
+		    } else {
+			short[] p = (short[])pixels;
+			for (int y=r.y+from; y<r.y+to; y++)
+			    for (int i=y*stride+r.x, end=i+r.width; i<end; i++)
+				h[p[i]&0xffff]++;
+		    }
+		    synchronized (histogram) {
+			for (int i=0; i<bins; i++)
+			    histogram[i] += h[i];
+		    }
+		}
+	    });
+	return histogram;
+    }
+
+    /** Replaces the n first values of the row with their table entries. */
+    static void lookup(int[] row, int[] table, int n) {
+	for (int x=0; x<n; x++)
+	    row[x] = table[row[x]];
+    }
+
+    /**
+     * The 3x3 mean of "Smooth" for one row: (sum+4)/9 of the row b and the
+     * rows a above and c below it, edge pixels repeated. The same array may
+     * be passed for a, b or c at the edges of the image.
+     *
+     * @param sum	scratch row, at least w long
+     */
+    static void smoothRow(int[] a, int[] b, int[] c, int[] sum, int[] dst, int w) {
+	for (int x=0; x<w; x++)
+	    sum[x] = a[x]+b[x]+c[x];
+	if (w==1) {
+	    dst[0] = div9(3*sum[0]);
+	    return;
+	}
+	for (int x=1; x<w-1; x++)
+	    dst[x] = (sum[x-1]+sum[x]+sum[x+1]+4)/9;
+	dst[0] = div9(2*sum[0]+sum[1]);
+	dst[w-1] = div9(sum[w-2]+2*sum[w-1]);
+    }
+
+    private static int div9(int s) {
+	return (s+4)/9;
+    }
+
+    /** Stores the n first values of the row as bytes, from offset on. */
+    static void store(int[] row, byte[] dst, int offset, int n) {
+	for (int x=0; x<n; x++)
+	    dst[offset+x] = (byte)row[x];
+    }
+
+    /** Stores the n first values of the row as shorts, from offset on. */
+    static void store(int[] row, short[] dst, int offset, int n) {
+	for (int x=0; x<n; x++)
+	    dst[offset+x] = (short)row[x];
+    }
+
+    /** Stores the n first 8-bit values of the row as gray RGB pixels. */
+    static void storeRGB(int[] row, int[] dst, int offset, int n) {
+	for (int x=0; x<n; x++)
+	    dst[offset+x] = 0xff000000 | row[x]*0x010101;
+    }
+
+    /**
+     * Scales 16-bit pixels from min..max to 8 bits, with the same rounding
+     * as ImageProcessor.convertToByte(true).
+     */
+    static void toByte(final short[] src, final byte[] dst, final int min, int max) {
+	final double scale = 256.0/(max-min+1);
+	forEachBlock(src.length, 1<<17, new Block() {
+		public void run(int from, int to) {
+		    for (int i=from; i<to; i++) {
+			int value = (src[i]&0xffff)-min;
+			if (value<0) value = 0;
+			value = (int)(value*scale+0.5);
+			if (value>255) value = 255;
+			dst[i] = (byte)value;
+		    }
+		}
+	    });
+    }
+
+    /**
+     * Converts RGB pixels to 8-bit gray with the given weights of red, green
+     * and blue, like ImageProcessor.convertToByte(true).
+     */
+    static void toByte(final int[] src, final byte[] dst, double[] weights) {
+	final double rw = weights[0], gw = weights[1], bw = weights[2];
+	forEachBlock(src.length, 1<<17, new Block() {
+		public void run(int from, int to) {
+		    for (int i=from; i<to; i++) {
+			int c = src[i];
+			int r = (c&0xff0000)>>16, g = (c&0xff00)>>8, b = c&0xff;
+			dst[i] = (byte)(r*rw + g*gw + b*bw + 0.5);
+		    }
+		}
+	    });
+    }
+}
@@ -0,0 +1,338 @@
+/*
+ * @(#)ReducedDecoder.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.Locale;
+import javax.imageio.*;
+import javax.imageio.stream.ImageInputStream;
+import ij.*;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.Opener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+
+/**
+ * Decodes an image at a reduced size, for previews and outputs that are
+ * scaled down anyway, without decoding the full frame first.
+ *
+ * Uncompressed 8-bit and 16-bit grayscale TIFFs and 8-bit grayscale BMPs
+ * are read row by row straight from the file, a band of about 1 MB at a
+ * time, and averaged down to the size asked for with the single pass of
+ * PostProcessPipeline; only the result is held in memory. A BMP is read
+ * as a TIFF with one strip per row, see TiledTiffProcessor.StripRows.
+ * JPEGs are decoded with ImageIO reading only every n:th pixel of every
+ * n:th row, so the image is at least twice as wide as asked for and the
+ * final size is still averaged from several pixels. The Java JPEG
+ * decoder has no scaled inverse DCT, so this saves memory but not much
+ * time.
+ *
+ * The calibration of the result is adjusted for the scale and the width
+ * of the source is set as the property SOURCE_WIDTH, see sourceWidth().
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class ReducedDecoder {
+
+    /** Property of a reduced image that holds the width of the source. */
+    static final String SOURCE_WIDTH = "JIPS.SourceWidth";
+
+    /** Amount of source rows to read at a time, in bytes. */
+    private static final int BAND_BYTES = 1<<20;
+
+    private ReducedDecoder() {
+    }
+
+    /**
+     * The rows of an 8-bit or 16-bit grayscale file, for the single pass
+     * of PostProcessPipeline. The file stays open until close().
+     */
+    static final class Rows implements PostProcessPipeline.RowFactory, Closeable {
+	final int width, height;
+	final boolean bytes;
+	private final FileInfo fi;
+	private final FileChannel channel;
+	private final int band;
+	private int min = Integer.MAX_VALUE, max = Integer.MIN_VALUE;
+
+	private Rows(File file, FileInfo fi) throws IOException {
+	    this.fi = fi;
+	    this.width = fi.width;
+	    this.height = fi.height;
+	    this.bytes = fi.fileType==FileInfo.GRAY8;
+	    this.band = Math.max(16, BAND_BYTES/(fi.width*(bytes ? 1 : 2)));
+	    this.channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	}
+
+	/**
+	 * Returns a source of the rows of the area r. Several can be used
+	 * at the same time. The rows of 16-bit files are also taken into
+	 * account in getMin() and getMax().
+	 */
+	public PostProcessPipeline.RowSource rows(Rectangle r, int[] lut, boolean smooth) {
+	    if (bytes)
+		return new TiledTiffProcessor.StripRows(channel, fi, r, lut, smooth, band);
+	    return new TiledTiffProcessor.StripRows(channel, fi, r, lut, smooth, band) {
+		void readRow(int y, int[] dst) {
+		    super.readRow(y, dst);
+		    range(dst, w);
+		}
+	    };
+	}
+
+	private void range(int[] row, int n) {
+	    int lo = Integer.MAX_VALUE, hi = Integer.MIN_VALUE;
+	    for (int x=0; x<n; x++) {
+		lo = Math.min(lo, row[x]);
+		hi = Math.max(hi, row[x]);
+	    }
+	    synchronized (this) {
+		min = Math.min(min, lo);
+		max = Math.max(max, hi);
+	    }
+	}
+
+	/** Smallest 16-bit value read so far. */
+	synchronized int getMin() {
+	    return min;
+	}
+
+	/** Largest 16-bit value read so far. */
+	synchronized int getMax() {
+	    return max;
+	}
+
+	/** The calibration of the file, read the same way as ImageJ does. */
+	Calibration getCalibration() {
+	    Calibration cal = new Calibration();
+	    if (fi.pixelWidth>0.0 && fi.unit!=null) {
+		cal.pixelWidth = fi.pixelWidth;
+		cal.pixelHeight = fi.pixelHeight;
+		cal.setUnit(fi.unit);
+	    }
+	    return cal;
+	}
+
+	public void close() throws IOException {
+	    channel.close();
+	}
+    }
+
+    /**
+     * Returns the rows of a file that can be read row by row, or null if it
+     * can not: only a single uncompressed 8-bit or unsigned 16-bit
+     * grayscale TIFF image and an uncompressed 8-bit BMP with a gray
+     * palette are. The pixels are the same as those of IJ.openImage.
+     */
+    static Rows rows(File file) throws IOException {
+	String name = file.getName().toLowerCase(Locale.US);
+	FileInfo fi = null;
+	if (name.endsWith(".tif") || name.endsWith(".tiff"))
+	    fi = tiffInfo(file);
+	else if (name.endsWith(".bmp"))
+	    fi = bmpInfo(file);
+	return fi!=null ? new Rows(file, fi) : null;
+    }
+
+    private static FileInfo tiffInfo(File file) throws IOException {
+	file = file.getAbsoluteFile();
+	TiffDecoder td = new TiffDecoder(file.getParent()+File.separator, file.getName());
+	FileInfo[] info = td.getTiffInfo();
+	if (info==null || info.length!=1)
+	    return null;
+	FileInfo fi = info[0];
+	if (fi.nImages>1 || fi.compression!=FileInfo.COMPRESSION_NONE || fi.whiteIsZero || fi.lutSize>0)
+	    return null;
+	if (fi.fileType!=FileInfo.GRAY8 && fi.fileType!=FileInfo.GRAY16_UNSIGNED)
+	    return null;
+	new FileOpener(fi).decodeDescriptionString(fi);
+	return fi;
+    }
+
+    /**
+     * Reads the header of an 8-bit BMP into a FileInfo with one strip per
+     * row, as the rows are padded to four bytes and usually stored bottom
+     * up. Returns null unless the palette is the identity gray ramp.
+     */
+    private static FileInfo bmpInfo(File file) throws IOException {
+	ByteBuffer b = ByteBuffer.allocate(54+1024).order(ByteOrder.LITTLE_ENDIAN);
+	FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+	try {
+	    while (b.hasRemaining() && channel.read(b)>=0)
+		;
+	}
+	finally {
+	    channel.close();
+	}
+	if (b.position()<54 || b.get(0)!='B' || b.get(1)!='M')
+	    return null;
+	long dataOffset = b.getInt(10)&0xffffffffL;
+	int headerSize = b.getInt(14);
+	int width = b.getInt(18), height = b.getInt(22);
+	int bitCount = b.getShort(28), compression = b.getInt(30), colors = b.getInt(46);
+	if (headerSize<40 || bitCount!=8 || compression!=0 || (colors!=0 && colors!=256) || width<=0 || height==0)
+	    return null;
+	int palette = 14+headerSize;
+	if (palette+1024>b.position())
+	    return null;
+	for (int i=0; i<256; i++) {
+	    int p = palette+4*i;
+	    if ((b.get(p)&0xff)!=i || (b.get(p+1)&0xff)!=i || (b.get(p+2)&0xff)!=i)
+		return null;
+	}
+	boolean topDown = height<0;
+	height = Math.abs(height);
+	long stride = (width+3)/4*4;
+	if (dataOffset+stride*height>file.length() || dataOffset+stride*height>0xffffffffL)
+	    return null;
+	FileInfo fi = new FileInfo();
+	fi.fileType = FileInfo.GRAY8;
+	fi.width = width;
+	fi.height = height;
+	fi.rowsPerStrip = 1;
+	fi.stripOffsets = new int[height];
+	for (int y=0; y<height; y++)
+	    fi.stripOffsets[y] = (int)(dataOffset+stride*(topDown ? y : height-1-y));
+	return fi;
+    }
+
+    /**
+     * Decodes an image at the given width, or for a JPEG at least twice
+     * that. Returns null if the file can not be decoded at a reduced size,
+     * in which case it has to be opened the normal way. The display range
+     * of a 16-bit result is that of the source.
+     *
+     * @param pool	the pool the pixels of the result are taken from
+     */
+    static ImagePlus open(File file, int width, PixelBufferPool pool) throws IOException {
+	Rows rows = rows(file);
+	if (rows==null)
+	    return openJpeg(file, width);
+	try {
+	    if (width>=rows.width)
+		return null;
+	    PostProcessPipeline pipeline = new PostProcessPipeline();
+	    pipeline.setResizeWidth(width);
+	    pipeline.setBufferPool(pool);
+	    ImagePlus img = pipeline.apply(rows, file.getName(), null);
+	    if (!rows.bytes)
+		img.getProcessor().setMinAndMax(rows.getMin(), rows.getMax());
+	    return img;
+	}
+	finally {
+	    rows.close();
+	}
+    }
+
+    /** Decodes every n:th pixel of a JPEG, see open(). */
+    private static ImagePlus openJpeg(File file, int width) throws IOException {
+	String name = file.getName().toLowerCase(Locale.US);
+	if (!name.endsWith(".jpg") && !name.endsWith(".jpeg"))
+	    return null;
+	ImageInputStream in = ImageIO.createImageInputStream(file);
+	if (in==null)
+	    return null;
+	try {
+	    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+	    if (!readers.hasNext())
+		return null;
+	    ImageReader reader = readers.next();
+	    try {
+		reader.setInput(in, true, true);
+		int sourceWidth = reader.getWidth(0);
+		int n = subsampling(sourceWidth, width);
+		if (n<2)
+		    return null;
+		ImageReadParam param = reader.getDefaultReadParam();
+		param.setSourceSubsampling(n, n, 0, 0);
+		BufferedImage bi = reader.read(0, param);
+		ImagePlus img = new ImagePlus(file.getName(), bi);
+		if (img.getType()==ImagePlus.COLOR_RGB)
+		    Opener.convertGrayJpegTo8Bits(img);
+		img.setProperty(SOURCE_WIDTH, Integer.valueOf(sourceWidth));
+		return img;
+	    }
+	    finally {
+		reader.dispose();
+	    }
+	}
+	finally {
+	    in.close();
+	}
+    }
+
+    /** Every how many pixels a JPEG is read, 1 for all. */
+    private static int subsampling(int sourceWidth, int width) {
+	return Math.max(1, sourceWidth/(2*width));
+    }
+
+    /**
+     * Returns the width open() decodes a file of the given width at, or the
+     * width of the source if it is decoded the normal way.
+     */
+    static int decodedWidth(File file, int sourceWidth, int width) {
+	if (width>=sourceWidth)
+	    return sourceWidth;
+	try {
+	    Rows rows = rows(file);
+	    if (rows!=null) {
+		rows.close();
+		return width;
+	    }
+	}
+	catch (IOException e) {
+	    return sourceWidth;
+	}
+	String name = file.getName().toLowerCase(Locale.US);
+	int n = subsampling(sourceWidth, width);
+	if (n<2 || !(name.endsWith(".jpg") || name.endsWith(".jpeg")))
+	    return sourceWidth;
+	return (sourceWidth+n-1)/n;
+    }
+
+    /**
+     * Returns the width of the source of an image decoded at a reduced size,
+     * or the width of the image if it was decoded the normal way.
+     */
+    static int sourceWidth(ImagePlus img) {
+	Object width = img.getProperty(SOURCE_WIDTH);
+	return width instanceof Integer ? ((Integer)width).intValue() : img.getWidth();
+    }
+}
@@ -0,0 +1,275 @@
+/*
+ * @(#)ScaleBarRenderer.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.awt.*;
+import java.awt.image.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Draws a scale bar straight into the pixels of an image. It draws the bar
+ * that JSM_ScaleBar used to make by running "Scale Bar..." with the options
+ * "bold overlay" at the lower left corner, giving the background box a
+ * semitransparent fill and a black outline and flattening the image, but
+ * without going through the macro command, the overlay and a flattened RGB
+ * copy of the image. The layout is that of the Scale Bar command: a black
+ * bar with a black bold label below it, on a white background box drawn at
+ * 50% opacity with a 1 pixel black outline. 8-bit, 16-bit and 32-bit images
+ * keep their type and are drawn with the display range minimum as black
+ * and maximum as white. Nothing is drawn if the bar length is not a
+ * positive number, e.g. NaN when the image has no calibration.
+ *
+ * The label is rendered once per text and font size and the coverage mask is
+ * cached. A renderer has no mutable state, so one instance can be used from
+ * several threads at the same time.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ScaleBarRenderer {
+
+    /** Rendered labels, keyed by font size and text. */
+    private static final ConcurrentMap<String,Glyphs> labels = new ConcurrentHashMap<String,Glyphs>();
+    private static final int MAX_CACHED_LABELS = 256;
+
+    private final int barHeight;
+    private final int fontSize;
+
+    /** The coverage mask of a rendered label. */
+    private static class Glyphs {
+	final int width, height;
+	final byte[] alpha;
+
+	Glyphs(int width, int height, byte[] alpha) {
+	    this.width = width;
+	    this.height = height;
+	    this.alpha = alpha;
+	}
+    }
+
+    /**
+     * @param barHeight	height of the bar in pixels
+     * @param fontSize	size of the label font in points
+     */
+    public ScaleBarRenderer(int barHeight, int fontSize) {
+	this.barHeight = barHeight;
+	this.fontSize = fontSize;
+    }
+
+    /**
+     * Draws a scale bar to the lower left corner of the image.
+     *
+     * @param ip	the image, which is modified
+     * @param cal	the calibration of the image
+     * @param barWidth	the length of the bar in calibrated units
+     */
+    public void draw(ImageProcessor ip, Calibration cal, double barWidth) {
+	draw(ip, 0, ip.getWidth(), ip.getHeight(), cal, barWidth);
+    }
+
+    /**
+     * Draws the part of the scale bar that falls on a band of rows of a
+     * larger image. The band has the full width of the image and starts at
+     * row top, so an image written out band by band gets the same bar as
+     * when it is drawn on the whole image at once.
+     *
+     * @param ip	rows top to top+ip.getHeight()-1 of the image, modified
+     * @param top	the image row of the first row of the band
+     * @param width	width of the whole image
+     * @param height	height of the whole image
+     * @param cal	the calibration of the image
+     * @param barWidth	the length of the bar in calibrated units
+     */
+    public void draw(ImageProcessor ip, int top, int width, int height, Calibration cal, double barWidth) {
+	if (Double.isNaN(barWidth) || barWidth<=0)
+	    return;
+	int barWidthInPixels = (int)(barWidth/cal.pixelWidth);
+	String label = getLength(barWidth)+" "+getUnits(cal);
+	Glyphs text = getGlyphs(label);
+
+	// Same layout as the Scale Bar command
+	int x = width/20;
+	int y = height - height/20 - barHeight - fontSize;
+	int xoffset = (barWidthInPixels - text.width)/2;
+	int yoffset = barHeight + fontSize + fontSize/4;
+	int w = Math.max(barWidthInPixels, text.width);
+	int x2 = Math.min(x, x+xoffset);
+	int margin = Math.max(2, w/20);
+	x2 -= margin;
+	int y2 = y - margin;
+	w += margin*2;
+	int h = yoffset + margin*2;
+
+	blendRect(ip, x2, y2-top, w, h, true, 128);
+	// The outline, drawn like Graphics.drawRect, one pixel wider and higher
+	blendRect(ip, x2, y2-top, w+1, 1, false, 255);
+	blendRect(ip, x2, y2+h-top, w+1, 1, false, 255);
+	blendRect(ip, x2, y2-top, 1, h+1, false, 255);
+	blendRect(ip, x2+w, y2-top, 1, h+1, false, 255);
+	blendRect(ip, x, y-top, barWidthInPixels, barHeight, false, 255);
+	blendMask(ip, text, x+xoffset, y+barHeight-top, false);
+    }
+
+    /**
+     * Returns a bar length of about a quarter of the image width, rounded
+     * to a multiple of its decade (0.001 to 1000).
+     *
+     * @param imageWidth	width of the image in calibrated units
+     */
+    public static double getDefaultWidth(double imageWidth) {
+	double width = imageWidth / 4.0;
+	double decade;
+	if (width > 1000.0) 
+	    decade = 1000.0;
+	else if (width > 100.0)
+	    decade = 100.0;
+	else if (width > 10.0)
+	    decade = 10.0;
+	else if (width > 1.0)
+	    decade = 1.0;
+	else if (width > 0.1)
+	    decade = 0.1;
+	else if (width > 0.01)
+	    decade = 0.01;
+	else 
+	    decade = 0.001;
+	return Math.floor((width/decade)+0.5)*decade;
+    }
+
+    /** Formats the bar length the same way as the Scale Bar command. */
+    static String getLength(double barWidth) {
+	int digits = (int)barWidth==barWidth?0:1;
+	if (barWidth<1.0) digits=1;
+	if (digits==1) {
+	    String s = IJ.d2s(barWidth/0.1, 2);
+	    if (!s.endsWith(".00")) digits = 2;
+	}
+	return IJ.d2s(barWidth, digits);
+    }
+
+    private static String getUnits(Calibration cal) {
+	String units = cal.getUnits();
+	if (units.equals("microns"))
+	    units = IJ.micronSymbol+"m";
+	return units;
+    }
+
+    /** Returns the label mask, rendering it if it is not cached yet. */
+    private Glyphs getGlyphs(String label) {
+	String key = fontSize+" "+label;
+	Glyphs g = labels.get(key);
+	if (g!=null)
+	    return g;
+	g = render(label);
+	if (labels.size()>=MAX_CACHED_LABELS)
+	    labels.clear();
+	labels.putIfAbsent(key, g);
+	return g;
+    }
+
+    private Glyphs render(String label) {
+	Font font = new Font("SanSerif", Font.BOLD, fontSize);
+	BufferedImage probe = new BufferedImage(1, 1, BufferedImage.TYPE_BYTE_GRAY);
+	Graphics2D g = probe.createGraphics();
+	FontMetrics fm = g.getFontMetrics(font);
+	int w = Math.max(1, fm.stringWidth(label));
+	int h = Math.max(1, fm.getHeight());
+	int ascent = fm.getAscent();
+	g.dispose();
+
+	BufferedImage bi = new BufferedImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+	g = bi.createGraphics();
+	g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+	g.setColor(Color.white);
+	g.setFont(font);
+	g.drawString(label, 0, ascent);
+	g.dispose();
+	byte[] alpha = ((DataBufferByte)bi.getRaster().getDataBuffer()).getData();
+	return new Glyphs(w, h, alpha);
+    }
+
+    /** Blends white or black over a rectangle with the given opacity (0-255). */
+    private static void blendRect(ImageProcessor ip, int x, int y, int w, int h, boolean white, int a) {
+	int x0 = Math.max(0, x), x1 = Math.min(ip.getWidth(), x+w);
+	int y0 = Math.max(0, y), y1 = Math.min(ip.getHeight(), y+h);
+	if (ip instanceof ColorProcessor) {
+	    int[] pixels = (int[])ip.getPixels();
+	    int c = white ? 255 : 0;
+	    for (int yy=y0; yy<y1; yy++) {
+		int off = yy*ip.getWidth();
+		for (int xx=x0; xx<x1; xx++)
+		    pixels[off+xx] = blend(pixels[off+xx], c, a);
+	    }
+	} else {
+	    float c = (float)(white ? ip.getMax() : ip.getMin());
+	    float f = a/255f;
+	    for (int yy=y0; yy<y1; yy++)
+		for (int xx=x0; xx<x1; xx++)
+		    ip.setf(xx, yy, ip.getf(xx, yy)*(1f-f) + c*f);
+	}
+    }
+
+    /** Blends black or white through a coverage mask placed at x, y. */
+    private static void blendMask(ImageProcessor ip, Glyphs g, int x, int y, boolean white) {
+	int x0 = Math.max(0, x), x1 = Math.min(ip.getWidth(), x+g.width);
+	int y0 = Math.max(0, y), y1 = Math.min(ip.getHeight(), y+g.height);
+	boolean rgb = ip instanceof ColorProcessor;
+	int[] pixels = rgb ? (int[])ip.getPixels() : null;
+	int c = white ? 255 : 0;
+	float cf = (float)(white ? ip.getMax() : ip.getMin());
+	for (int yy=y0; yy<y1; yy++) {
+	    int moff = (yy-y)*g.width - x;
+	    int off = yy*ip.getWidth();
+	    for (int xx=x0; xx<x1; xx++) {
+		int a = g.alpha[moff+xx]&0xff;
+		if (a==0)
+		    continue;
+		if (rgb)
+		    pixels[off+xx] = blend(pixels[off+xx], c, a);
+		else {
+		    float f = a/255f;
+		    ip.setf(xx, yy, ip.getf(xx, yy)*(1f-f) + cf*f);
+		}
+	    }
+	}
+    }
+
+    private static int blend(int rgb, int c, int a) {
+	int r = (rgb>>16)&0xff, g = (rgb>>8)&0xff, b = rgb&0xff;
+	r = (r*(255-a) + c*a + 127)/255;
+	g = (g*(255-a) + c*a + 127)/255;
+	b = (b*(255-a) + c*a + 127)/255;
+	return (rgb&0xff000000) | (r<<16) | (g<<8) | b;
+    }
+}
@@ -0,0 +1,168 @@
+/*
+ * @(#)SourceWalker.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import ij.*;
+import java.nio.file.*;
+import java.util.*;
+
+/**
+ * Walks a source folder for Batch_Converter one entry at a time. The folder
+ * is read through directory streams, so the first file is handed out as soon
+ * as it is found and the memory used does not depend on the number of files.
+ * Subfolders are entered only when asked for, and their paths are repeated
+ * under the destination folder. File names are matched against a glob
+ * pattern (e.g. "*.dm3" or "*.{tif,jpg}") before anything is opened. Hidden
+ * files and folders, whose names start with a dot, are skipped, and so are
+ * links to folders, which could lead back to a folder above them, and the
+ * destination folder when it lies in the source folder.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class SourceWalker implements Iterator<ConversionJob>, Closeable {
+
+    private final Path root;
+    private final String dir2;
+    private final Path destination;
+    private final boolean recursive;
+    private final PathMatcher matcher;
+    private final Deque<DirectoryStream<Path>> streams = new ArrayDeque<DirectoryStream<Path>>();
+    private final Deque<Iterator<Path>> entries = new ArrayDeque<Iterator<Path>>();
+    private ConversionJob next;
+    private int count;
+
+    /**
+     * @param dir1	the source folder
+     * @param dir2	the destination folder
+     * @param recursive	whether subfolders are converted too
+     * @param glob	file name pattern, null or empty for all files
+     */
+    SourceWalker(String dir1, String dir2, boolean recursive, String glob) {
+	this.root = Paths.get(dir1);
+	this.dir2 = dir2;
+	this.destination = Paths.get(dir2);
+	this.recursive = recursive;
+	if (glob==null || glob.trim().length()==0)
+	    glob = "*";
+	this.matcher = root.getFileSystem().getPathMatcher("glob:"+glob.trim());
+	enter(root);
+    }
+
+    public boolean hasNext() {
+	if (next==null)
+	    next = advance();
+	return next!=null;
+    }
+
+    public ConversionJob next() {
+	if (!hasNext())
+	    throw new NoSuchElementException();
+	ConversionJob job = next;
+	next = null;
+	return job;
+    }
+
+    public void remove() {
+	throw new UnsupportedOperationException();
+    }
+
+    /** Closes the directory streams that are still open. */
+    public void close() {
+	while (!streams.isEmpty())
+	    leave();
+    }
+
+    /** Finds the next matching file, or returns null when all are seen. */
+    private ConversionJob advance() {
+	while (!entries.isEmpty()) {
+	    Iterator<Path> it = entries.peek();
+	    Path p;
+	    try {
+		if (!it.hasNext()) {
+		    leave();
+		    continue;
+		}
+		p = it.next();
+	    }
+	    catch (DirectoryIteratorException e) {
+		IJ.log("Could not read folder: "+e.getCause().getMessage());
+		leave();
+		continue;
+	    }
+	    Path name = p.getFileName();
+	    if (name.toString().startsWith("."))
+		continue;
+	    if (Files.isDirectory(p)) {
+		if (recursive && !Files.isSymbolicLink(p) && !isDestination(p))
+		    enter(p);
+		continue;
+	    }
+	    if (!matcher.matches(name))
+		continue;
+	    String relative = root.relativize(p).toString();
+	    return new ConversionJob(++count, p.toFile(), dir2+relative);
+	}
+	return null;
+    }
+
+    /** True if the folder is the destination folder, which may not exist yet. */
+    private boolean isDestination(Path dir) {
+	try {
+	    return Files.isSameFile(dir, destination);
+	}
+	catch (IOException e) {
+	    return false;
+	}
+    }
+
+    private void enter(Path dir) {
+	try {
+	    DirectoryStream<Path> ds = Files.newDirectoryStream(dir);
+	    streams.push(ds);
+	    entries.push(ds.iterator());
+	}
+	catch (IOException e) {
+	    IJ.log("Could not read "+dir+": "+e);
+	}
+    }
+
+    private void leave() {
+	entries.pop();
+	try {
+	    streams.pop().close();
+	}
+	catch (IOException e) {
+	    // Nothing to do, the stream is not used anymore
+	}
+    }
+}
@@ -0,0 +1,271 @@
+/*
+ * @(#)StackConverter.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import ij.*;
+import ij.io.FileInfo;
+import ij.process.*;
+
+/**
+ * Converts every slice of a stack, for tilt and time series that would
+ * otherwise be reduced to their first slice. The slices are processed on all
+ * cores, each with the same steps and output specs as a single image, and
+ * streamed to the outputs: only the slices being worked on are converted
+ * copies, never the whole stack.
+ *
+ * In multi-page mode a TIFF output gets all the slices as one stack, written
+ * page by page with TiffStreamWriter in slice order. Other formats, and all
+ * outputs in per-slice mode, are written as one file per slice, with the
+ * slice number added to the file name. Every slice has the calibration and
+ * the display range of the stack, so that the gray levels of a series match
+ * from one slice to the next.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class StackConverter {
+
+    private static volatile ExecutorService pool;
+
+    private final Batch_Converter converter;
+    private final OutputSpec[] specs;
+    private final BatchMetrics metrics;
+    private final boolean multiPage;
+    /** The file written for the first output spec and first slice. */
+    private volatile String firstSlicePath;
+
+    /**
+     * @param converter	converter whose processing and saving steps are used
+     * @param specs	the outputs to write
+     * @param metrics	where the time of every step is recorded
+     * @param multiPage	true to write TIFF outputs as a single stack
+     */
+    StackConverter(Batch_Converter converter, OutputSpec[] specs, BatchMetrics metrics, boolean multiPage) {
+	this.converter = converter;
+	this.specs = specs;
+	this.metrics = metrics;
+	this.multiPage = multiPage;
+    }
+
+    private static ExecutorService getPool() {
+	if (pool==null) {
+	    synchronized (StackConverter.class) {
+		if (pool==null) {
+		    pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+			    private int n;
+			    public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "StackConverter-"+(n++));
+				t.setDaemon(true);
+				return t;
+			    }
+			});
+		}
+	    }
+	}
+	return pool;
+    }
+
+    /**
+     * Converts all the slices of the stack and writes them to the outputs of
+     * the job. Returns the first file that was written, or null if an output
+     * could not be written completely.
+     */
+    String convert(final ImagePlus imp, final ConversionJob job) {
+	final int n = imp.getStackSize();
+	final ImageStack stack = imp.getStack();
+	final ImageProcessor ip0 = imp.getProcessor();
+	final double min = ip0.getMin(), max = ip0.getMax();
+	final int digits = Math.max(3, String.valueOf(n).length());
+
+	// The outputs written as one stack, and their paths
+	final boolean[] paged = new boolean[specs.length];
+	TiffStreamWriter[] writers = new TiffStreamWriter[specs.length];
+	String[] paths = new String[specs.length];
+	// The temporary files the writers write to, see Batch_Converter.partPath
+	String[] parts = new String[specs.length];
+	for (int i=0; i<specs.length; i++) {
+	    paged[i] = multiPage && specs[i].format.equals("TIFF")
+		&& (specs[i].grayscale || imp.getBitDepth()!=32);
+	    if (paged[i]) {
+		paths[i] = specs[i].getOutputPath(job.outputPath);
+		if (!paths[i].endsWith(".tiff"))
+		    paths[i] = ImageSaver.updateExtension(paths[i], ".tif");
+	    }
+	}
+
+	// Up to two slices per core are in progress at a time, one until the
+	// shared palette has been made, so that it is made from the first slice
+	int window = 2*Runtime.getRuntime().availableProcessors();
+	ArrayDeque<Future<ImagePlus[]>> pending = new ArrayDeque<Future<ImagePlus[]>>();
+	boolean ok = true;
+	String first = null;
+	int next = 1;
+	try {
+	    for (int slice=1; slice<=n; slice++) {
+		while (next<=n && pending.size()<(converter.needsPalette() ? 1 : window)) {
+		    final int s = next++;
+		    pending.add(getPool().submit(new Callable<ImagePlus[]>() {
+			    public ImagePlus[] call() {
+				return convertSlice(imp, stack, s, min, max, digits, job, paged);
+			    }
+			}));
+		}
+		ImagePlus[] images;
+		try {
+		    images = pending.poll().get();
+		}
+		catch (ExecutionException e) {
+		    IJ.log(job+", slice "+slice+": "+e.getCause());
+		    images = null;
+		}
+		if (images==null) {
+		    ok = false;
+		    continue;
+		}
+		for (int i=0; i<specs.length; i++) {
+		    if (!paged[i] || paths[i]==null)
+			continue;
+		    try {
+			if (writers[i]==null) {
+			    parts[i] = converter.partPath(paths[i]);
+			    writers[i] = createWriter(parts[i], images[i], n);
+			}
+			BatchMetrics.Timer timer = metrics.start(BatchMetrics.ENCODE);
+			ImageProcessor ip = images[i].getProcessor();
+			writers[i].write(ip.getPixels(), ip.getHeight());
+			timer.stop((long)ip.getWidth()*ip.getHeight()*(ip.getBitDepth()==24 ? 3 : ip.getBitDepth()/8));
+		    }
+		    catch (IOException e) {
+			IJ.log("Could not save "+paths[i]+": "+e.getMessage());
+			paths[i] = null;
+			ok = false;
+		    }
+		}
+		converter.release(images);
+		for (int i=0; i<images.length; i++)
+		    if (images[i]!=null)
+			images[i].close();
+	    }
+	}
+	catch (InterruptedException e) {
+	    Thread.currentThread().interrupt();
+	    for (Future<ImagePlus[]> f : pending)
+		f.cancel(true);
+	    ok = false;
+	}
+	finally {
+	    for (int i=0; i<specs.length; i++) {
+		if (writers[i]==null)
+		    continue;
+		try {
+		    writers[i].close();
+		    if (paths[i]==null) {
+			new File(parts[i]).delete();
+			continue;
+		    }
+		    // publish() deletes the part file if it can not rename it
+		    if (converter.publish(parts[i])==null) {
+			ok = false;
+			continue;
+		    }
+		    job.written.add(paths[i]);
+		    if (first==null)
+			first = paths[i];
+		}
+		catch (IOException e) {
+		    IJ.log("Could not save "+(paths[i]!=null ? paths[i] : parts[i])+": "+e.getMessage());
+		    new File(parts[i]).delete();
+		    ok = false;
+		}
+	    }
+	}
+	if (first==null)
+	    first = firstSlicePath;
+	return ok ? first : null;
+    }
+
+    /**
+     * Converts one slice. The outputs written one file per slice are saved
+     * here, on the worker thread; the images of the multi-page outputs are
+     * returned to be written in order, the others are null. Returns null if
+     * the slice could not be converted or saved.
+     */
+    private ImagePlus[] convertSlice(ImagePlus imp, ImageStack stack, int slice, double min, double max,
+				     int digits, ConversionJob job, boolean[] paged) {
+	BatchMetrics.Timer timer = metrics.start(BatchMetrics.PROCESS);
+	ImageProcessor ip = stack.getProcessor(slice);
+	if (!(ip instanceof ColorProcessor))
+	    ip.setMinAndMax(min, max);
+	ImagePlus img = imp.createImagePlus();
+	String label = stack.getShortSliceLabel(slice);
+	img.setProcessor(label!=null ? label : imp.getTitle(), ip);
+	ImagePlus[] images = converter.fanOut(img, timer);
+	ImagePlus[] written = new ImagePlus[specs.length];
+	boolean ok = true;
+	for (int i=0; i<specs.length; i++) {
+	    if (paged[i])
+		continue;
+	    String path = OutputSpec.insertSuffix(specs[i].getOutputPath(job.outputPath), "_"+IJ.pad(slice, digits));
+	    path = converter.saveImage(job, images[i], specs[i].format, path);
+	    if (path==null)
+		ok = false;
+	    else if (slice==1 && firstSlicePath==null)
+		firstSlicePath = path;
+	    written[i] = images[i];
+	    images[i] = null;
+	}
+	// The pixels shared with the multi-page outputs are kept until those
+	// have been written
+	converter.release(written, images);
+	for (int i=0; i<specs.length; i++)
+	    if (written[i]!=null)
+		written[i].close();
+	return ok ? images : null;
+    }
+
+    /** Opens the multi-page TIFF of an output for the first converted slice. */
+    private static TiffStreamWriter createWriter(String path, ImagePlus img, int n) throws IOException {
+	File parent = new File(path).getParentFile();
+	if (parent!=null && !parent.isDirectory())
+	    parent.mkdirs();
+	int type;
+	switch (img.getBitDepth()) {
+	case 8: type = FileInfo.GRAY8; break;
+	case 16: type = FileInfo.GRAY16_UNSIGNED; break;
+	case 24: type = FileInfo.RGB; break;
+	default: throw new IOException("Can not write "+img.getBitDepth()+"-bit images as multi-page TIFF");
+	}
+	return new TiffStreamWriter(path, img.getWidth(), img.getHeight(), n, type, img.getCalibration());
+    }
+}
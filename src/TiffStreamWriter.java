@@ -0,0 +1,282 @@
+/*
+ * @(#)TiffStreamWriter.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import ij.*;
+import ij.io.FileInfo;
+import ij.measure.Calibration;
+
+/**
+ * Writes an uncompressed TIFF file a band of rows at a time, so the image
+ * never has to be in memory as a whole. The header has the same layout as
+ * the one written by ImageJ's TiffEncoder (big-endian, one strip, the pixel
+ * data after the tags) with the ImageJ description and the resolution tags,
+ * so ImageJ reads the calibration back. The size of the pixel data is known
+ * from the start, which is why the header can be written first. A stack is
+ * written the way TiffEncoder writes one: the first IFD, the pixels of all
+ * the images and then the IFDs of the other images, so the images are
+ * written one after the other and only the last IFDs wait for the end.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class TiffStreamWriter implements Closeable {
+
+    private static final int HDR_SIZE = 8;
+    private static final int BPS_DATA_SIZE = 6;
+    private static final int SCALE_DATA_SIZE = 16;
+    private static final int BUFFER_SIZE = 1<<20;
+
+    private final FileChannel channel;
+    private final ByteBuffer buffer;
+    private final int width, height, fileType, nImages;
+    private long rows;
+    private long imageOffset, imageSize, nextIFD;
+    private byte[] ifdEntries;
+
+    /**
+     * Creates the file and writes the header.
+     *
+     * @param path	the file to write
+     * @param width	width of the image
+     * @param height	height of the image
+     * @param fileType	FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED or FileInfo.RGB
+     * @param cal	calibration to store, or null
+     */
+    TiffStreamWriter(String path, int width, int height, int fileType, Calibration cal) throws IOException {
+	this(path, width, height, 1, fileType, cal);
+    }
+
+    /**
+     * Creates a file for a stack of images and writes the header.
+     *
+     * @param path	the file to write
+     * @param width	width of the images
+     * @param height	height of the images
+     * @param nImages	number of images
+     * @param fileType	FileInfo.GRAY8, FileInfo.GRAY16_UNSIGNED or FileInfo.RGB
+     * @param cal	calibration to store, or null
+     */
+    TiffStreamWriter(String path, int width, int height, int nImages, int fileType, Calibration cal) throws IOException {
+	if (fileType!=FileInfo.GRAY8 && fileType!=FileInfo.GRAY16_UNSIGNED && fileType!=FileInfo.RGB)
+	    throw new IllegalArgumentException("Unsupported file type: "+fileType);
+	this.width = width;
+	this.height = height;
+	this.nImages = Math.max(1, nImages);
+	this.fileType = fileType;
+	int bytesPerPixel = fileType==FileInfo.RGB ? 3 : fileType==FileInfo.GRAY8 ? 1 : 2;
+	imageSize = (long)width*height*bytesPerPixel;
+	if (imageSize>0xffffffffL)
+	    throw new IOException("Image too large for a TIFF file: "+width+"x"+height);
+	this.channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+					StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+	this.buffer = ByteBuffer.allocateDirect(BUFFER_SIZE).order(ByteOrder.BIG_ENDIAN);
+	try {
+	    writeHeader(cal);
+	}
+	catch (IOException e) {
+	    channel.close();
+	    throw e;
+	}
+    }
+
+    private void writeHeader(Calibration cal) throws IOException {
+	boolean rgb = fileType==FileInfo.RGB;
+	boolean scaled = cal!=null && cal.scaled();
+	StringBuilder sb = new StringBuilder();
+	sb.append("ImageJ="+ImageJ.VERSION+"\n");
+	if (nImages>1)
+	    sb.append("images="+nImages+"\nslices="+nImages+"\n");
+	if (scaled) {
+	    String unit = cal.getUnit();
+	    sb.append("unit="+(unit.equals("\u00B5m") ? "um" : unit)+"\n");
+	}
+	if (nImages>1) {
+	    if (cal!=null && cal.pixelDepth!=1.0)
+		sb.append("spacing="+cal.pixelDepth+"\n");
+	    sb.append("loop=false\n");
+	}
+	sb.append((char)0);
+	byte[] description = sb.toString().getBytes("ISO-8859-1");
+
+	int nEntries = 10 + (scaled ? 3 : 0);
+	int ifdSize = 2 + nEntries*12 + 4;
+	imageOffset = HDR_SIZE + ifdSize + (rgb ? BPS_DATA_SIZE : 0) + description.length + (scaled ? SCALE_DATA_SIZE : 0);
+	int tagDataOffset = HDR_SIZE + ifdSize;
+	if (nImages>1) {
+	    nextIFD = imageOffset + imageSize*nImages;
+	    if (nextIFD+(long)nImages*ifdSize>=0xffffffffL)
+		throw new IOException("Stack too large for a TIFF file: "+nImages+" images of "+width+"x"+height);
+	}
+
+	// The entries are the same in every IFD, except for the StripOffsets
+	ByteBuffer b = buffer;
+	b.clear();
+	entry(254, 4, 1, 0);			// NewSubfileType
+	entry(256, 4, 1, width);		// ImageWidth
+	entry(257, 4, 1, height);		// ImageLength
+	if (rgb) {
+	    entry(258, 3, 3, tagDataOffset);	// BitsPerSample
+	    tagDataOffset += BPS_DATA_SIZE;
+	} else
+	    entry(258, 3, 1, fileType==FileInfo.GRAY8 ? 8 : 16);
+	entry(262, 3, 1, rgb ? 2 : 1);		// PhotometricInterpretation
+	entry(270, 2, description.length, tagDataOffset); // ImageDescription
+	tagDataOffset += description.length;
+	entry(273, 4, 1, 0);			// StripOffsets
+	entry(277, 3, 1, rgb ? 3 : 1);		// SamplesPerPixel
+	entry(278, 3, 1, height);		// RowsPerStrip
+	entry(279, 4, 1, (int)imageSize);	// StripByteCounts
+	if (scaled) {
+	    entry(282, 5, 1, tagDataOffset);	// XResolution
+	    entry(283, 5, 1, tagDataOffset+8);	// YResolution
+	    String unit = cal.getUnit();
+	    entry(296, 3, 1, unit.equals("inch") ? 2 : unit.equals("cm") ? 3 : 1);
+	}
+	b.flip();
+	ifdEntries = new byte[b.remaining()];
+	b.get(ifdEntries);
+
+	b.clear();
+	b.put((byte)'M').put((byte)'M').putShort((short)42).putInt(HDR_SIZE);
+	putIFD(imageOffset, nextIFD);
+	if (rgb)
+	    b.putShort((short)8).putShort((short)8).putShort((short)8);
+	b.put(description);
+	if (scaled) {
+	    // Same rationals as TiffEncoder
+	    double xscale = 1.0/cal.pixelWidth;
+	    double yscale = 1.0/cal.pixelHeight;
+	    double scale = 1000000.0;
+	    if (xscale*scale>Integer.MAX_VALUE||yscale*scale>Integer.MAX_VALUE)
+		scale = (int)(Integer.MAX_VALUE/Math.max(xscale,yscale));
+	    b.putInt((int)(xscale*scale)).putInt((int)scale);
+	    b.putInt((int)(yscale*scale)).putInt((int)scale);
+	}
+	flush();
+    }
+
+    /**
+     * Puts an IFD to the buffer: the entries with the given StripOffsets and
+     * the offset of the next IFD, 0 for the last one.
+     */
+    private void putIFD(long stripOffset, long next) {
+	buffer.putShort((short)(ifdEntries.length/12));
+	int pos = buffer.position();
+	buffer.put(ifdEntries);
+	buffer.putInt(pos+6*12+8, (int)stripOffset); // Value of the 7th entry
+	buffer.putInt((int)next);
+    }
+
+    /** Puts one 12-byte IFD entry to the buffer. */
+    private void entry(int tag, int fieldType, int count, int value) {
+	buffer.putShort((short)tag).putShort((short)fieldType).putInt(count);
+	if (count==1 && fieldType==3)
+	    buffer.putShort((short)value).putShort((short)0);
+	else
+	    buffer.putInt(value);
+    }
+
+    /**
+     * Writes the next rows of the image. The pixels are a byte[], short[]
+     * or int[] array, depending on the file type, holding at least n full
+     * rows. The rows of a stack follow each other from one image to the
+     * next.
+     */
+    void write(Object pixels, int n) throws IOException {
+	if (rows+n>(long)height*nImages)
+	    throw new IOException("Too many rows: "+(rows+n)+" > "+(long)height*nImages);
+	int count = n*width;
+	if (fileType==FileInfo.GRAY8) {
+	    byte[] p = (byte[])pixels;
+	    for (int i=0; i<count; ) {
+		int len = Math.min(count-i, buffer.remaining());
+		buffer.put(p, i, len);
+		i += len;
+		if (!buffer.hasRemaining())
+		    flush();
+	    }
+	} else if (fileType==FileInfo.GRAY16_UNSIGNED) {
+	    short[] p = (short[])pixels;
+	    for (int i=0; i<count; i++) {
+		if (buffer.remaining()<2)
+		    flush();
+		buffer.putShort(p[i]);
+	    }
+	} else {
+	    int[] p = (int[])pixels;
+	    for (int i=0; i<count; i++) {
+		if (buffer.remaining()<3)
+		    flush();
+		int c = p[i];
+		buffer.put((byte)(c>>16)).put((byte)(c>>8)).put((byte)c);
+	    }
+	}
+	rows += n;
+    }
+
+    private void flush() throws IOException {
+	buffer.flip();
+	while (buffer.hasRemaining())
+	    channel.write(buffer);
+	buffer.clear();
+    }
+
+    /**
+     * Writes what is left in the buffer and the IFDs of the other images of
+     * a stack, and closes the file. Fails if fewer rows than the height of
+     * the images were written.
+     */
+    public void close() throws IOException {
+	try {
+	    if (rows==(long)height*nImages) {
+		int ifdSize = 2+ifdEntries.length+4;
+		for (int i=2; i<=nImages; i++) {
+		    if (buffer.remaining()<ifdSize)
+			flush();
+		    imageOffset += imageSize;
+		    nextIFD = i==nImages ? 0 : nextIFD+ifdSize;
+		    putIFD(imageOffset, nextIFD);
+		}
+	    }
+	    flush();
+	}
+	finally {
+	    channel.close();
+	}
+	if (rows!=(long)height*nImages)
+	    throw new IOException("Only "+rows+" of "+(long)height*nImages+" rows were written");
+    }
+}
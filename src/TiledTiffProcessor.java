@@ -0,0 +1,437 @@
+/*
+ * @(#)TiledTiffProcessor.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.awt.Rectangle;
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import ij.*;
+import ij.io.FileInfo;
+import ij.io.FileOpener;
+import ij.io.TiffDecoder;
+import ij.measure.Calibration;
+import ij.process.*;
+
+/**
+ * Processes a TIFF file that is too large to open as a whole, such as a
+ * stitched montage, a band of rows at a time. The rows are read straight
+ * from the strips of the file, go through the same single pass as in
+ * PostProcessPipeline (crop, equalization, 3x3 smoothing, downsizing) and
+ * are converted, get their part of the scale bar and are written out with
+ * TiffStreamWriter before the next band is read. The 3x3 smoothing keeps
+ * the row above and below the band in its ring buffer, so the bands join
+ * without seams. Memory use depends on the band height and the image width,
+ * not on the image height.
+ *
+ * Equalization and conversion of 16-bit images to 8 bits need the whole
+ * histogram, which takes one extra pass over the file before the rows are
+ * processed. The 8-bit conversion scales the pixel range of the source like
+ * "8-bit" does on the opened image; after smoothing or downsizing, the range
+ * of the result may be a little narrower than that of the source, which
+ * ImageJ would use instead.
+ *
+ * Only uncompressed 8-bit and unsigned 16-bit grayscale TIFFs stored in
+ * strips are read, which is what the stitching software writes, and only
+ * the first image of a stack is processed. Use canProcess() to check.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class TiledTiffProcessor {
+
+    /** Default amount of source rows to read at a time, in bytes. */
+    static final int BAND_BYTES = 8<<20;
+
+    private Rectangle crop;
+    private boolean equalize;
+    private boolean smooth;
+    private int resizeWidth;
+    private boolean convertToByte;
+    private boolean convertToRGB;
+    private ScaleBarRenderer scaleBar;
+    private double scaleBarWidth;
+    private int bandHeight;
+    private Calibration calibration;
+
+    /** Crops the image to the rectangle, null for no cropping. */
+    public void setCrop(Rectangle crop) {
+	this.crop = crop;
+    }
+
+    /** Equalizes the histogram like "Enhance Contrast" with "equalize". */
+    public void setEqualize(boolean equalize) {
+	this.equalize = equalize;
+    }
+
+    /** Smooths the image with a 3x3 mean filter like "Smooth". */
+    public void setSmooth(boolean smooth) {
+	this.smooth = smooth;
+    }
+
+    /**
+     * Downsizes the image to the given width, keeping the aspect ratio, by
+     * averaging. 0, or a width that is not smaller, for no resizing.
+     */
+    public void setResizeWidth(int width) {
+	this.resizeWidth = width;
+    }
+
+    /** Converts 16-bit images to 8 bits like "8-bit". */
+    public void setConvertToByte(boolean convertToByte) {
+	this.convertToByte = convertToByte;
+    }
+
+    /** Writes the result as RGB like "RGB Color". */
+    public void setConvertToRGB(boolean convertToRGB) {
+	this.convertToRGB = convertToRGB;
+    }
+
+    /**
+     * Draws a scale bar on the result.
+     *
+     * @param renderer	the renderer to draw with, null for no scale bar
+     * @param barWidth	length of the bar in calibrated units, 0 for
+     *			ScaleBarRenderer.getDefaultWidth of the result
+     */
+    public void setScaleBar(ScaleBarRenderer renderer, double barWidth) {
+	this.scaleBar = renderer;
+	this.scaleBarWidth = barWidth;
+    }
+
+    /** Uses this calibration for the source, null to read it from the file. */
+    public void setCalibration(Calibration cal) {
+	this.calibration = cal;
+    }
+
+    /** Number of rows to process at a time, 0 for about 8 MB of source rows. */
+    public void setBandHeight(int rows) {
+	this.bandHeight = rows;
+    }
+
+    /**
+     * Returns the TIFF header of the first image of the file if this class
+     * can process it, otherwise null. Only the first image of a file with
+     * several is processed.
+     */
+    public static FileInfo canProcess(File file) throws IOException {
+	file = file.getAbsoluteFile();
+	TiffDecoder td = new TiffDecoder(file.getParent()+File.separator, file.getName());
+	FileInfo[] info = td.getTiffInfo();
+	if (info==null || info.length==0)
+	    return null;
+	FileInfo fi = info[0];
+	if (fi.compression!=FileInfo.COMPRESSION_NONE)
+	    return null;
+	if (fi.fileType!=FileInfo.GRAY8 && fi.fileType!=FileInfo.GRAY16_UNSIGNED)
+	    return null;
+	return fi;
+    }
+
+    /**
+     * Processes the TIFF file in and writes the result to the TIFF file out.
+     * Returns the calibration of the result.
+     *
+     * @throws IOException	if the files can not be read or written, or the
+     *				source is not a TIFF this class can process
+     */
+    public Calibration process(File in, String out) throws IOException {
+	FileInfo fi = canProcess(in);
+	if (fi==null)
+	    throw new IOException(in.getName()+": not an uncompressed 8-bit or 16-bit TIFF");
+	new FileOpener(fi).decodeDescriptionString(fi);
+	Calibration cal = new Calibration();
+	if (calibration!=null)
+	    cal = calibration.copy();
+	else if (fi.pixelWidth>0.0 && fi.unit!=null) {
+	    cal.pixelWidth = fi.pixelWidth;
+	    cal.pixelHeight = fi.pixelHeight;
+	    cal.setUnit(fi.unit);
+	}
+
+	Rectangle r = new Rectangle(0, 0, fi.width, fi.height);
+	if (crop!=null)
+	    r = r.intersection(crop);
+	if (r.isEmpty())
+	    throw new IOException(in.getName()+": crop is outside the image");
+	int w = r.width, h = r.height;
+	int nw = w, nh = h;
+	if (resizeWidth>0 && resizeWidth<w) {
+	    nw = resizeWidth;
+	    nh = Math.max(1, (int)Math.round(nw*((double)h/w)));
+	    cal.pixelWidth *= (double)w/nw;
+	    cal.pixelHeight *= (double)h/nh;
+	}
+	boolean bytes = fi.fileType==FileInfo.GRAY8;
+	int bpp = bytes ? 1 : 2;
+	int band = bandHeight>0 ? bandHeight : Math.max(16, BAND_BYTES/(fi.width*bpp));
+
+	FileChannel channel = FileChannel.open(in.toPath(), StandardOpenOption.READ);
+	try {
+	    // The histogram pass, when the whole range is needed up front
+	    int[] lut = null;
+	    int min = 0, max = bytes ? 255 : 65535;
+	    boolean rescale = !bytes && (convertToByte || convertToRGB);
+	    // 16-bit scale bars are drawn with the pixel range as black and white
+	    boolean range = rescale || (!bytes && scaleBar!=null);
+	    if (equalize || range) {
+		int[] histogram = PostProcessPipeline.histogram(new StripRows(channel, fi, r, null, false, band), bytes);
+		if (equalize)
+		    lut = PostProcessPipeline.equalizationTable(histogram);
+		if (range) {
+		    while (min<max && histogram[min]==0)
+			min++;
+		    while (max>min && histogram[max]==0)
+			max--;
+		    if (lut!=null) {
+			min = lut[min];
+			max = lut[max];
+		    }
+		}
+	    }
+
+	    int fileType = convertToRGB ? FileInfo.RGB : bytes || convertToByte ? FileInfo.GRAY8 : FileInfo.GRAY16_UNSIGNED;
+	    BandWriter sink = new BandWriter(new TiffStreamWriter(out, nw, nh, fileType, cal),
+					     fileType, nw, nh, band, rescale, min, max, cal);
+	    boolean ok = false;
+	    try {
+		PostProcessPipeline.scaleRows(new StripRows(channel, fi, r, lut, smooth, band), nw, nh, sink);
+		sink.finish();
+		ok = true;
+	    }
+	    catch (UncheckedIO e) {
+		throw (IOException)e.getCause();
+	    }
+	    finally {
+		try {
+		    sink.writer.close();
+		}
+		catch (IOException e) {
+		    if (ok)
+			throw e;
+		}
+		if (!ok)
+		    new File(out).delete();
+	    }
+	}
+	catch (UncheckedIO e) {
+	    throw (IOException)e.getCause();
+	}
+	finally {
+	    channel.close();
+	}
+	return cal;
+    }
+
+    /**
+     * Collects the result rows into a band of the output type, draws the
+     * part of the scale bar that falls on it and writes it out.
+     */
+    private class BandWriter implements PostProcessPipeline.RowSink {
+	final TiffStreamWriter writer;
+	private final int fileType, width, height, band;
+	private final boolean rescale;
+	private final int min, max;
+	private final double scale;
+	private final Calibration cal;
+	private final double barWidth;
+	private ImageProcessor ip;
+	private int top, filled;
+
+	BandWriter(TiffStreamWriter writer, int fileType, int width, int height, int band,
+		   boolean rescale, int min, int max, Calibration cal) {
+	    this.writer = writer;
+	    this.fileType = fileType;
+	    this.width = width;
+	    this.height = height;
+	    this.band = Math.min(band, height);
+	    this.rescale = rescale;
+	    this.min = min;
+	    this.max = max;
+	    this.scale = 256.0/(max-min+1);
+	    this.cal = cal;
+	    this.barWidth = scaleBarWidth>0 ? scaleBarWidth : ScaleBarRenderer.getDefaultWidth(cal.getX(width));
+	    this.ip = newBand(this.band);
+	}
+
+	private ImageProcessor newBand(int rows) {
+	    if (fileType==FileInfo.RGB)
+		return new ColorProcessor(width, rows);
+	    if (fileType==FileInfo.GRAY8)
+		return new ByteProcessor(width, rows);
+	    ShortProcessor sp = new ShortProcessor(width, rows);
+	    sp.setMinAndMax(min, max); // The display range of the whole image
+	    return sp;
+	}
+
+	public void put(int y, int[] row, int n) {
+	    int off = filled*width;
+	    Object pixels = ip.getPixels();
+	    if (rescale) {
+		// Same rounding as TypeConverter.convertShortToByte
+		for (int x=0; x<n; x++) {
+		    int v = row[x]-min;
+		    if (v<0) v = 0;
+		    v = (int)(v*scale+0.5);
+		    row[x] = v>255 ? 255 : v;
+		}
+	    }
+	    if (pixels instanceof int[]) {
+		int[] p = (int[])pixels;
+		for (int x=0; x<n; x++) {
+		    int v = row[x];
+		    p[off+x] = 0xff000000 | (v<<16) | (v<<8) | v;
+		}
+	    } else if (pixels instanceof byte[]) {
+		byte[] p = (byte[])pixels;
+		for (int x=0; x<n; x++)
+		    p[off+x] = (byte)row[x];
+	    } else {
+		short[] p = (short[])pixels;
+		for (int x=0; x<n; x++)
+		    p[off+x] = (short)row[x];
+	    }
+	    if (++filled==ip.getHeight())
+		flush();
+	}
+
+	private void flush() {
+	    if (scaleBar!=null)
+		scaleBar.draw(ip, top, width, height, cal, barWidth);
+	    try {
+		writer.write(ip.getPixels(), filled);
+	    }
+	    catch (IOException e) {
+		throw new UncheckedIO(e);
+	    }
+	    top += filled;
+	    filled = 0;
+	    int left = height-top;
+	    if (left>0 && left<ip.getHeight())
+		ip = newBand(left); // The last band is shorter
+	}
+
+	void finish() throws IOException {
+	    if (filled>0)
+		flush();
+	}
+    }
+
+    /**
+     * Carries an IOException out of RowSink.put, which can not throw one.
+     * process() and PostProcessPipeline never let it escape.
+     */
+    static class UncheckedIO extends RuntimeException {
+	private static final long serialVersionUID = 1L;
+
+	UncheckedIO(IOException e) {
+	    super(e);
+	}
+    }
+
+    /**
+     * Reads the rows of an area of an uncompressed TIFF from its strips,
+     * band rows at a time. The rows of a band that lie next to each other in
+     * the file are read with one call.
+     */
+    static class StripRows extends PostProcessPipeline.RowSource {
+	final boolean bytes;
+	private final FileChannel channel;
+	private final long[] offsets;
+	private final int rowsPerStrip, rowBytes, x0, y0, band;
+	private final ByteBuffer buffer;
+	private int first = -1, count;
+
+	StripRows(FileChannel channel, FileInfo fi, Rectangle r, int[] lut, boolean smooth, int band) {
+	    super(r.width, r.height, lut, smooth);
+	    this.channel = channel;
+	    this.bytes = fi.fileType==FileInfo.GRAY8;
+	    this.rowBytes = fi.width*(bytes ? 1 : 2);
+	    if (fi.stripOffsets!=null && fi.stripOffsets.length>1) {
+		offsets = new long[fi.stripOffsets.length];
+		for (int i=0; i<offsets.length; i++)
+		    offsets[i] = fi.stripOffsets[i]&0xffffffffL;
+		rowsPerStrip = fi.rowsPerStrip>0 ? fi.rowsPerStrip : fi.height;
+	    } else {
+		offsets = new long[] {fi.getOffset()};
+		rowsPerStrip = fi.height;
+	    }
+	    this.x0 = r.x;
+	    this.y0 = r.y;
+	    this.band = Math.min(band, r.height);
+	    this.buffer = ByteBuffer.allocateDirect(this.band*rowBytes)
+		.order(fi.intelByteOrder ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+	}
+
+	/** Position of a row of the image in the file. */
+	private long position(int row) {
+	    return offsets[row/rowsPerStrip] + (long)(row%rowsPerStrip)*rowBytes;
+	}
+
+	void readRow(int y, int[] dst) {
+	    if (first<0 || y<first || y>=first+count)
+		load(y);
+	    int off = (y-first)*rowBytes + x0*(bytes ? 1 : 2);
+	    if (bytes) {
+		for (int x=0; x<w; x++)
+		    dst[x] = buffer.get(off+x)&0xff;
+	    } else {
+		for (int x=0; x<w; x++)
+		    dst[x] = buffer.getShort(off+2*x)&0xffff;
+	    }
+	}
+
+	private void load(int y) {
+	    first = y;
+	    count = Math.min(band, h-y);
+	    try {
+		int row = 0;
+		while (row<count) {
+		    long pos = position(y0+y+row);
+		    int n = 1;
+		    while (row+n<count && position(y0+y+row+n)==pos+(long)n*rowBytes)
+			n++;
+		    buffer.limit((row+n)*rowBytes).position(row*rowBytes);
+		    while (buffer.hasRemaining()) {
+			if (channel.read(buffer, pos+buffer.position()-row*rowBytes)<0)
+			    throw new EOFException("TIFF file is truncated");
+		    }
+		    row += n;
+		}
+		buffer.clear();
+	    }
+	    catch (IOException e) {
+		throw new UncheckedIO(e);
+	    }
+	}
+    }
+}
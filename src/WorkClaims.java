@@ -0,0 +1,453 @@
+/*
+ * @(#)WorkClaims.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import ij.*;
+
+/**
+ * Shares the files of a batch between several Batch_Converter processes,
+ * on one or more hosts, that convert the same source folder into the same
+ * destination folder. Before a process converts a file it claims it by
+ * creating a marker file in a hidden folder of the destination; creating a
+ * file that must not exist yet is atomic, also on network file systems, so
+ * only one process gets each claim. When the outputs have been written, a
+ * "done" marker with the size and modification time of the source and the
+ * conversion options is put in place of the claim. Every process walks the
+ * whole source folder and skips the files that are done or claimed by
+ * others, so each file is converted once whatever the number of processes.
+ *
+ * A process keeps its claims alive by touching them while it works. A claim
+ * that has not been touched for the timeout was left by a process that
+ * crashed or was killed, and is taken over by the next process that comes
+ * across it. A process that finds one of its claims taken over stops
+ * touching it, and never deletes a claim that no longer names it. Files
+ * claimed by others are looked at again when the folder has been walked,
+ * until they are done or their claims turn stale, so a batch finishes as
+ * long as one process keeps running. The host clocks only need to agree to
+ * well within the timeout.
+ *
+ * Batch_Converter writes outputs under a temporary name next to the final
+ * one, see partPath(), and renames them when complete, so a crashed process
+ * leaves no partial outputs behind. The done markers do the work of the conversion manifest: a source
+ * that is done with the same options and whose output still exists is
+ * skipped in later runs too.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+class WorkClaims implements Closeable {
+
+    /** Name of the folder of markers in the destination folder. */
+    static final String DIR_NAME = ".Batch_Converter.claims";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final int CLAIMED = 0, DONE = 1, BUSY = 2;
+    /** Most milliseconds between looks at files claimed by others. */
+    private static final long POLL = 2000;
+
+    private final File dir;
+    private final String dir2;
+    private final String options;
+    private final long timeout;
+    private final long poll;
+    /** This process, as "pid@host". */
+    private static final String OWNER = ManagementFactory.getRuntimeMXBean().getName();
+    private static final String PART_SUFFIX = partSuffix(OWNER);
+    private final Map<ConversionJob,File> held = new ConcurrentHashMap<ConversionJob,File>();
+    private final Thread heartbeat;
+    private int claimed, doneByOthers, recovered;
+
+    /**
+     * @param dir2	the destination folder, shared by all processes
+     * @param options	the conversion options, as in the manifest
+     * @param timeout	milliseconds after which a claim that has not
+     *			been touched is taken over
+     */
+    WorkClaims(String dir2, String options, long timeout) {
+	this.dir = new File(dir2, DIR_NAME);
+	this.dir2 = dir2;
+	this.options = options;
+	this.timeout = Math.max(1000, timeout);
+	this.poll = Math.min(POLL, this.timeout/4);
+	heartbeat = new Thread("Batch_Converter-claims") {
+		public void run() {
+		    try {
+			while (true) {
+			    Thread.sleep(WorkClaims.this.timeout/4);
+			    long now = System.currentTimeMillis();
+			    for (Map.Entry<ConversionJob,File> e : held.entrySet()) {
+				if (owns(e.getValue())) {
+				    e.getValue().setLastModified(now);
+				} else {
+				    // Taken over by another process, which thought this one dead
+				    held.remove(e.getKey());
+				    IJ.log(e.getValue().getName()+": the claim was taken over by "+read(e.getValue()));
+				}
+			    }
+			}
+		    }
+		    catch (InterruptedException e) {
+			// Closed
+		    }
+		}
+	    };
+	heartbeat.setDaemon(true);
+	heartbeat.start();
+    }
+
+    /**
+     * Returns the jobs of the given source that this process has claimed.
+     * The jobs claimed by other processes are handed out later if their
+     * claims turn stale; hasNext() waits for them once the source is empty.
+     */
+    Iterator<ConversionJob> claimAll(final Iterator<ConversionJob> jobs) {
+	return new Iterator<ConversionJob>() {
+	    private final List<ConversionJob> waiting = new LinkedList<ConversionJob>();
+	    private long nextCheck = System.currentTimeMillis()+poll;
+	    private ConversionJob next;
+
+	    public boolean hasNext() {
+		if (next==null)
+		    next = advance();
+		return next!=null;
+	    }
+
+	    public ConversionJob next() {
+		if (!hasNext())
+		    throw new NoSuchElementException();
+		ConversionJob job = next;
+		next = null;
+		return job;
+	    }
+
+	    public void remove() {
+		throw new UnsupportedOperationException();
+	    }
+
+	    private ConversionJob advance() {
+		while (true) {
+		    if (!waiting.isEmpty() && System.currentTimeMillis()>=nextCheck) {
+			nextCheck = System.currentTimeMillis()+poll;
+			for (Iterator<ConversionJob> it = waiting.iterator(); it.hasNext(); ) {
+			    ConversionJob job = it.next();
+			    int state = claim(job);
+			    if (state!=BUSY)
+				it.remove();
+			    if (state==CLAIMED)
+				return job;
+			}
+		    }
+		    if (jobs.hasNext()) {
+			ConversionJob job = jobs.next();
+			int state = claim(job);
+			if (state==CLAIMED)
+			    return job;
+			if (state==BUSY)
+			    waiting.add(job);
+		    } else if (waiting.isEmpty())
+			return null;
+		    else {
+			try {
+			    Thread.sleep(Math.max(0, nextCheck-System.currentTimeMillis()));
+			}
+			catch (InterruptedException e) {
+			    Thread.currentThread().interrupt();
+			    return null;
+			}
+		    }
+		}
+	    }
+	};
+    }
+
+    /**
+     * Tries to claim a job. Returns DONE if it has been converted already,
+     * BUSY if another process is working on it.
+     */
+    private int claim(ConversionJob job) {
+	String key = key(job);
+	job.sourceSize = job.source.length();
+	job.sourceModified = job.source.lastModified();
+	File done = new File(dir, key+".done");
+	if (isDone(job, done)) {
+	    countDone();
+	    return DONE;
+	}
+	File claim = new File(dir, key+".claim");
+	File parent = claim.getParentFile();
+	if (!parent.isDirectory())
+	    parent.mkdirs();
+	if (!create(claim) && !(isStale(claim) && recover(job, claim)))
+	    return BUSY;
+	// Done markers are written before claims are removed, so a job
+	// finished since the check above is seen here
+	if (isDone(job, done)) {
+	    claim.delete();
+	    countDone();
+	    return DONE;
+	}
+	held.put(job, claim);
+	synchronized (this) {
+	    claimed++;
+	}
+	return CLAIMED;
+    }
+
+    private synchronized void countDone() {
+	doneByOthers++;
+    }
+
+    /**
+     * Takes over a stale claim. The claim is checked again while holding a
+     * recovery lock, so that of several processes that found it stale only
+     * one replaces it. The outputs the other process left half written are
+     * deleted.
+     */
+    private boolean recover(ConversionJob job, File claim) {
+	File lock = new File(claim.getPath()+".recover");
+	if (!create(lock)) {
+	    if (isStale(lock))
+		lock.delete(); // Left by a process that died while recovering
+	    return false;
+	}
+	try {
+	    if (claim.exists() && !isStale(claim))
+		return false;
+	    String previous = read(claim);
+	    claim.delete();
+	    if (!create(claim))
+		return false;
+	    IJ.log(claim.getName()+": taking over the stale claim of "+previous);
+	    deleteParts(job, previous);
+	    synchronized (this) {
+		recovered++;
+	    }
+	    return true;
+	}
+	finally {
+	    lock.delete();
+	}
+    }
+
+    /** Deletes the temporary outputs of a job written by another process. */
+    private static void deleteParts(ConversionJob job, String owner) {
+	if (owner.length()==0)
+	    return;
+	File out = new File(job.outputPath);
+	String name = out.getName();
+	int dot = name.lastIndexOf('.');
+	final String prefix = dot>0 ? name.substring(0, dot) : name;
+	final String part = partSuffix(owner);
+	File[] files = out.getAbsoluteFile().getParentFile().listFiles(new FilenameFilter() {
+		public boolean accept(File dir, String n) {
+		    return n.startsWith(prefix) && n.indexOf(part)>0;
+		}
+	    });
+	if (files!=null)
+	    for (File f : files)
+		f.delete();
+    }
+
+    /** The suffix of the temporary outputs of a process. */
+    private static String partSuffix(String owner) {
+	return ".part-"+fileName(owner);
+    }
+
+    private static String fileName(String owner) {
+	return owner.replaceAll("[^A-Za-z0-9]", "-");
+    }
+
+    /** This process as part of a file name, "pid-host". */
+    static String processName() {
+	return fileName(OWNER);
+    }
+
+    /** Creates a marker with the name of this process in it, atomically. */
+    private boolean create(File f) {
+	try {
+	    Files.write(f.toPath(), (OWNER+"\n").getBytes(UTF8), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+	    return true;
+	}
+	catch (FileAlreadyExistsException e) {
+	    return false;
+	}
+	catch (IOException e) {
+	    IJ.log("Could not create "+f+": "+e);
+	    return false;
+	}
+    }
+
+    private boolean isStale(File f) {
+	long t = f.lastModified();
+	return t!=0 && System.currentTimeMillis()-t>timeout;
+    }
+
+    /** True if the done marker matches the source, options and output. */
+    private boolean isDone(ConversionJob job, File done) {
+	String[] f = read(done).split("\t");
+	if (f.length!=4)
+	    return false;
+	try {
+	    return Long.parseLong(f[0])==job.sourceSize
+		&& Long.parseLong(f[1])==job.sourceModified
+		&& f[2].equals(options)
+		&& new File(f[3]).isFile();
+	}
+	catch (NumberFormatException e) {
+	    return false;
+	}
+    }
+
+    /** The first line of a marker, or "" if it can not be read. */
+    private static String read(File f) {
+	try {
+	    List<String> lines = Files.readAllLines(f.toPath(), UTF8);
+	    return lines.isEmpty() ? "" : lines.get(0);
+	}
+	catch (IOException e) {
+	    return "";
+	}
+    }
+
+    /** The path of the source relative to the source folder. */
+    private String key(ConversionJob job) {
+	if (job.outputPath.startsWith(dir2))
+	    return job.outputPath.substring(dir2.length());
+	return job.source.getName();
+    }
+
+    /**
+     * Records that a claimed job has been converted and written to output,
+     * and gives up the claim.
+     */
+    void complete(ConversionJob job, String output) {
+	File claim = held.remove(job);
+	String key = key(job);
+	File done = new File(dir, key+".done");
+	File tmp = new File(dir, key+".done"+PART_SUFFIX);
+	String line = job.sourceSize+"\t"+job.sourceModified+"\t"+options+"\t"+new File(output).getAbsolutePath()+"\n";
+	try {
+	    Files.write(tmp.toPath(), line.getBytes(UTF8));
+	    move(tmp, done);
+	}
+	catch (IOException e) {
+	    IJ.log("Could not mark "+job+" as done: "+e);
+	    tmp.delete();
+	}
+	if (claim!=null)
+	    drop(claim);
+    }
+
+    /** Gives up the claim of a job that could not be converted. */
+    void release(ConversionJob job) {
+	File claim = held.remove(job);
+	if (claim!=null)
+	    drop(claim);
+    }
+
+    /** True if the claim names this process as its owner. */
+    private static boolean owns(File claim) {
+	return read(claim).equals(OWNER);
+    }
+
+    /**
+     * Deletes a claim if this process still owns it. A claim that another
+     * process has taken over is left to it. The owner is checked while
+     * holding the recovery lock, so that the claim can not be taken over
+     * between the check and the delete; if another process holds the lock,
+     * the claim is left for it to decide.
+     */
+    private void drop(File claim) {
+	File lock = new File(claim.getPath()+".recover");
+	if (!create(lock))
+	    return;
+	try {
+	    if (owns(claim))
+		claim.delete();
+	}
+	finally {
+	    lock.delete();
+	}
+    }
+
+    /**
+     * The path to write an output to: a temporary name next to the final
+     * one, with the extension left in place so that it can be replaced.
+     */
+    static String partPath(String path) {
+	return OutputSpec.insertSuffix(path, PART_SUFFIX);
+    }
+
+    /**
+     * Renames an output written to partPath() to its final name, replacing
+     * an older file. Returns the final path, or null if renaming failed.
+     */
+    static String publish(String written) {
+	int i = written.lastIndexOf(PART_SUFFIX);
+	if (i<0)
+	    return written;
+	String path = written.substring(0, i)+written.substring(i+PART_SUFFIX.length());
+	try {
+	    move(new File(written), new File(path));
+	    return path;
+	}
+	catch (IOException e) {
+	    IJ.log("Could not rename "+written+": "+e);
+	    new File(written).delete();
+	    return null;
+	}
+    }
+
+    private static void move(File from, File to) throws IOException {
+	try {
+	    Files.move(from.toPath(), to.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+	}
+	catch (AtomicMoveNotSupportedException e) {
+	    Files.move(from.toPath(), to.toPath(), StandardCopyOption.REPLACE_EXISTING);
+	}
+    }
+
+    /** Stops touching the claims and gives up those still held. */
+    public void close() {
+	heartbeat.interrupt();
+	for (ConversionJob job : held.keySet())
+	    release(job);
+	synchronized (this) {
+	    IJ.log(OWNER+": claimed "+claimed+" files, "+doneByOthers+" were done already, "+recovered+" stale claims taken over");
+	}
+    }
+}
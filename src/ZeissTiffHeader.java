@@ -0,0 +1,421 @@
+/*
+ * @(#)ZeissTiffHeader.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.file.*;
+import java.util.*;
+import ij.measure.Calibration;
+
+/**
+ * The calibration and settings that a Zeiss SEM (e.g. the Sigma) stores in
+ * the TIFF files it writes. The microscope software puts its parameters as
+ * text into the private tag 34118, as pairs of lines: a parameter name such
+ * as "AP_PIXEL_SIZE" followed by "Pixel Size = 2.791 nm". Only the first IFD
+ * of the file and the values of the tags that are used are read, with a few
+ * positional reads through a FileChannel, none larger than TAG_LIMIT, so the
+ * pixel data is never read. The image size and the resolution tags are read
+ * as well, which gives the calibration ImageJ would find in a TIFF without
+ * the private tag.
+ *
+ * Instances are immutable, like JeolSidecar, and can be used from several
+ * threads. Numbers that are missing are NaN or 0 and text is null.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class ZeissTiffHeader {
+
+    /** The most bytes read for the value of one tag. */
+    public static final int TAG_LIMIT = 256*1024;
+
+    private static final int IMAGE_WIDTH = 256, IMAGE_LENGTH = 257;
+    private static final int X_RESOLUTION = 282, Y_RESOLUTION = 283, RESOLUTION_UNIT = 296;
+    private static final int CZ_SEM = 34118;
+    private static final int MAX_ENTRIES = 4096;
+    private static final Charset LATIN1 = Charset.forName("ISO-8859-1");
+
+    private int width, height;
+    private double xResolution = Double.NaN, yResolution = Double.NaN;
+    private int resolutionUnit = 2; // Inches, the TIFF default
+    private double pixelSize = Double.NaN;
+    private String pixelSizeUnit;
+    private double magnification = Double.NaN;
+    private double workingDistance = Double.NaN;
+    private String accelVoltage;
+    private String date, time;
+    private int storeWidth, storeHeight;
+    private double stageX = Double.NaN, stageY = Double.NaN, stageZ = Double.NaN;
+    private double stageR = Double.NaN, stageT = Double.NaN;
+
+    private ZeissTiffHeader() {
+    }
+
+    /** Returns true if the file name has a TIFF extension. */
+    public static boolean isTiff(String name) {
+	String lower = name.toLowerCase(Locale.US);
+	return lower.endsWith(".tif") || lower.endsWith(".tiff");
+    }
+
+    /**
+     * Reads the header of a TIFF file.
+     *
+     * @throws IOException	if the file can not be read or is not a TIFF
+     */
+    public static ZeissTiffHeader read(String path) throws IOException {
+	FileChannel ch = FileChannel.open(Paths.get(path), StandardOpenOption.READ);
+	try {
+	    ZeissTiffHeader h = new ZeissTiffHeader();
+	    h.readIFD(ch);
+	    return h;
+	}
+	finally {
+	    ch.close();
+	}
+    }
+
+    /**
+     * Reads the header of a TIFF file and returns it if it has the Zeiss
+     * pixel size. Returns null if the file is not a TIFF, can not be read
+     * or has no pixel size.
+     */
+    public static ZeissTiffHeader readCalibrated(File file) {
+	if (!isTiff(file.getName()))
+	    return null;
+	try {
+	    ZeissTiffHeader h = read(file.getPath());
+	    return h.hasPixelSize() ? h : null;
+	}
+	catch (IOException e) {
+	    return null;
+	}
+    }
+
+    /**
+     * Reads the file header and returns it with the byte order of the file.
+     * The offset of the first IFD is at position 4.
+     */
+    private static ByteBuffer readHeader(FileChannel ch) throws IOException {
+	ByteBuffer bb = read(ch, 0, 8, ByteOrder.LITTLE_ENDIAN);
+	byte b0 = bb.get(0), b1 = bb.get(1);
+	if (b0=='M' && b1=='M')
+	    bb.order(ByteOrder.BIG_ENDIAN);
+	else if (b0!='I' || b1!='I')
+	    throw new IOException("Not a TIFF file");
+	if (bb.getShort(2)!=42)
+	    throw new IOException("Not a TIFF file (BigTIFF is not supported)");
+	return bb;
+    }
+
+    /** Reads the entries of the IFD at the position, 12 bytes each. */
+    private static ByteBuffer readEntries(FileChannel ch, long ifd, ByteOrder order) throws IOException {
+	int n = read(ch, ifd, 2, order).getShort(0)&0xffff;
+	if (n==0 || n>MAX_ENTRIES)
+	    throw new IOException("Bad IFD entry count "+n);
+	return read(ch, ifd+2, 12*n, order);
+    }
+
+    /**
+     * Returns the position and length of the BYTE, ASCII and UNDEFINED tag
+     * values of every IFD of a TIFF, in the order they are in the file. This
+     * is where camera software writes its settings as text, see
+     * MegaviewHeader. Values of four bytes or less, which are stored in the
+     * entry itself, are left out.
+     *
+     * @throws IOException	if the file can not be read or is not a TIFF
+     */
+    static List<long[]> textValues(FileChannel ch) throws IOException {
+	ByteBuffer bb = readHeader(ch);
+	ByteOrder order = bb.order();
+	List<long[]> values = new ArrayList<long[]>();
+	Set<Long> seen = new HashSet<Long>();
+	long ifd = bb.getInt(4)&0xffffffffL;
+	while (ifd!=0 && seen.size()<MAX_ENTRIES && seen.add(ifd)) {
+	    ByteBuffer entries = readEntries(ch, ifd, order);
+	    int n = entries.capacity()/12;
+	    for (int i=0; i<n; i++) {
+		int p = 12*i;
+		int type = entries.getShort(p+2)&0xffff;
+		long count = entries.getInt(p+4)&0xffffffffL;
+		if ((type==1 || type==2 || type==7) && count>4)
+		    values.add(new long[] {entries.getInt(p+8)&0xffffffffL, count});
+	    }
+	    ifd = read(ch, ifd+2+12*n, 4, order).getInt(0)&0xffffffffL;
+	}
+	Collections.sort(values, new Comparator<long[]>() {
+		public int compare(long[] a, long[] b) {
+		    return Long.compare(a[0], b[0]);
+		}
+	    });
+	return values;
+    }
+
+    private void readIFD(FileChannel ch) throws IOException {
+	ByteBuffer bb = readHeader(ch);
+	ByteOrder order = bb.order();
+	long ifd = bb.getInt(4)&0xffffffffL;
+	ByteBuffer entries = readEntries(ch, ifd, order);
+	int n = entries.capacity()/12;
+	for (int i=0; i<n; i++) {
+	    int p = 12*i;
+	    int tag = entries.getShort(p)&0xffff;
+	    int type = entries.getShort(p+2)&0xffff;
+	    long count = entries.getInt(p+4)&0xffffffffL;
+	    switch (tag) {
+	    case IMAGE_WIDTH:
+		width = (int)integer(entries, p+8, type);
+		break;
+	    case IMAGE_LENGTH:
+		height = (int)integer(entries, p+8, type);
+		break;
+	    case RESOLUTION_UNIT:
+		resolutionUnit = (int)integer(entries, p+8, type);
+		break;
+	    case X_RESOLUTION:
+		xResolution = rational(ch, entries.getInt(p+8)&0xffffffffL, order);
+		break;
+	    case Y_RESOLUTION:
+		yResolution = rational(ch, entries.getInt(p+8)&0xffffffffL, order);
+		break;
+	    case CZ_SEM:
+		if (count>4) {
+		    int size = (int)Math.min(count, TAG_LIMIT);
+		    ByteBuffer text = read(ch, entries.getInt(p+8)&0xffffffffL, size, order);
+		    parse(new String(text.array(), 0, size, LATIN1));
+		}
+		break;
+	    }
+	}
+    }
+
+    /** Reads size bytes from pos, fewer if the file ends before. */
+    private static ByteBuffer read(FileChannel ch, long pos, int size, ByteOrder order) throws IOException {
+	ByteBuffer bb = ByteBuffer.allocate(size).order(order);
+	while (bb.hasRemaining()) {
+	    int r = ch.read(bb, pos+bb.position());
+	    if (r<0)
+		throw new EOFException("TIFF header ends at "+(pos+bb.position()));
+	}
+	bb.flip();
+	return bb;
+    }
+
+    /** A SHORT or LONG value stored in the entry itself. */
+    private static long integer(ByteBuffer entries, int p, int type) {
+	return type==3 ? entries.getShort(p)&0xffff : entries.getInt(p)&0xffffffffL;
+    }
+
+    private static double rational(FileChannel ch, long pos, ByteOrder order) throws IOException {
+	ByteBuffer bb = read(ch, pos, 8, order);
+	long num = bb.getInt(0)&0xffffffffL, den = bb.getInt(4)&0xffffffffL;
+	return den==0 ? Double.NaN : (double)num/den;
+    }
+
+    /** Parses the name and value lines of the Zeiss parameters. */
+    private void parse(String text) {
+	String name = null;
+	for (String line : text.split("[\r\n\0]+")) {
+	    line = line.trim();
+	    if (line.length()==0)
+		continue;
+	    if (line.matches("[A-Z]{2}_[A-Z0-9_]+")) {
+		name = line;
+		continue;
+	    }
+	    if (name==null)
+		continue;
+	    int sep = line.indexOf('=');
+	    if (sep<0)
+		sep = line.indexOf(':');
+	    if (sep>=0)
+		parseValue(name, line.substring(sep+1).trim());
+	    name = null;
+	}
+    }
+
+    private void parseValue(String name, String value) {
+	switch (name) {
+	case "AP_PIXEL_SIZE":
+	    pixelSize = number(value);
+	    pixelSizeUnit = unit(value);
+	    break;
+	case "AP_MAG": {
+	    double mag = number(value);
+	    String unit = unit(value);
+	    if (unit!=null && unit.startsWith("K"))
+		mag *= 1000;
+	    else if (unit!=null && unit.startsWith("M"))
+		mag *= 1000000;
+	    magnification = mag;
+	    break;
+	}
+	case "AP_WD":
+	    workingDistance = millimeters(value);
+	    break;
+	case "AP_ACTUALKV":
+	    accelVoltage = value;
+	    break;
+	case "AP_MANUALKV":
+	    if (accelVoltage==null)
+		accelVoltage = value;
+	    break;
+	case "AP_DATE":
+	    date = value;
+	    break;
+	case "AP_TIME":
+	    time = value;
+	    break;
+	case "DP_IMAGE_STORE": {
+	    int x = value.indexOf('*');
+	    if (x>0) {
+		storeWidth = (int)number(value.substring(0, x));
+		storeHeight = (int)number(value.substring(x+1));
+	    }
+	    break;
+	}
+	case "AP_STAGE_AT_X":
+	    stageX = millimeters(value);
+	    break;
+	case "AP_STAGE_AT_Y":
+	    stageY = millimeters(value);
+	    break;
+	case "AP_STAGE_AT_Z":
+	    stageZ = millimeters(value);
+	    break;
+	case "AP_STAGE_AT_R":
+	    stageR = number(value);
+	    break;
+	case "AP_STAGE_AT_T":
+	    stageT = number(value);
+	    break;
+	}
+    }
+
+    /** The number at the start of a value, NaN if there is none. */
+    private static double number(String value) {
+	value = value.trim();
+	int end = 0;
+	while (end<value.length() && "0123456789.-+eE".indexOf(value.charAt(end))>=0)
+	    end++;
+	try {
+	    return Double.parseDouble(value.substring(0, end));
+	}
+	catch (NumberFormatException e) {
+	    return Double.NaN;
+	}
+    }
+
+    /** The word after the number of a value, null if there is none. */
+    private static String unit(String value) {
+	int sp = value.indexOf(' ');
+	return sp<0 ? null : value.substring(sp+1).trim();
+    }
+
+    /** A length in millimeters; values in micrometers are converted. */
+    private static double millimeters(String value) {
+	double v = number(value);
+	String unit = unit(value);
+	if (unit!=null && (unit.equals("\u00b5m") || unit.equals("um")))
+	    v /= 1000;
+	return v;
+    }
+
+    /** Returns true if the Zeiss parameters include the pixel size. */
+    public boolean hasPixelSize() {
+	return !Double.isNaN(pixelSize) && pixelSize>0 && pixelSizeUnit!=null;
+    }
+
+    /**
+     * Returns the calibration of the image: the Zeiss pixel size if there
+     * is one, otherwise the resolution tags in inches or centimeters, as
+     * ImageJ reads them, and otherwise an empty calibration.
+     */
+    public Calibration getCalibration() {
+	Calibration cal = new Calibration();
+	if (hasPixelSize()) {
+	    cal.setUnit(pixelSizeUnit);
+	    cal.pixelWidth = pixelSize;
+	    cal.pixelHeight = pixelSize;
+	} else if ((resolutionUnit==2 || resolutionUnit==3) && xResolution>0) {
+	    double yres = yResolution>0 ? yResolution : xResolution;
+	    cal.pixelWidth = 1/xResolution;
+	    cal.pixelHeight = 1/yres;
+	    if (resolutionUnit==2)
+		cal.setUnit("inch");
+	    else if (cal.pixelWidth<0.0001) {
+		cal.pixelWidth *= 10000;
+		cal.pixelHeight *= 10000;
+		cal.setUnit("micron");
+	    } else
+		cal.setUnit("cm");
+	}
+	return cal;
+    }
+
+    /**
+     * Returns the part of the image that holds the micrograph, without the
+     * data bar below it: the store resolution, if the image is larger than
+     * that, otherwise the whole image.
+     */
+    public java.awt.Rectangle getMicrographBounds() {
+	if (storeWidth>0 && storeHeight>0 && storeWidth<=width && storeHeight<=height)
+	    return new java.awt.Rectangle(0, 0, storeWidth, storeHeight);
+	return new java.awt.Rectangle(0, 0, width, height);
+    }
+
+    public int getWidth() { return width; }
+    public int getHeight() { return height; }
+    /** Pixel size in getPixelSizeUnit(), NaN if not given. */
+    public double getPixelSize() { return pixelSize; }
+    public String getPixelSizeUnit() { return pixelSizeUnit; }
+    public double getMagnification() { return magnification; }
+    /** Working distance in mm. */
+    public double getWorkingDistance() { return workingDistance; }
+    public String getAccelVoltage() { return accelVoltage; }
+    public String getDate() { return date; }
+    public String getTime() { return time; }
+    /** Stage position, x, y and z in mm, rotation and tilt in degrees. */
+    public double getStageX() { return stageX; }
+    public double getStageY() { return stageY; }
+    public double getStageZ() { return stageZ; }
+    public double getStageR() { return stageR; }
+    public double getStageT() { return stageT; }
+
+    public String toString() {
+	return "Zeiss TIFF "+width+"x"+height+", pixel size "+pixelSize+" "+pixelSizeUnit
+	    +", magnification "+magnification+", WD "+workingDistance+" mm, "+accelVoltage
+	    +", "+date+" "+time+"\n";
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * @(#)OutputSpecsTest.java        1.0 17.10.2026
+ *
+ * This software is provided under the MIT Licence. Details below.
+ * In addition, the author would appreciate it if any improvements to the code
+ * would be sent to him.
+ *
+ * The MIT License (MIT)
+ * Copyright (c) 2011-2026 Juuso Korhonen (jk.lic@turqoosi.net)
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining
+ * a copy of this software and associated documentation files (the
+ * "Software"), to deal in the Software without restriction, including without
+ * limitation the rights to use, copy, modify, merge, publish, distribute,
+ * sublicense, and/or sell copies of the Software and to permit persons to whom
+ * the Software is furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in
+ * all copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ */
+
+package JIPS;
+
+/**
+ * Checks the outputs Batch_Converter accepts: every output must be written
+ * to a file of its own. Run with "make test"; exits with status 1 if a
+ * check fails.
+ *
+ * @version 	%I% %U%
+ * @author 	Juuso Korhonen
+ */
+public class OutputSpecsTest {
+
+    private static int failures;
+
+    public static void main(String[] args) {
+	// The primary output and an extra one of the same format, no suffix
+	rejected("TIFF", "TIFF");
+	rejected("TIFF", "8-bit Color TIFF");
+	rejected("JPEG", "jpeg,grayscale");
+	rejected("Raw", "Raw");
+	rejected("PNG", "PNG;GIF;PNG,scalebar");
+	// Two extra outputs that collide with each other
+	rejected("TIFF", "PNG,200;PNG,200x200,suffix=_200");
+
+	accepted("TIFF", "PNG", 2);
+	accepted("TIFF", "TIFF,suffix=_copy", 2);
+	accepted("TIFF", "TIFF,800x600", 2);
+	accepted("TIFF", "TIFF,800x600;TIFF,200", 3);
+	accepted("JPEG", "", 1);
+	if (failures>0) {
+	    System.out.println(failures+" check(s) failed");
+	    System.exit(1);
+	}
+	System.out.println("OK");
+    }
+
+    private static void rejected(String format, String outputs) {
+	if (Batch_Converter.getOutputSpecs(format, "", outputs)!=null)
+	    fail(format+" with \""+outputs+"\" was accepted");
+    }
+
+    private static void accepted(String format, String outputs, int count) {
+	OutputSpec[] specs = Batch_Converter.getOutputSpecs(format, "", outputs);
+	if (specs==null)
+	    fail(format+" with \""+outputs+"\" was rejected");
+	else if (specs.length!=count)
+	    fail(format+" with \""+outputs+"\" gave "+specs.length+" outputs, not "+count);
+    }
+
+    private static void fail(String message) {
+	System.out.println("FAILED: "+message);
+	failures++;
+    }
+}